@@ -3,19 +3,174 @@ package agent;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 
 /** Base class for simple agents */
 public abstract class Agent {
-	Semaphore stateChange = new Semaphore(1,true);//binary semaphore, fair
+	/** How an agent's scheduler loop is run.  PLATFORM gives every agent
+	 * its own java thread, as always.  VIRTUAL runs each loop on a virtual
+	 * thread instead, so tens of thousands of mostly-idle agents do not
+	 * each hold an OS thread and a native stack.  VIRTUAL falls back to
+	 * PLATFORM on a JVM without virtual threads.  POOLED has no thread per
+	 * agent at all: stateChanged() queues the agent on the shared
+	 * AgentScheduler and a small pool of workers runs whichever agents
+	 * have work. */
+	public enum ExecutionMode {PLATFORM, VIRTUAL, POOLED};
+
+	/** Where an agent is in its life.  NEW until startThread(); STARTED
+	 * while it runs its scheduler.  PARKED agents keep their state and
+	 * take messages but run nothing, and give up their thread, until
+	 * startThread() is called again.  STOPPED is parked with its pending
+	 * schedule() messages dropped.  RELEASED is stopped and handed back
+	 * to whoever owns it for reuse, see released(). */
+	public enum Lifecycle {NEW, STARTED, PARKED, STOPPED, RELEASED};
+
+	/** Scheduling class.  When POOLED agents are waiting for a worker,
+	 * CRITICAL ones (bottlenecks everyone else waits on, like a host)
+	 * go before NORMAL ones and those before BACKGROUND ones, except
+	 * that one which has waited too long goes first; see AgentScheduler.
+	 * Other modes give every agent a thread of its own and ignore it. */
+	public enum Priority {CRITICAL, NORMAL, BACKGROUND};
+
+	/** Mode used by startThread(); set with -Dagent.executionMode=virtual
+	 * or setExecutionMode() before the agents are started. */
+	private static volatile ExecutionMode executionMode =
+		modeFromProperty(System.getProperty("agent.executionMode"));
+
+	//Coalescing wake-up signal.  DIRTY is set by stateChanged() and
+	//cleared at the start of each scheduler pass; however many messages
+	//arrive while it is set, they cost at most one more pass.  RUNNING is
+	//set along with the DIRTY that wakes an idle agent and stays set
+	//until a pass ends with nothing new, so only one thread ever runs the
+	//scheduler.  HELD is set while the agent is not STARTED: messages
+	//only mark it DIRTY, and a pass under way ends at the next chance.
+	//Starts out DIRTY so startThread() runs a first pass.
+	private static final int DIRTY = 1, RUNNING = 2, HELD = 4;
+	private final AtomicInteger wake = new AtomicInteger(DIRTY | HELD);
+	private volatile Lifecycle lifecycle = Lifecycle.NEW;
+	//Bumped by stopThread(); schedule() messages from before are dropped
+	private volatile int timerGeneration = 0;
+	private final AtomicBoolean releasePending = new AtomicBoolean(false);
+	private final LongAdder coalescedWakeups = new LongAdder();
+	//Told when the agent starts and stops RUNNING, so a simulated clock
+	//knows when all the agents have gone idle.  Messages that arrive
+	//while a pass is blocked in the clock do not count as new work.
+	//A grouped agent leaves this to its group, which counts its loop.
+	private final Clock clock = Clock.get();
+	//Delayed self-messages from schedule(), run by the scheduler at the
+	//start of a pass rather than on the timer thread.
+	private final Mailbox<TimerMessage> timerBox = new Mailbox<TimerMessage>();
+	private final List<TimerMessage> dueTimers = new ArrayList<TimerMessage>();
 	private AgentThread agentThread;
+	private volatile Thread schedulerThread; // parked here when idle
+
+	//Scheduler statistics; null unless MetricsRegistry was enabled when
+	//the agent started.
+	private volatile AgentMetrics metrics;
+	//Pass timing and recent messages for the Watchdog; null unless it
+	//was enabled when the agent started.
+	private volatile Watchdog.Watch watch;
+
+	//Mode of this agent, fixed by its first startThread().  POOLED: the
+	//agent is queued on the AgentScheduler when it becomes RUNNING.
+	private ExecutionMode mode;
+	private volatile boolean pooled = false;
+	private volatile AgentGroup group; // shares its scheduler loop, if set
+	private volatile Priority priority = Priority.NORMAL;
+	private final AgentScheduler.Task pooledPass = new AgentScheduler.Task() {
+		public void run() {
+			runPooledPass();
+		}
+	};
+
+	//Names this agent in a Trace.  random() is not seeded: a run is
+	//repeated by replaying its trace, not by reusing seeds.
+	private final int traceId = Trace.register();
+	private final Random random = new Random();
 
 	protected Agent() {
 	}
 
+	/** An agent of the given scheduling class. */
+	protected Agent(Priority priority) {
+		this.priority = priority;
+	}
+
 	/** This should be called whenever state has changed that might cause
 	 * the agent to do something. */
 	protected void stateChanged() {
-		stateChange.release(); 
+		Trace.send(traceId);
+		Watchdog.Watch w = watch;
+		if (w != null) {
+			w.message();
+		}
+		AgentMetrics m = metrics;
+		if (m != null) {
+			m.messageArrived(System.nanoTime());
+		}
+		int s;
+		do {
+			s = wake.get();
+			if ((s & DIRTY) != 0) {
+				// A pass is already owed; it will see this change too.
+				coalescedWakeups.increment();
+				if (Flight.on) {
+					Flight.message(this, false);
+				}
+				return;
+			}
+		} while (!wake.compareAndSet(s, (s & HELD) != 0 ? s | DIRTY : s | DIRTY | RUNNING));
+		if (Flight.on) {
+			Flight.message(this, true);
+		}
+		if ((s & (RUNNING | HELD)) != 0) {
+			return; // the pass under way goes round again, or startThread() runs one
+		}
+		if (group == null) {
+			clock.agentBusy();
+		}
+		dispatch();
+	}
+
+	/** Hand a newly RUNNING agent to whatever runs its scheduler. */
+	private void dispatch() {
+		AgentGroup g = group;
+		if (g != null) {
+			g.ready(this);
+		} else if (pooled) {
+			AgentScheduler.submit(pooledPass, priority);
+		} else {
+			Thread t = schedulerThread;
+			if (t != null) {
+				LockSupport.unpark(t);
+			}
+		}
+	}
+
+	/** @return number of stateChanged() calls that did not cost an extra
+	 * scheduler pass because one was already pending */
+	public long getCoalescedWakeups() {
+		return coalescedWakeups.sum();
+	}
+
+	/** Send this agent a message, delayMillis from now.  The clock's timer
+	 * only posts it; task itself runs on the agent's own scheduler, just
+	 * before the next call to pickAndExecuteAnAction(), so it may touch
+	 * the agent's state like any other part of the scheduler.
+	 * @return handle to cancel the message before it has run */
+	protected Clock.Timeout schedule(Runnable task, long delayMillis) {
+		TimerMessage m = new TimerMessage(task);
+		m.timeout = clock.schedule(m, delayMillis);
+		return m;
+	}
+
+	/** A random number for the agent's own use.  Draws are logged when a
+	 * Trace is recorded and handed back when it is replayed, so use this
+	 * rather than Math.random() or a Random of your own.
+	 * @return a number from 0 up to but not including n */
+	protected int random(int n) {
+		return Trace.random(traceId, random.nextInt(n));
 	}
 
 	/** Agents must implement this scheduler to perform any actions appropriate for the
@@ -41,73 +196,428 @@ public abstract class Agent {
 		print(msg, null);
 	}
 
-	/** Print message with exception stack trace */
+	/** Print message with exception stack trace.  Goes through AgentLog,
+	 * which writes it out on its own thread. */
 	protected void print(String msg, Throwable e) {
-		StringBuffer sb = new StringBuffer();
-		sb.append(getName());
-		sb.append(": ");
-		sb.append(msg);
-		sb.append("\n");
-		if (e != null) {
-			sb.append(StringUtil.stackTraceString(e));
+		AgentLog.log(this, e == null ? AgentLog.Level.INFO : AgentLog.Level.ERROR,
+			     msg, e);
+	}
+
+	/** Print a String.format message at the given level.  Nothing is
+	 * formatted unless the level is enabled for this agent. */
+	protected void log(AgentLog.Level level, String format, Object... args) {
+		AgentLog.log(this, level, format, args);
+	}
+
+	/** Select how agents started after this call run their schedulers. */
+	public static void setExecutionMode(ExecutionMode mode) {
+		if (mode == ExecutionMode.VIRTUAL && !VirtualThreads.isSupported()) {
+			System.out.println("Agent: virtual threads are not available in this JVM, using platform threads");
+			mode = ExecutionMode.PLATFORM;
 		}
-		System.out.print(sb.toString());
+		executionMode = mode;
 	}
 
-	/** Start agent scheduler thread.  Should be called once at init time. */
+	/** @return the mode startThread() will use */
+	public static ExecutionMode getExecutionMode() {
+		return executionMode;
+	}
+
+	private static ExecutionMode modeFromProperty(String value) {
+		if (value != null && value.equalsIgnoreCase("virtual")
+				&& VirtualThreads.isSupported()) {
+			return ExecutionMode.VIRTUAL;
+		}
+		if (value != null && value.equalsIgnoreCase("pooled")) {
+			return ExecutionMode.POOLED;
+		}
+		return ExecutionMode.PLATFORM;
+	}
+
+	/** Start agent scheduler thread.  Should be called once at init
+	 * time, and again to bring a parked, stopped or released agent back;
+	 * messages it was sent in the meantime are then acted on. */
 	public synchronized void startThread() {
-		if (agentThread == null) {
-			agentThread = new AgentThread(getName());
+		if (lifecycle == Lifecycle.STARTED) {
+			if (agentThread != null) {
+				agentThread.interrupt();//don't worry about this for now
+			}
+			return;
+		}
+		if (lifecycle == Lifecycle.NEW) {
+			mode = executionMode;
+			pooled = mode == ExecutionMode.POOLED;
+		}
+		lifecycle = Lifecycle.STARTED;
+		releasePending.set(false);
+		if (metrics == null) {
+			metrics = MetricsRegistry.register(this);
+		}
+		if (watch == null) {
+			watch = Watchdog.register(this);
+		}
+		// Let go of HELD, and claim a pass if messages are waiting (DIRTY
+		// has been set since construction) and none is under way.
+		int s, n;
+		do {
+			s = wake.get();
+			n = s & ~HELD;
+			if ((s & (DIRTY | RUNNING)) == DIRTY) {
+				n |= RUNNING;
+			}
+		} while (!wake.compareAndSet(s, n));
+		boolean claimed = (n & ~s & RUNNING) != 0;
+		if (claimed && group == null) {
+			clock.agentBusy();
+		}
+		if (group != null) {
+			group.start();
+			if (claimed) {
+				group.ready(this);
+			}
+		} else if (pooled) {
+			if (claimed) {
+				AgentScheduler.submit(pooledPass, priority);
+			}
+		} else if (agentThread == null) {
+			agentThread = new AgentThread(getName(), mode);
 			agentThread.start(); // causes the run method to execute in the AgentThread below
 		} else {
-			agentThread.interrupt();//don't worry about this for now
+			LockSupport.unpark(schedulerThread); // it had not gone yet; keep it
+		}
+	}
+
+	/** Stop running the scheduler, but keep the agent's state and take
+	 * messages as usual; startThread() picks up where it left off.  A
+	 * pass under way is finished first.  The agent's thread, if it has
+	 * one, ends. */
+	public synchronized void park() {
+		hold(Lifecycle.PARKED);
+	}
+
+	/** Stop agent scheduler thread.  Like park(), but messages already
+	 * set up with schedule() are dropped. */
+	public synchronized void stopThread() {
+		hold(Lifecycle.STOPPED);
+	}
+
+	/** Stop the agent and hand it back to its owner for reuse.  Once the
+	 * pass under way, if any, has finished, released() is called. */
+	public synchronized void release() {
+		if (lifecycle == Lifecycle.RELEASED) {
+			return;
+		}
+		hold(Lifecycle.RELEASED);
+		releasePending.set(true);
+		if ((wake.get() & RUNNING) == 0) {
+			fireReleased();
+		}
+	}
+
+	/** @return where the agent is in its life */
+	public Lifecycle getLifecycle() {
+		return lifecycle;
+	}
+
+	/** @return the group whose loop runs this agent, or null */
+	public AgentGroup getGroup() {
+		return group;
+	}
+
+	/** Called by AgentGroup.add(). */
+	synchronized void setGroup(AgentGroup g) {
+		if (lifecycle != Lifecycle.NEW) {
+			throw new IllegalStateException(getName() + " has already been started");
+		}
+		group = g;
+	}
+
+	/** @return this agent's scheduling class */
+	public Priority getPriority() {
+		return priority;
+	}
+
+	/** Change the scheduling class; counts from the next time the agent
+	 * is queued. */
+	public void setPriority(Priority priority) {
+		this.priority = priority;
+	}
+
+	/** Called once after release(), when the agent's last pass has ended
+	 * and nothing runs it any more.  An agent pool puts it back on its
+	 * free list here.  Default does nothing. */
+	protected void released() {
+	}
+
+	private void hold(Lifecycle l) {
+		if (lifecycle == Lifecycle.NEW) {
+			lifecycle = l;
+			return; // HELD since construction
+		}
+		if (l != Lifecycle.PARKED) {
+			timerGeneration++;
+		}
+		lifecycle = l;
+		int s;
+		do {
+			s = wake.get();
+		} while (!wake.compareAndSet(s, s | HELD));
+		Thread t = schedulerThread;
+		if (t != null) {
+			LockSupport.unpark(t); // so an idle thread can end
+		}
+		if (group != null) {
+			group.held();
+		}
+	}
+
+	private void fireReleased() {
+		if (releasePending.compareAndSet(true, false)) {
+			released();
+		}
+	}
+
+	/** One scheduler pass by the thread that holds RUNNING.  Clears
+	 * DIRTY, runs the scheduler until it returns false, then gives up
+	 * RUNNING unless a state change arrived in the meantime and the
+	 * agent is not HELD.  A pass that was already queued when the agent
+	 * became HELD does not run at all.
+	 * @return true if another pass is owed; RUNNING is still held */
+	boolean runPass() {
+		boolean turn = Trace.enter(traceId); // one pass at a time while tracing
+		try {
+			// Changes from here on are seen by this pass or cost another.
+			// Only DIRTY is cleared: HELD must survive for the checks below.
+			boolean held;
+			int s;
+			do {
+				s = wake.get();
+				held = (s & HELD) != 0;
+			} while (!held && !wake.compareAndSet(s, s & ~DIRTY));
+			if (!held) {
+				runWatched();
+			}
+			do {
+				s = wake.get();
+				if ((s & (DIRTY | HELD)) == DIRTY) {
+					return true;
+				}
+			} while (!wake.compareAndSet(s, s & ~RUNNING));
+			if (group == null) {
+				clock.agentIdle();
+			}
+			if ((s & HELD) != 0) {
+				fireReleased();
+			}
+			return false;
+		} finally {
+			if (turn) {
+				Trace.leave();
+			}
 		}
 	}
 
-	/** Stop agent scheduler thread. */
-	//In this implementation, nothing calls stopThread().
-	//When we have a user interface to agents, this can be called.
-	public void stopThread() {
-		if (agentThread != null) {
-			agentThread.stopAgent();
-			agentThread = null;
+	// The pass itself, watched by the Watchdog if it is on
+	private void runWatched() {
+		Watchdog.Watch w = watch;
+		if (w != null) {
+			w.passStarted();
+			Watchdog.setRunning(this);
+		}
+		try {
+			if (runScheduler()) {
+				// Cut short by HELD: owe startThread() a pass
+				int s;
+				do {
+					s = wake.get();
+				} while (!wake.compareAndSet(s, s | DIRTY));
+			}
+		} catch (Exception e) {
+			print("Unexpected exception caught in Agent scheduler:", e);
+		} finally {
+			if (w != null) {
+				w.passEnded();
+				Watchdog.setRunning(null);
+			}
 		}
 	}
 
-	/** Agent scheduler thread, calls respondToStateChange() whenever a state
-	 * change has been signalled. */
-	private class AgentThread extends Thread {
-		private volatile boolean goOn = false;
+	private boolean isHeld() {
+		return (wake.get() & HELD) != 0;
+	}
 
-		private AgentThread(String name) {
-			super(name);
+	/** One turn of a POOLED agent on an AgentScheduler worker.  If a
+	 * state change arrived during the pass, the agent goes to the back of
+	 * the queue rather than keeping the worker. */
+	private void runPooledPass() {
+		if (runPass()) {
+			AgentScheduler.submit(pooledPass, priority);
+		}
+	}
+
+	/** Call the scheduler until it returns false, timing each call when
+	 * metrics are on or a flight recording is running.  Stops early once
+	 * the agent is HELD.  The caller has already cleared DIRTY.
+	 * @return true if it stopped early, with actions maybe left to do */
+	private boolean runScheduler() {
+		runTimers();
+		AgentMetrics m = metrics;
+		boolean fired;
+		if (m == null && !Flight.on) {
+			do {
+				fired = pickAndExecuteAnAction();
+			} while (fired && !isHeld());
+			return fired;
+		}
+		Object pass = Flight.on ? Flight.begin(Flight.PASS) : null;
+		long t0 = System.nanoTime();
+		if (m != null) {
+			m.passStarted(t0);
+		}
+		boolean first = true;
+		int actions = 0;
+		do {
+			Object action = pass != null ? Flight.begin(Flight.ACTION) : null;
+			fired = pickAndExecuteAnAction();
+			if (action != null) {
+				Flight.acted(action, this, fired);
+			}
+			if (fired) {
+				actions++;
+			}
+			if (m != null) {
+				long t1 = System.nanoTime();
+				m.called(fired, t1 - t0, first);
+				first = false;
+				t0 = t1;
+			}
+		} while (fired && !isHeld());
+		if (pass != null) {
+			Flight.passed(pass, this, actions);
+		}
+		return fired;
+	}
+
+	/** Run the delayed messages that have come due. */
+	private void runTimers() {
+		if (timerBox.isEmpty()) {
+			return;
+		}
+		timerBox.drainTo(dueTimers);
+		for (int i = 0; i < dueTimers.size(); i++) {
+			try {
+				Object timer = Flight.on ? Flight.begin(Flight.TIMER) : null;
+				dueTimers.get(i).deliver();
+				if (timer != null) {
+					Flight.timed(timer, this);
+				}
+			} catch (RuntimeException e) {
+				print("Unexpected exception caught in scheduled message:", e);
+			}
+		}
+		dueTimers.clear();
+	}
+
+	/** @return this agent's scheduler statistics, or null if it is not
+	 * being measured */
+	public AgentMetrics getMetrics() {
+		return metrics;
+	}
+
+	/** @return what the Watchdog keeps on this agent, or null */
+	Watchdog.Watch getWatch() {
+		return watch;
+	}
+
+	/** A message from schedule().  The clock runs it to post it to the
+	 * agent; the agent's scheduler then delivers it. */
+	private class TimerMessage implements Runnable, Clock.Timeout {
+		private final Runnable task;
+		private final AtomicBoolean pending = new AtomicBoolean(true);
+		private final int generation = timerGeneration;
+		private volatile Clock.Timeout timeout;
+
+		private TimerMessage(Runnable task) {
+			this.task = task;
 		}
 
 		public void run() {
-			goOn = true;
-
-			while (goOn) {
-				try {
-				    // The agent sleeps here until someone calls, stateChanged(),
-				    // which causes a call to stateChange.give(), which wakes up agent.
-					stateChange.acquire();
-						//The next while clause is the key to the control flow.
-						//When the agent wakes up it will call respondToStateChange()
-						//repeatedly until it returns FALSE.
-						//You will see that pickAndExecuteAnAction() is the agent scheduler.
-					while (pickAndExecuteAnAction());
-				} catch (InterruptedException e) {
-					// no action - expected when stopping or when deadline changed
-				} catch (Exception e) {
-					print("Unexpected exception caught in Agent thread:", e);
+			timerBox.post(this);
+			stateChanged();
+		}
+
+		public boolean cancel() {
+			timeout.cancel();
+			return pending.compareAndSet(true, false);
+		}
+
+		private void deliver() {
+			if (pending.compareAndSet(true, false) && generation == timerGeneration) {
+				Trace.timer(traceId);
+				task.run();
+			}
+		}
+	}
+
+	/** Agent scheduler loop, calls respondToStateChange() whenever a state
+	 * change has been signalled.  Runs on a platform or virtual thread
+	 * depending on the execution mode, and ends once the agent is HELD
+	 * with no pass under way. */
+	private class AgentThread implements Runnable {
+		private final Thread thread;
+
+		private AgentThread(String name, ExecutionMode mode) {
+			if (mode == ExecutionMode.VIRTUAL) {
+				thread = VirtualThreads.newThread(name, this);
+			} else {
+				thread = new Thread(this, name);
+			}
+			schedulerThread = thread;
+		}
+
+		private void start() {
+			thread.start();
+		}
+
+		private void interrupt() {
+			thread.interrupt();
+		}
+
+		public void run() {
+			while (true) {
+				int s = wake.get();
+				if ((s & RUNNING) != 0) {
+					//The next while clause is the key to the control flow.
+					//When the agent wakes up it will call respondToStateChange()
+					//repeatedly until it returns FALSE.
+					//You will see that pickAndExecuteAnAction() is the agent scheduler.
+					while (runPass());
+					continue;
+				}
+				if ((s & HELD) != 0 && exit()) {
+					return;
 				}
+			    // The agent sleeps here until someone calls, stateChanged(),
+			    // which makes it RUNNING and unparks it.
+				LockSupport.park(this);
+				// clear an interrupt so the next park blocks again
+				Thread.interrupted();
 			}
 		}
 
-		private void stopAgent() {
-			goOn = false;
-			this.interrupt();
+		//startThread() holds the same lock, so it either sees this thread
+		//gone or this thread sees HELD cleared and stays.
+		private boolean exit() {
+			synchronized (Agent.this) {
+				if ((wake.get() & (HELD | RUNNING)) != HELD) {
+					return false;
+				}
+				if (agentThread == this) {
+					agentThread = null;
+					schedulerThread = null;
+				}
+				return true;
+			}
 		}
 	}
 }
-
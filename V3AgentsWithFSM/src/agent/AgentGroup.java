@@ -0,0 +1,228 @@
+package agent;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Agents that share one scheduler loop.  Agents that keep messaging each
+ * other, like the cook and its markets, spend much of their time handing
+ * wake-ups from one thread to another.  Put them in a group and one
+ * thread (or, for POOLED agents, one AgentScheduler turn at a time) runs
+ * the passes of all of them: a message from one member to another only
+ * queues the receiver behind the sender on the same thread, with no
+ * unpark and no other core involved.  Messages from outside the group
+ * wake the group's loop the way they would wake an agent's.
+ *
+ * Members take turns, one pass each; one that still has work after its
+ * pass goes to the back.  A member blocked in an action (an animation
+ * sleep, for instance) holds up the whole group, so keep such agents
+ * out of groups with agents that must stay responsive.  To a simulated
+ * clock the group is one agent, busy from the moment its loop is woken
+ * until it finds no member ready: a member sleeping in the clock idles
+ * the whole group, and messages to the others then do not count as work
+ * until it wakes.
+ *
+ * add() agents before they are started.  The group runs the way agents
+ * started at the time of its first start() would (see
+ * Agent.setExecutionMode()), and in POOLED mode at the most urgent
+ * class of its members.
+ */
+public class AgentGroup {
+	private static final List<AgentGroup> all = new CopyOnWriteArrayList<AgentGroup>();
+
+	private final String name;
+	private final List<Agent> members = new CopyOnWriteArrayList<Agent>();
+	// Members owed a pass, in the order they asked
+	private final Queue<Agent> ready = new ConcurrentLinkedQueue<Agent>();
+	// Set while the loop has been woken and has not yet found ready empty;
+	// the clock counts the group busy for as long
+	private final AtomicBoolean active = new AtomicBoolean(false);
+	private final Clock clock = Clock.get();
+	private volatile Thread runner; // the thread running the loop, if any
+	private volatile Agent.Priority priority = Agent.Priority.BACKGROUND;
+	private boolean pooled; // guarded by this
+	private Thread thread; // guarded by this; the group's own thread, when not pooled
+	private final LongAdder local = new LongAdder();
+	private final LongAdder remote = new LongAdder();
+
+	private final AgentScheduler.Task pooledTurn = new AgentScheduler.Task() {
+		public void run() {
+			runPooledTurn();
+		}
+	};
+
+	public AgentGroup(String name) {
+		this.name = name;
+		all.add(this);
+	}
+
+	/** Make agent a member.  Call before it is first started. */
+	public void add(Agent agent) {
+		agent.setGroup(this);
+		members.add(agent);
+		if (agent.getPriority().ordinal() < priority.ordinal()) {
+			priority = agent.getPriority();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/** @return the members, in the order they were added */
+	public List<Agent> getMembers() {
+		return Collections.unmodifiableList(members);
+	}
+
+	/** @return wake-ups sent from inside the group, which cost no handoff */
+	public long getLocalWakeups() {
+		return local.sum();
+	}
+
+	/** @return wake-ups sent from outside, which had to wake the loop
+	 * unless it was running anyway */
+	public long getRemoteWakeups() {
+		return remote.sum();
+	}
+
+	/** @return every group made so far, in creation order */
+	public static List<AgentGroup> getAll() {
+		return Collections.unmodifiableList(all);
+	}
+
+	/** Called by a member's startThread(): make sure something runs the
+	 * loop. */
+	synchronized void start() {
+		if (thread == null && !pooled) {
+			if (Agent.getExecutionMode() == Agent.ExecutionMode.POOLED) {
+				pooled = true;
+				return;
+			}
+			thread = Agent.getExecutionMode() == Agent.ExecutionMode.VIRTUAL
+				? VirtualThreads.newThread(name, loop)
+				: new Thread(loop, name);
+			thread.start();
+		}
+	}
+
+	/** A member has become RUNNING: queue it for a pass. */
+	void ready(Agent agent) {
+		ready.add(agent);
+		if (Thread.currentThread() == runner) {
+			local.increment(); // the loop will get to it
+			return;
+		}
+		remote.increment();
+		if (activate()) {
+			wake();
+		}
+	}
+
+	private void wake() {
+		Thread t;
+		synchronized (this) {
+			if (pooled) {
+				AgentScheduler.submit(pooledTurn, priority);
+				return;
+			}
+			t = thread;
+		}
+		LockSupport.unpark(t);
+	}
+
+	/** Run passes until no member has work, at most limit of them.
+	 * @return true if members still had work */
+	private boolean drain(int limit) {
+		runner = Thread.currentThread();
+		try {
+			Agent a;
+			for (int n = 0; n < limit && (a = ready.poll()) != null; n++) {
+				if (a.runPass()) {
+					ready.add(a); // owed another pass; the others go first
+				}
+			}
+			return !ready.isEmpty();
+		} finally {
+			runner = null;
+		}
+	}
+
+	// One AgentScheduler turn: a pass for each member, at most, then back
+	// in the queue if there is more, as a pooled agent would
+	private void runPooledTurn() {
+		for (;;) {
+			if (drain(Math.max(1, members.size()))) {
+				AgentScheduler.submit(pooledTurn, priority);
+				return;
+			}
+			deactivate();
+			if (ready.isEmpty() || !activate()) {
+				return;
+			}
+		}
+	}
+
+	// The loop has been woken: busy, to the clock, until deactivate()
+	private boolean activate() {
+		if (active.compareAndSet(false, true)) {
+			clock.agentBusy();
+			return true;
+		}
+		return false;
+	}
+
+	// The loop found nothing ready.  The thread may also get here on its
+	// first turn without having been woken, so only idle if it was.
+	private void deactivate() {
+		if (active.getAndSet(false)) {
+			clock.agentIdle();
+		}
+	}
+
+	/** Called by a member's park(), stopThread() or release(), so the
+	 * group's thread can end once no member is started. */
+	void held() {
+		Thread t;
+		synchronized (this) {
+			t = thread;
+		}
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	//start() holds the same lock, so it either sees the thread gone or
+	//the thread sees the member it is starting
+	private synchronized boolean exit() {
+		if (!ready.isEmpty()) {
+			return false;
+		}
+		for (Agent a : members) {
+			if (a.getLifecycle() == Agent.Lifecycle.STARTED) {
+				return false;
+			}
+		}
+		thread = null;
+		return true;
+	}
+
+	private final Runnable loop = new Runnable() {
+		public void run() {
+			for (;;) {
+				drain(Integer.MAX_VALUE);
+				deactivate();
+				if (!ready.isEmpty() && activate()) {
+					continue;
+				}
+				if (exit()) {
+					return;
+				}
+				// Sleeps here until ready() or held() unparks it
+				LockSupport.park(this);
+				Thread.interrupted();
+			}
+		}
+	};
+}
@@ -0,0 +1,282 @@
+package agent;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Logging backend for Agent.print().  Agents hand records to a bounded
+ * ring buffer and return at once; a single writer thread formats them
+ * and writes them out, so agents no longer queue on the PrintStream lock.
+ *
+ * Records are filtered by level, globally or per agent name, before
+ * anything is copied.  The agent's name is taken when the record is
+ * published, since a pooled agent may be given out again under another
+ * name before the writer gets to it; the rest of the formatting
+ * (String.format arguments, stack traces) only happens on the writer
+ * thread.  When the
+ * ring is full a record is either dropped and counted, or the agent
+ * waits for space, depending on the overflow policy.
+ */
+public class AgentLog {
+	public enum Level {DEBUG, INFO, WARN, ERROR, OFF};
+	public enum OverflowPolicy {DROP, BLOCK};
+
+	/** One slot of the ring.  Slots are reused, never reallocated. */
+	private static class Record {
+		String name; // the agent's, when the record was published
+		String msg;
+		Object[] args; // non-null means msg is a format string
+		Throwable e;
+	}
+
+	private static final int capacity =
+		Integer.highestOneBit(Math.max(2, Integer.getInteger("agent.log.capacity", 8192)));
+	private static final int mask = capacity - 1;
+	private static final Record[] ring = new Record[capacity];
+	// Per slot: equals the claim position when free, position+1 when filled
+	private static final AtomicLongArray sequence = new AtomicLongArray(capacity);
+	private static final AtomicLong tail = new AtomicLong();
+	private static long head = 0; // writer side, guarded by drainLock
+	private static final Object drainLock = new Object();
+
+	private static volatile Level defaultLevel = Level.INFO;
+	private static final ConcurrentHashMap<String, Level> agentLevels =
+		new ConcurrentHashMap<String, Level>();
+	private static volatile OverflowPolicy policy = OverflowPolicy.BLOCK;
+	private static volatile boolean async =
+		!"false".equalsIgnoreCase(System.getProperty("agent.log.async"));
+	private static volatile PrintStream out = System.out;
+	private static final LongAdder dropped = new LongAdder();
+
+	private static volatile boolean writerIdle = false;
+	private static Thread writer;
+	// BLOCK policy: agents waiting for space wait here until the writer
+	// has freed some
+	private static final Object spaceLock = new Object();
+	private static volatile int blocked = 0;
+
+	static {
+		for (int i = 0; i < capacity; i++) {
+			ring[i] = new Record();
+			sequence.set(i, i);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread("AgentLog-flush") {
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	/** Don't construct. */
+	private AgentLog() {
+	}
+
+	/** @return true if a record at this level from this agent would be kept */
+	public static boolean isLoggable(Agent agent, Level level) {
+		Level min = defaultLevel;
+		if (!agentLevels.isEmpty() && agent != null) {
+			Level l = agentLevels.get(agent.getName());
+			if (l != null) {
+				min = l;
+			}
+		}
+		return level != Level.OFF && level.ordinal() >= min.ordinal();
+	}
+
+	/** Log a finished message, with an optional exception. */
+	public static void log(Agent agent, Level level, String msg, Throwable e) {
+		if (isLoggable(agent, level)) {
+			publish(agent, msg, null, e);
+		}
+	}
+
+	/** Log a String.format message.  The string is only built by the
+	 * writer, and not at all if the record is filtered out. */
+	public static void log(Agent agent, Level level, String format, Object... args) {
+		if (isLoggable(agent, level)) {
+			publish(agent, format, args, null);
+		}
+	}
+
+	/** Set the level for agents with no level of their own. */
+	public static void setLevel(Level level) {
+		defaultLevel = level;
+	}
+
+	/** Set the level for the agent(s) with this name; null removes it. */
+	public static void setLevel(String agentName, Level level) {
+		if (level == null) {
+			agentLevels.remove(agentName);
+		} else {
+			agentLevels.put(agentName, level);
+		}
+	}
+
+	/** Choose what happens when the ring buffer is full. */
+	public static void setOverflowPolicy(OverflowPolicy p) {
+		policy = p;
+	}
+
+	/** With async off, records are written on the caller's thread. */
+	public static void setAsync(boolean b) {
+		if (!b) {
+			flush();
+		}
+		async = b;
+	}
+
+	/** Send output somewhere other than System.out. */
+	public static void setOutput(PrintStream stream) {
+		flush();
+		out = stream;
+	}
+
+	/** @return records thrown away because the ring was full */
+	public static long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	/** Write out everything queued so far. */
+	public static void flush() {
+		synchronized (drainLock) {
+			drain();
+			out.flush();
+		}
+	}
+
+	private static void publish(Agent agent, String msg, Object[] args,
+				    Throwable e) {
+		if (!async) {
+			PrintStream o = out;
+			synchronized (o) {
+				o.print(format(nameOf(agent), msg, args, e));
+			}
+			return;
+		}
+		startWriter();
+		long pos;
+		while (true) {
+			pos = tail.get();
+			long seq = sequence.get((int) pos & mask);
+			if (seq == pos) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+			} else if (seq < pos) { // ring is full
+				if (policy == OverflowPolicy.DROP) {
+					dropped.increment();
+					return;
+				}
+				awaitSpace(pos);
+			}
+		}
+		Record r = ring[(int) pos & mask];
+		r.name = nameOf(agent);
+		r.msg = msg;
+		r.args = args;
+		r.e = e;
+		sequence.set((int) pos & mask, pos + 1);
+		if (writerIdle) {
+			wakeWriter();
+		}
+	}
+
+	private static void awaitSpace(long pos) {
+		synchronized (spaceLock) {
+			blocked++;
+			try {
+				while (sequence.get((int) pos & mask) < pos) {
+					wakeWriter();
+					spaceLock.wait(10);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				blocked--;
+			}
+		}
+	}
+
+	private static void wakeWriter() {
+		writerIdle = false;
+		LockSupport.unpark(writer);
+	}
+
+	private static synchronized void startWriter() {
+		if (writer != null) {
+			return;
+		}
+		writer = new Thread("AgentLog-writer") {
+			public void run() {
+				while (true) {
+					boolean wrote;
+					synchronized (drainLock) {
+						wrote = drain();
+						if (wrote) {
+							out.flush();
+						}
+					}
+					if (wrote && blocked > 0) {
+						synchronized (spaceLock) {
+							spaceLock.notifyAll();
+						}
+					}
+					if (!wrote) {
+						writerIdle = true;
+						if (isEmpty()) {
+							LockSupport.parkNanos(10000000);
+						}
+						writerIdle = false;
+					}
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private static boolean isEmpty() {
+		synchronized (drainLock) {
+			return sequence.get((int) head & mask) != head + 1;
+		}
+	}
+
+	/** Write every filled slot.  Caller holds drainLock. */
+	private static boolean drain() {
+		boolean wrote = false;
+		while (true) {
+			int i = (int) head & mask;
+			if (sequence.get(i) != head + 1) {
+				return wrote;
+			}
+			Record r = ring[i];
+			String line = format(r.name, r.msg, r.args, r.e);
+			r.name = null;
+			r.msg = null;
+			r.args = null;
+			r.e = null;
+			sequence.set(i, head + capacity);
+			head++;
+			out.print(line);
+			wrote = true;
+		}
+	}
+
+	private static String nameOf(Agent agent) {
+		return agent == null ? "?" : agent.getName();
+	}
+
+	private static String format(String name, String msg, Object[] args, Throwable e) {
+		StringBuffer sb = new StringBuffer();
+		sb.append(name);
+		sb.append(": ");
+		sb.append(args == null ? msg : String.format(msg, args));
+		sb.append("\n");
+		if (e != null) {
+			sb.append(StringUtil.stackTraceString(e));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,127 @@
+package agent;
+
+/**
+ * Scheduler statistics for one agent, kept by the agent's own scheduler
+ * loop while MetricsRegistry is enabled.
+ *
+ * A pass is one wake-up: the scheduler is called until it returns false.
+ * An idle pass is a wake-up whose first call found nothing to do.
+ * Message latency runs from each stateChanged() (each message, or change
+ * of the agent's own) to the start of the next pass: that is, how long
+ * it waited to be looked at.  Every one counts, including those that
+ * arrive while a pass is running or a wake-up is already on its way.
+ */
+public class AgentMetrics {
+	private final String agentName;
+	private final String agentType;
+	private final Agent.Priority priority;
+	private final long createdAt = System.nanoTime();
+
+	private long passes;
+	private long idlePasses;
+	private long calls; // calls to pickAndExecuteAnAction()
+	private long actions; // calls that returned true
+	private final Histogram pickTime = new Histogram();
+	private final Histogram messageLatency = new Histogram();
+	// nanoTimes of stateChanged() calls not yet seen by a pass, guarded
+	// by itself; written by any thread, emptied by the scheduler
+	private final long[] arrivals = new long[ARRIVALS];
+	private int arrived;
+	private long unmeasured;
+
+	private static final int ARRIVALS = 1024;
+
+	AgentMetrics(Agent agent) {
+		agentName = agent.getName();
+		agentType = StringUtil.shortName(agent.getClass());
+		priority = agent.getPriority();
+	}
+
+	/** A stateChanged() at now; the next pass to start will have seen it. */
+	void messageArrived(long now) {
+		synchronized (arrivals) {
+			if (arrived < ARRIVALS) {
+				arrivals[arrived++] = now;
+			} else {
+				unmeasured++; // the scheduler is far behind; the rest tell
+			}
+		}
+	}
+
+	/** Start of a pass: every message so far waited until now. */
+	void passStarted(long now) {
+		passes++;
+		synchronized (arrivals) {
+			for (int i = 0; i < arrived; i++) {
+				messageLatency.record(now - arrivals[i]);
+			}
+			arrived = 0;
+		}
+	}
+
+	/** One call to the scheduler, with its result and duration. */
+	void called(boolean fired, long nanos, boolean firstOfPass) {
+		calls++;
+		if (fired) {
+			actions++;
+		} else if (firstOfPass) {
+			idlePasses++;
+		}
+		pickTime.record(nanos);
+	}
+
+	public String getAgentName() {
+		return agentName;
+	}
+
+	public String getAgentType() {
+		return agentType;
+	}
+
+	/** @return the agent's scheduling class when it was started */
+	public Agent.Priority getPriority() {
+		return priority;
+	}
+
+	public long getPasses() {
+		return passes;
+	}
+
+	public long getIdlePasses() {
+		return idlePasses;
+	}
+
+	public long getCalls() {
+		return calls;
+	}
+
+	public long getActions() {
+		return actions;
+	}
+
+	/** @return time per pickAndExecuteAnAction() call, in ns */
+	public Histogram getPickTime() {
+		return pickTime;
+	}
+
+	/** @return time from each stateChanged() to the start of the next
+	 * pass, in ns */
+	public Histogram getMessageLatency() {
+		return messageLatency;
+	}
+
+	/** @return stateChanged() calls left out of getMessageLatency()
+	 * because ARRIVALS of them were already waiting */
+	public long getUnmeasured() {
+		synchronized (arrivals) {
+			return unmeasured;
+		}
+	}
+
+	/** @return share of wall time since creation spent inside the
+	 * scheduler, as a percentage */
+	public double getBusyPercent() {
+		long elapsed = System.nanoTime() - createdAt;
+		return elapsed <= 0 ? 0 : 100.0 * pickTime.getTotal() / elapsed;
+	}
+}
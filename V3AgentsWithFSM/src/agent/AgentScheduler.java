@@ -0,0 +1,149 @@
+package agent;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Shared run queue for agents started in POOLED mode.  A fixed set of
+ * worker threads (by default one per core, or -Dagent.poolSize) runs the
+ * passes of agents whose state has changed.  Agent makes sure an agent
+ * is queued at most once at a time, so no agent's scheduler ever runs on
+ * two workers at once.
+ *
+ * Agents wait in one queue per Agent.Priority, and a free worker takes
+ * the CRITICAL agent that has waited longest, else the NORMAL one, else
+ * the BACKGROUND one.  So that a busy host and cook cannot starve the
+ * customers, an agent that has waited longer than the aging time of its
+ * class (-Dagent.aging.normal and -Dagent.aging.background, in
+ * milliseconds) goes first regardless.  How long agents of each class
+ * waited for a worker is kept for MetricsRegistry.dump().
+ *
+ * Actions that sleep (the animation calls, for instance) hold a worker
+ * while they sleep, so the pool size should be raised for GUI runs.
+ */
+public class AgentScheduler {
+	private static final int poolSize =
+		Integer.getInteger("agent.poolSize",
+				   Runtime.getRuntime().availableProcessors());
+
+	// asyncMode: workers take their own tasks FIFO, which suits
+	// event-style tasks that are never joined.
+	private static final ForkJoinPool pool =
+		new ForkJoinPool(poolSize,
+				 ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+				 null, true);
+
+	/** One agent's pass, queued by submit(). */
+	static abstract class Task implements Runnable {
+		private Agent.Priority priority;
+		private long queuedAt;
+	}
+
+	private static final Agent.Priority[] classes = Agent.Priority.values();
+	private static final long[] agingNanos = new long[classes.length];
+	private static final List<Queue<Task>> queues = new ArrayList<Queue<Task>>();
+	// Statistics per class.  A worker records a wait under the class's
+	// histogram lock; readers may see slightly stale counts.
+	private static final Histogram[] waits = new Histogram[classes.length];
+	private static final AtomicLongArray served = new AtomicLongArray(classes.length);
+	private static final AtomicLongArray aged = new AtomicLongArray(classes.length);
+
+	static {
+		agingNanos[Agent.Priority.CRITICAL.ordinal()] = Long.MAX_VALUE; // first anyway
+		agingNanos[Agent.Priority.NORMAL.ordinal()] =
+			TimeUnit.MILLISECONDS.toNanos(Long.getLong("agent.aging.normal", 20));
+		agingNanos[Agent.Priority.BACKGROUND.ordinal()] =
+			TimeUnit.MILLISECONDS.toNanos(Long.getLong("agent.aging.background", 100));
+		for (int i = 0; i < classes.length; i++) {
+			queues.add(new ConcurrentLinkedQueue<Task>());
+			waits[i] = new Histogram();
+		}
+	}
+
+	// Every submit() hands the pool one of these; whichever worker gets
+	// it runs whatever agent is due next, not necessarily that one.
+	private static final Runnable runNext = new Runnable() {
+		public void run() {
+			Task t = next();
+			if (t != null) {
+				t.run();
+			}
+		}
+	};
+
+	/** Don't construct. */
+	private AgentScheduler() {
+	}
+
+	/** Queue one scheduler pass of an agent. */
+	static void submit(Task pass, Agent.Priority priority) {
+		pass.priority = priority;
+		pass.queuedAt = System.nanoTime();
+		queues.get(priority.ordinal()).add(pass);
+		pool.execute(runNext);
+	}
+
+	//Take the longest-starved aged task, lowest class first, else the
+	//head of the highest class with anything queued
+	private static Task next() {
+		long now = System.nanoTime();
+		for (int i = classes.length - 1; i > 0; i--) {
+			Queue<Task> q = queues.get(i);
+			Task t = q.peek();
+			if (t != null && now - t.queuedAt > agingNanos[i] && q.remove(t)) {
+				aged.incrementAndGet(i);
+				return taken(t, now);
+			}
+		}
+		for (int i = 0; i < classes.length; i++) {
+			Task t = queues.get(i).poll();
+			if (t != null) {
+				return taken(t, now);
+			}
+		}
+		return null; // taken by a worker holding another submit's runNext
+	}
+
+	private static Task taken(Task t, long now) {
+		int i = t.priority.ordinal();
+		served.incrementAndGet(i);
+		Histogram h = waits[i];
+		synchronized (h) {
+			h.record(now - t.queuedAt);
+		}
+		return t;
+	}
+
+	/** @return number of worker threads */
+	public static int getPoolSize() {
+		return poolSize;
+	}
+
+	/** @return approximate number of agents waiting for a worker */
+	public static long getQueuedCount() {
+		return pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount();
+	}
+
+	/** @return passes of agents of class p run by the pool so far */
+	public static long getServed(Agent.Priority p) {
+		return served.get(p.ordinal());
+	}
+
+	/** @return passes of class p that went ahead of higher classes
+	 * because they had waited past the aging time */
+	public static long getAged(Agent.Priority p) {
+		return aged.get(p.ordinal());
+	}
+
+	/** @return a copy of the times agents of class p waited for a
+	 * worker, in ns */
+	public static Histogram getQueueWait(Agent.Priority p) {
+		Histogram h = waits[p.ordinal()];
+		Histogram copy = new Histogram();
+		synchronized (h) {
+			copy.add(h);
+		}
+		return copy;
+	}
+}
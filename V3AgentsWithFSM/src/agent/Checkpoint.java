@@ -0,0 +1,194 @@
+package agent;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Saves the state of a set of agents to a file and puts it back into
+ * freshly made agents, so a long run can start from where an earlier one
+ * had got to instead of from an empty restaurant.
+ *
+ * An agent takes part by implementing Saved.  It writes what it knows
+ * with the DataOutput methods and reads it back in the same order;
+ * references to other agents go by name and come back through find().
+ * Messages set up with schedule() cannot be saved, so restore() has to
+ * schedule again whatever the agent's restored state is waiting for.
+ *
+ * The state has to be a consistent cut: no agent halfway through an
+ * action, no message on its way.  A SimulatedClock gives one every time
+ * it moves on, so save by scheduling on it, as saveAt() does.  A message
+ * can still be waiting in a mailbox whose owner drains only so many at a
+ * time; the owner saves those too, with Mailbox.copyTo().  Agents
+ * sleeping in an animation are halfway through an action, so save a run
+ * without animation delays.  Restore before the agents are started and
+ * into a SimulatedClock started at getTime(); restore() holds it there
+ * until runUntil(), so the timers the agents set again wait for all of
+ * them to be back and started.
+ *
+ * The file is gzipped: a header with the time, then one section per agent
+ * (name, length, the agent's own bytes), so agents missing on either side
+ * are skipped with a warning.
+ */
+public class Checkpoint {
+	/** An agent whose state can be saved. */
+	public interface Saved {
+		/** Write the agent's state.  Called at a consistent cut, on the
+		 * clock's thread. */
+		void save(DataOutput out) throws IOException;
+
+		/** Read back what save() wrote, into an agent that has not been
+		 * started, and schedule whatever that state waits for. */
+		void restore(DataInput in, Checkpoint cp) throws IOException;
+	}
+
+	private static final int MAGIC = 0x4147434b; // "AGCK"
+	private static final int VERSION = 2;
+
+	private final long time;
+	private final Map<String, byte[]> sections = new LinkedHashMap<String, byte[]>();
+	private final Map<String, Agent> agents = new HashMap<String, Agent>();
+
+	private Checkpoint(long time) {
+		this.time = time;
+	}
+
+	/** Save agents to file at the first consistent cut delayMillis from
+	 * now.  Needs a SimulatedClock.  Agents that are not Saved are left
+	 * out. */
+	public static void saveAt(final File file, long delayMillis, final Collection<? extends Agent> agents) {
+		final Clock clock = Clock.get();
+		if (!(clock instanceof SimulatedClock)) {
+			throw new IllegalStateException("Checkpoint needs a SimulatedClock");
+		}
+		clock.schedule(new Runnable() {
+			public void run() {
+				// The clock only runs an event once no agent has work
+				try {
+					int n = save(file, clock.currentTimeMillis(), agents);
+					System.out.println("Checkpoint: saved " + n + " agents at "
+						+ clock.currentTimeMillis() + "ms to " + file);
+				} catch (IOException e) {
+					System.err.println("Checkpoint: not saved: " + e);
+				}
+			}
+		}, delayMillis);
+	}
+
+	/** Save agents to file now.  The caller makes sure none of them is
+	 * running.
+	 * @return number of agents saved */
+	public static int save(File file, long time, Collection<? extends Agent> agents) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+			new GZIPOutputStream(new FileOutputStream(file))));
+		try {
+			List<Agent> saved = new ArrayList<Agent>();
+			for (Agent a : agents) {
+				if (a instanceof Saved) {
+					saved.add(a);
+				}
+			}
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeLong(time);
+			out.writeInt(saved.size());
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			for (Agent a : saved) {
+				bytes.reset();
+				((Saved) a).save(new DataOutputStream(bytes));
+				out.writeUTF(a.getName());
+				out.writeInt(bytes.size());
+				bytes.writeTo(out);
+			}
+			return saved.size();
+		} finally {
+			out.close();
+		}
+	}
+
+	/** Read a file written by save(). */
+	public static Checkpoint read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+			new GZIPInputStream(new FileInputStream(file))));
+		try {
+			if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+				throw new IOException(file + " is not an agent checkpoint");
+			}
+			Checkpoint cp = new Checkpoint(in.readLong());
+			int n = in.readInt();
+			for (int i = 0; i < n; i++) {
+				String name = in.readUTF();
+				byte[] b = new byte[in.readInt()];
+				in.readFully(b);
+				cp.sections.put(name, b);
+			}
+			return cp;
+		} finally {
+			in.close();
+		}
+	}
+
+	/** @return the clock time the checkpoint was taken at */
+	public long getTime() {
+		return time;
+	}
+
+	/** Put the saved state back into agents, matching them up by name.
+	 * @return number of agents restored */
+	public int restore(Collection<? extends Agent> into) throws IOException {
+		Clock clock = Clock.get();
+		if (clock instanceof SimulatedClock) {
+			((SimulatedClock) clock).hold();
+		}
+		agents.clear();
+		for (Agent a : into) {
+			agents.put(a.getName(), a);
+		}
+		int n = 0;
+		for (Agent a : into) {
+			byte[] b = sections.get(a.getName());
+			if (!(a instanceof Saved)) {
+				continue;
+			}
+			if (b == null) {
+				System.err.println("Checkpoint: nothing saved for " + a.getName() + "; it starts afresh");
+				continue;
+			}
+			((Saved) a).restore(new DataInputStream(new ByteArrayInputStream(b)), this);
+			n++;
+		}
+		for (String name : sections.keySet()) {
+			if (!agents.containsKey(name)) {
+				System.err.println("Checkpoint: no agent " + name + " to restore into; skipped");
+			}
+		}
+		return n;
+	}
+
+	/** During restore(): the agent called name, or null if there is none.
+	 * Type is the class expected, for the caller's convenience. */
+	public <T extends Agent> T find(String name, Class<T> type) {
+		Agent a = agents.get(name);
+		return type.isInstance(a) ? type.cast(a) : null;
+	}
+
+	/** Write item counts such as an inventory or an order. */
+	public static void writeCounts(DataOutput out, Map<String, Integer> counts) throws IOException {
+		out.writeInt(counts.size());
+		for (Map.Entry<String, Integer> e : counts.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeInt(e.getValue());
+		}
+	}
+
+	/** Read what writeCounts() wrote, into a new HashMap. */
+	public static Map<String, Integer> readCounts(DataInput in) throws IOException {
+		int n = in.readInt();
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (int i = 0; i < n; i++) {
+			String k = in.readUTF();
+			counts.put(k, in.readInt());
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,83 @@
+package agent;
+
+import java.util.concurrent.*;
+
+/**
+ * Source of time for agents.  Agents read the time, schedule delayed
+ * work and sleep through the current clock instead of calling
+ * System.currentTimeMillis(), java.util.Timer or Thread.sleep directly,
+ * so a run can use real time (WallClock, the default) or simulated time
+ * (SimulatedClock).
+ *
+ * Install a clock with set() before any agents are created.
+ */
+public abstract class Clock {
+	private static volatile Clock current = new WallClock();
+
+	/** Handle for work passed to schedule(). */
+	public interface Timeout {
+		/** Stop the work from running if it has not run yet.
+		 * @return true if this call prevented it from running */
+		boolean cancel();
+	}
+
+	/** @return the clock agents are using */
+	public static Clock get() {
+		return current;
+	}
+
+	/** Replace the clock.  Call before creating agents. */
+	public static void set(Clock clock) {
+		current = clock;
+	}
+
+	/** @return current time in milliseconds */
+	public abstract long currentTimeMillis();
+
+	/** Run task once, delayMillis from now.  The task runs on a timer
+	 * thread, so it should only send messages. */
+	public abstract Timeout schedule(Runnable task, long delayMillis);
+
+	/** Block the calling thread for the given time. */
+	public abstract void sleep(long millis) throws InterruptedException;
+
+	/** Acquire a permit, blocking as long as needed.  Agents blocking on
+	 * a semaphore held by another agent should come through here, so a
+	 * simulated clock knows the caller is waiting and not working. */
+	public void acquire(final Semaphore s) throws InterruptedException {
+		block(new ForkJoinPool.ManagedBlocker() {
+			public boolean block() throws InterruptedException {
+				s.acquire();
+				return true;
+			}
+
+			public boolean isReleasable() {
+				return s.tryAcquire();
+			}
+		});
+	}
+
+	/** Run a blocking call so that a POOLED agent's AgentScheduler worker
+	 * is replaced while it waits; otherwise a few sleeping agents could
+	 * hold every worker and starve the rest.  While a Trace is on, the
+	 * caller's turn passes to another agent until the call returns. */
+	protected static void block(ForkJoinPool.ManagedBlocker blocker)
+			throws InterruptedException {
+		int turn = Trace.pause();
+		try {
+			ForkJoinPool.managedBlock(blocker);
+		} finally {
+			Trace.resume(turn);
+		}
+	}
+
+	/** An agent has work to do.  Called by Agent when it wakes up an
+	 * idle agent; matched by one agentIdle() once the agent has run out
+	 * of work. */
+	protected void agentBusy() {
+	}
+
+	/** An agent ran out of work and went idle. */
+	protected void agentIdle() {
+	}
+}
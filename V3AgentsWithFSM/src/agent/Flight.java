@@ -0,0 +1,80 @@
+package agent;
+
+/**
+ * Agent events for the JDK Flight Recorder, so a recording shows what
+ * the agents were doing next to the garbage collector and lock events:
+ * messages, mailbox posts and drains, scheduler passes, each action that
+ * fired (named after the action method, when it sent a message), timers
+ * and A* searches.  They are in the "Agents" category of JDK Mission
+ * Control; record with e.g.
+ *   java -XX:StartFlightRecording=filename=run.jfr restaurant.HeadlessRestaurant ...
+ *
+ * Nothing is made unless a recording is running: every hook first reads
+ * isOn(), which a recorder listener keeps up to date, and the events
+ * themselves live in FlightEvents, which is never loaded on a JVM
+ * without jdk.jfr.  Naming an action walks the stack once per action,
+ * while recording only.
+ */
+public class Flight {
+	static final int POST = 0, PASS = 1, ACTION = 2, TIMER = 3, SEARCH = 4;
+
+	static volatile boolean on = false;
+
+	static {
+		try {
+			Class.forName("jdk.jfr.FlightRecorder");
+			FlightEvents.install();
+		} catch (Throwable e) {
+			// no flight recorder here; on stays false
+		}
+	}
+
+	/** Don't construct. */
+	private Flight() {
+	}
+
+	/** @return true while a flight recording is running */
+	public static boolean isOn() {
+		return on;
+	}
+
+	/** Start timing an A* search.  Only call while isOn().
+	 * @return the event, for searched() */
+	public static Object searchBegin() {
+		return FlightEvents.begin(SEARCH);
+	}
+
+	/** A search started by searchBegin() has ended.
+	 * @param length length of the path found, 0 if none */
+	public static void searched(Object event, Object from, Object to, int expanded, int length) {
+		FlightEvents.searched(event, String.valueOf(from), String.valueOf(to), expanded, length);
+	}
+
+	static Object begin(int kind) {
+		return FlightEvents.begin(kind);
+	}
+
+	static void message(Agent a, boolean woke) {
+		FlightEvents.message(a, woke);
+	}
+
+	static void posted(Object event, String mailbox, Mailbox.Overflow policy, boolean accepted) {
+		FlightEvents.posted(event, mailbox, policy, accepted);
+	}
+
+	static void drained(String mailbox, int count) {
+		FlightEvents.drained(mailbox, count);
+	}
+
+	static void passed(Object event, Agent a, int actions) {
+		FlightEvents.passed(event, a, actions);
+	}
+
+	static void acted(Object event, Agent a, boolean fired) {
+		FlightEvents.acted(event, a, fired);
+	}
+
+	static void timed(Object event, Agent a) {
+		FlightEvents.timed(event, a);
+	}
+}
@@ -0,0 +1,224 @@
+package agent;
+
+import jdk.jfr.*;
+
+/**
+ * The JDK Flight Recorder event types behind Flight.  Only Flight refers
+ * to this class, and only once it has found jdk.jfr, so a JVM without
+ * the flight recorder never loads it.
+ */
+class FlightEvents {
+	/** Don't construct. */
+	private FlightEvents() {
+	}
+
+	@Name("agent.Message")
+	@Label("Agent Message")
+	@Category("Agents")
+	@Description("stateChanged() on an agent: a message for it, or a change of its own")
+	@StackTrace(false)
+	static class Message extends Event {
+		@Label("Agent") String agent;
+		@Label("Type") String type;
+		@Label("Woke It") @Description("False if a pass was already owed") boolean woke;
+	}
+
+	@Name("agent.MailboxPost")
+	@Label("Mailbox Post")
+	@Category("Agents")
+	@Description("A message put into a mailbox; lasts as long as a full BLOCK mailbox kept the sender waiting")
+	@StackTrace(false)
+	static class MailboxPost extends Event {
+		@Label("Mailbox") String mailbox;
+		@Label("Policy") String policy;
+		@Label("Accepted") boolean accepted;
+	}
+
+	@Name("agent.MailboxDrain")
+	@Label("Mailbox Drain")
+	@Category("Agents")
+	@Description("Messages taken out of a mailbox by its owner")
+	@StackTrace(false)
+	static class MailboxDrain extends Event {
+		@Label("Mailbox") String mailbox;
+		@Label("Messages") int count;
+	}
+
+	@Name("agent.SchedulerPass")
+	@Label("Scheduler Pass")
+	@Category("Agents")
+	@Description("pickAndExecuteAnAction() called until it returned false")
+	@StackTrace(false)
+	static class Pass extends Event {
+		@Label("Agent") String agent;
+		@Label("Type") String type;
+		@Label("Actions") int actions;
+	}
+
+	@Name("agent.Action")
+	@Label("Agent Action")
+	@Category("Agents")
+	@Description("One call of pickAndExecuteAnAction() that did something")
+	@StackTrace(false)
+	static class Action extends Event {
+		@Label("Agent") String agent;
+		@Label("Type") String type;
+		@Label("Action") @Description("The method the scheduler called, if it sent a message") String action;
+	}
+
+	@Name("agent.Timer")
+	@Label("Agent Timer")
+	@Category("Agents")
+	@Description("A message set up with schedule(), run on the agent's scheduler")
+	@StackTrace(false)
+	static class Timer extends Event {
+		@Label("Agent") String agent;
+		@Label("Type") String type;
+	}
+
+	@Name("agent.AStarSearch")
+	@Label("A* Search")
+	@Category("Agents")
+	@Description("One path search")
+	@StackTrace(false)
+	static class Search extends Event {
+		@Label("From") String from;
+		@Label("To") String to;
+		@Label("Nodes Expanded") int expanded;
+		@Label("Path Length") int length;
+		@Label("Found") boolean found;
+	}
+
+	/** Register the events and keep Flight.on in step with whether any
+	 * recording is running. */
+	static void install() {
+		FlightRecorder.register(Message.class);
+		FlightRecorder.register(MailboxPost.class);
+		FlightRecorder.register(MailboxDrain.class);
+		FlightRecorder.register(Pass.class);
+		FlightRecorder.register(Action.class);
+		FlightRecorder.register(Timer.class);
+		FlightRecorder.register(Search.class);
+		FlightRecorder.addListener(new FlightRecorderListener() {
+			public void recorderInitialized(FlightRecorder recorder) {
+				update(recorder);
+			}
+
+			public void recordingStateChanged(Recording recording) {
+				update(FlightRecorder.getFlightRecorder());
+			}
+		});
+	}
+
+	private static void update(FlightRecorder recorder) {
+		boolean running = false;
+		for (Recording r : recorder.getRecordings()) {
+			if (r.getState() == RecordingState.RUNNING) {
+				running = true;
+			}
+		}
+		Flight.on = running;
+	}
+
+	//The Action under way on this thread, until it is named or ends
+	private static final ThreadLocal<Action> action = new ThreadLocal<Action>();
+
+	static void message(Agent a, boolean woke) {
+		Message e = new Message();
+		if (e.shouldCommit()) {
+			e.agent = a.getName();
+			e.type = StringUtil.shortName(a.getClass());
+			e.woke = woke;
+			e.commit();
+		}
+		Action act = action.get();
+		if (act != null && act.action == null) {
+			act.action = caller();
+		}
+	}
+
+	//The method pickAndExecuteAnAction() called to get here
+	private static String caller() {
+		StackTraceElement[] s = new Throwable().getStackTrace();
+		for (int i = 1; i < s.length; i++) {
+			if (s[i].getMethodName().equals("pickAndExecuteAnAction")) {
+				String m = s[i - 1].getMethodName();
+				return s[i - 1].getClassName().equals(Agent.class.getName()) ? null : m;
+			}
+		}
+		return null;
+	}
+
+	static Object begin(int kind) {
+		Event e;
+		switch (kind) {
+		case Flight.POST: e = new MailboxPost(); break;
+		case Flight.PASS: e = new Pass(); break;
+		case Flight.ACTION: e = new Action(); action.set((Action) e); break;
+		case Flight.TIMER: e = new Timer(); break;
+		default: e = new Search(); break;
+		}
+		e.begin();
+		return e;
+	}
+
+	static void posted(Object o, String mailbox, Mailbox.Overflow policy, boolean accepted) {
+		MailboxPost e = (MailboxPost) o;
+		if (e.shouldCommit()) {
+			e.mailbox = mailbox;
+			e.policy = String.valueOf(policy);
+			e.accepted = accepted;
+			e.commit();
+		}
+	}
+
+	static void drained(String mailbox, int count) {
+		MailboxDrain e = new MailboxDrain();
+		if (e.shouldCommit()) {
+			e.mailbox = mailbox;
+			e.count = count;
+			e.commit();
+		}
+	}
+
+	static void passed(Object o, Agent a, int actions) {
+		Pass e = (Pass) o;
+		if (e.shouldCommit()) {
+			e.agent = a.getName();
+			e.type = StringUtil.shortName(a.getClass());
+			e.actions = actions;
+			e.commit();
+		}
+	}
+
+	static void acted(Object o, Agent a, boolean fired) {
+		Action e = (Action) o;
+		action.remove();
+		if (fired && e.shouldCommit()) {
+			e.agent = a.getName();
+			e.type = StringUtil.shortName(a.getClass());
+			e.commit();
+		}
+	}
+
+	static void timed(Object o, Agent a) {
+		Timer e = (Timer) o;
+		if (e.shouldCommit()) {
+			e.agent = a.getName();
+			e.type = StringUtil.shortName(a.getClass());
+			e.commit();
+		}
+	}
+
+	static void searched(Object o, String from, String to, int expanded, int length) {
+		Search e = (Search) o;
+		if (e.shouldCommit()) {
+			e.from = from;
+			e.to = to;
+			e.expanded = expanded;
+			e.length = length;
+			e.found = length > 0;
+			e.commit();
+		}
+	}
+}
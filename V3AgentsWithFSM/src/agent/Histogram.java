@@ -0,0 +1,74 @@
+package agent;
+
+/**
+ * Cheap histogram of non-negative values (usually nanoseconds) with one
+ * bucket per power of two.  Recording is a few integer operations and
+ * never allocates.  It is written by a single thread, the agent's
+ * scheduler; readers may see slightly stale counts while it runs.
+ */
+public class Histogram {
+	private final long[] buckets = new long[64];
+	private long count;
+	private long total;
+	private long max;
+
+	/** Add one value; negative values count as zero. */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets[63 - Long.numberOfLeadingZeros(value | 1)]++;
+		count++;
+		total += value;
+		if (value > max) {
+			max = value;
+		}
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	/** @return mean value, or 0 if nothing was recorded */
+	public long getMean() {
+		return count == 0 ? 0 : total / count;
+	}
+
+	/**
+	 * @param fraction 0.5 for the median, 0.99 for the 99th percentile, ...
+	 * @return upper bound of the bucket holding that percentile; never
+	 *         more than the largest value seen
+	 */
+	public long getPercentile(double fraction) {
+		long wanted = (long) Math.ceil(count * fraction);
+		long seen = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if (seen >= wanted && seen > 0) {
+				return i == 63 ? max : Math.min(max, (2L << i) - 1);
+			}
+		}
+		return max;
+	}
+
+	/** Add in everything other has recorded, e.g. to sum up a group of
+	 * agents.  other should not be written meanwhile. */
+	public void add(Histogram other) {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] += other.buckets[i];
+		}
+		count += other.count;
+		total += other.total;
+		if (other.max > max) {
+			max = other.max;
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package agent;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Append-only record of what the agents did, cheap enough to leave on.
+ * An agent's action calls log() with what kind of thing it did, to whom,
+ * at which table, with which item and for how much; JournalReader turns
+ * the journal back into timelines.
+ *
+ * Records are RECORD bytes each, in files of -Dagent.journal.segmentRecords
+ * records (default 65536) named journal-NNNNNN.seg, mapped into memory.
+ * A writer takes the next record number from an AtomicLong and fills
+ * its record in place, so writers never wait for each other.  The only
+ * locks are taken once per segment, by whoever first needs it mapped,
+ * and once per name, by whoever first uses it.  The
+ * kind is written last, with a release store (KIND_FIELD), so a reader
+ * that loads it with an acquire and finds it set sees the rest of the
+ * record too; a record whose kind is still 0 was never finished.  Names (agents, kinds, items) go into the records as numbers
+ * from 1, 0 meaning none, and into the file "names" as "number name"
+ * lines, once each.
+ *
+ * The operating system writes the mapped pages out, so what was logged
+ * survives the JVM dying.  Start it with open(dir) or -Dagent.journal=dir,
+ * and close() it at the end of the run.
+ *
+ * A record, in the buffer's big-endian order:
+ *   long time    clock time
+ *   double amount
+ *   int actor    name of the agent that logged it
+ *   int subject  name of whom it was done to, or 0
+ *   int item     name of what it was about, or 0
+ *   int table    table number, or -1
+ *   int spare
+ *   int kind     name of the kind of action, written last
+ */
+public class Journal {
+	public static final int RECORD = 40;
+	static final int TIME = 0, AMOUNT = 8, ACTOR = 16, SUBJECT = 20, ITEM = 24, TABLE = 28, KIND = 36;
+	// Ordered access to the kind.  Plain puts on a mapped buffer may be
+	// seen in any order; KIND is int-aligned in every record, as this
+	// needs.
+	static final VarHandle KIND_FIELD =
+		MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+	private static final int SEGMENT_RECORDS = Integer.getInteger("agent.journal.segmentRecords", 65536);
+
+	private static volatile Journal journal;
+
+	private final File dir;
+	private final int perSegment;
+	private final AtomicLong next = new AtomicLong();
+	private final ConcurrentHashMap<Integer, MappedByteBuffer> segments =
+		new ConcurrentHashMap<Integer, MappedByteBuffer>();
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	private final Writer names; // guarded by ids
+
+	static {
+		String dir = System.getProperty("agent.journal");
+		if (dir != null) {
+			try {
+				open(new File(dir));
+			} catch (IOException e) {
+				System.err.println("Journal: not opened: " + e);
+			}
+		}
+	}
+
+	private Journal(File dir, int perSegment) throws IOException {
+		this.dir = dir;
+		this.perSegment = perSegment;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("cannot make " + dir);
+		}
+		File[] old = dir.listFiles();
+		for (File f : old) {
+			if (f.getName().startsWith("journal-") || f.getName().equals("names")) {
+				f.delete();
+			}
+		}
+		names = new BufferedWriter(new OutputStreamWriter(
+			new FileOutputStream(new File(dir, "names")), "UTF-8"));
+	}
+
+	/** Start a new journal in dir, replacing any journal already there.
+	 * Open it before the agents start. */
+	public static synchronized void open(File dir) throws IOException {
+		close();
+		journal = new Journal(dir, SEGMENT_RECORDS);
+	}
+
+	/** Write out and close the journal; log() does nothing after this. */
+	public static synchronized void close() throws IOException {
+		Journal j = journal;
+		if (j == null) {
+			return;
+		}
+		journal = null;
+		for (MappedByteBuffer b : j.segments.values()) {
+			b.force();
+		}
+		synchronized (j.ids) {
+			j.names.close();
+		}
+	}
+
+	public static boolean isEnabled() {
+		return journal != null;
+	}
+
+	/** @return records logged since open(), or 0 if no journal is open */
+	public static long getCount() {
+		Journal j = journal;
+		return j == null ? 0 : j.next.get();
+	}
+
+	/** @return segment files used since open(), or 0 */
+	public static int getSegments() {
+		Journal j = journal;
+		return j == null ? 0 : (int) ((j.next.get() + j.perSegment - 1) / j.perSegment);
+	}
+
+	/** Record that actor did kind (a short word like "seat").  Subject
+	 * and item may be null, and table -1, where they don't apply. */
+	public static void log(Agent actor, String kind, String subject, int table, String item, double amount) {
+		Journal j = journal;
+		if (j != null) {
+			j.append(actor.getName(), kind, subject, table, item, amount);
+		}
+	}
+
+	private void append(String actor, String kind, String subject, int table, String item, double amount) {
+		long n = next.getAndIncrement();
+		MappedByteBuffer b;
+		try {
+			b = segment((int) (n / perSegment));
+		} catch (IOException e) {
+			System.err.println("Journal: record " + n + " lost: " + e);
+			return;
+		}
+		// Absolute puts only: they leave the buffer's position alone, so
+		// writers filling different records don't disturb each other
+		int at = (int) (n % perSegment) * RECORD;
+		b.putLong(at + TIME, Clock.get().currentTimeMillis());
+		b.putDouble(at + AMOUNT, amount);
+		b.putInt(at + ACTOR, id(actor));
+		b.putInt(at + SUBJECT, id(subject));
+		b.putInt(at + ITEM, id(item));
+		b.putInt(at + TABLE, table);
+		KIND_FIELD.setRelease(b, at + KIND, id(kind)); // after the rest
+	}
+
+	private MappedByteBuffer segment(int s) throws IOException {
+		MappedByteBuffer b = segments.get(s);
+		return b != null ? b : map(s);
+	}
+
+	private synchronized MappedByteBuffer map(int s) throws IOException {
+		MappedByteBuffer b = segments.get(s);
+		if (b != null) {
+			return b;
+		}
+		RandomAccessFile f = new RandomAccessFile(segmentFile(dir, s), "rw");
+		try {
+			b = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) perSegment * RECORD);
+		} finally {
+			f.close(); // the mapping stays valid
+		}
+		segments.put(s, b);
+		// Writers still finishing a record two segments back already
+		// hold their buffer; let the rest of that one go
+		MappedByteBuffer old = segments.remove(s - 2);
+		if (old != null) {
+			old.force();
+		}
+		return b;
+	}
+
+	private int id(String name) {
+		if (name == null) {
+			return 0;
+		}
+		Integer id = ids.get(name);
+		return id != null ? id : newId(name);
+	}
+
+	private int newId(String name) {
+		synchronized (ids) {
+			Integer id = ids.get(name);
+			if (id == null) {
+				id = ids.size() + 1;
+				try {
+					names.write(id + " " + name + "\n");
+					names.flush();
+				} catch (IOException e) {
+					System.err.println("Journal: name " + name + " not written: " + e);
+				}
+				ids.put(name, id);
+			}
+			return id;
+		}
+	}
+
+	static File segmentFile(File dir, int s) {
+		return new File(dir, String.format("journal-%06d.seg", s));
+	}
+}
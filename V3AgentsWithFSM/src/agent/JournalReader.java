@@ -0,0 +1,190 @@
+package agent;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Reads a Journal back and prints it as timelines: one per table and one
+ * per subject (in the restaurant, mostly customers), each in time order.
+ *
+ *  java agent.JournalReader dir [options]
+ *    -table n       only table n's timeline
+ *    -subject name  only name's timeline
+ *    -all           the whole journal as one timeline as well
+ *
+ * The journal can be read while it is still being written; records not
+ * yet finished are left out.
+ */
+public class JournalReader {
+	/** One record, with its names looked up. */
+	public static class Record {
+		public long time;
+		public double amount;
+		public String actor, subject, item, kind;
+		public int table;
+
+		public String toString() {
+			StringBuilder b = new StringBuilder();
+			b.append(String.format("%10.3fs  %-8s %-14s", time / 1000.0, kind, actor));
+			if (subject != null) {
+				b.append(' ').append(subject);
+			}
+			if (table >= 0) {
+				b.append(" table ").append(table + 1);
+			}
+			if (item != null) {
+				b.append(' ').append(item);
+			}
+			if (amount != 0) {
+				b.append(' ').append(amount);
+			}
+			return b.toString();
+		}
+	}
+
+	/** Something to hand the records of a journal to, in journal order. */
+	public interface Visitor {
+		void record(Record r);
+	}
+
+	private final File dir;
+	private final List<String> names = new ArrayList<String>();
+
+	public JournalReader(File dir) throws IOException {
+		this.dir = dir;
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+			new FileInputStream(new File(dir, "names")), "UTF-8"));
+		try {
+			for (String line; (line = in.readLine()) != null;) {
+				int sp = line.indexOf(' ');
+				int id = Integer.parseInt(line.substring(0, sp));
+				while (names.size() <= id) {
+					names.add(null);
+				}
+				names.set(id, line.substring(sp + 1));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Hand every finished record to v, segment by segment.
+	 * @return number of records read */
+	public long read(Visitor v) throws IOException {
+		long n = 0;
+		for (int s = 0;; s++) {
+			File f = Journal.segmentFile(dir, s);
+			if (!f.exists()) {
+				return n;
+			}
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			ByteBuffer b;
+			try {
+				b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			} finally {
+				raf.close();
+			}
+			for (int at = 0; at + Journal.RECORD <= b.limit(); at += Journal.RECORD) {
+				int kind = (int) Journal.KIND_FIELD.getAcquire(b, at + Journal.KIND);
+				if (kind == 0) {
+					continue; // never written, or not finished
+				}
+				Record r = new Record();
+				r.time = b.getLong(at + Journal.TIME);
+				r.amount = b.getDouble(at + Journal.AMOUNT);
+				r.actor = name(b.getInt(at + Journal.ACTOR));
+				r.subject = name(b.getInt(at + Journal.SUBJECT));
+				r.item = name(b.getInt(at + Journal.ITEM));
+				r.table = b.getInt(at + Journal.TABLE);
+				r.kind = name(kind);
+				v.record(r);
+				n++;
+			}
+		}
+	}
+
+	private String name(int id) {
+		if (id == 0) {
+			return null;
+		}
+		String s = id < names.size() ? names.get(id) : null;
+		return s != null ? s : "#" + id;
+	}
+
+	private static final Comparator<Record> byTime = new Comparator<Record>() {
+		public int compare(Record a, Record b) {
+			return a.time < b.time ? -1 : a.time > b.time ? 1 : 0;
+		}
+	};
+
+	private static void print(String title, List<Record> records) {
+		Collections.sort(records, byTime); // stable, so journal order within a millisecond
+		System.out.println(title + " (" + records.size() + " events)");
+		for (Record r : records) {
+			System.out.println("  " + r);
+		}
+		System.out.println();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("usage: java agent.JournalReader dir [-table n] [-subject name] [-all]");
+			System.exit(2);
+		}
+		File dir = new File(args[0]);
+		int onlyTable = -1;
+		String onlySubject = null;
+		boolean all = false;
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("-table")) onlyTable = Integer.parseInt(args[++i]) - 1;
+			else if (args[i].equals("-subject")) onlySubject = args[++i];
+			else if (args[i].equals("-all")) all = true;
+			else {
+				System.err.println("Unknown option " + args[i]);
+				System.exit(2);
+			}
+		}
+		final boolean keepAll = all;
+		final List<Record> everything = new ArrayList<Record>();
+		final Map<Integer, List<Record>> tables = new TreeMap<Integer, List<Record>>();
+		final Map<String, List<Record>> subjects = new TreeMap<String, List<Record>>();
+		long n = new JournalReader(dir).read(new Visitor() {
+			public void record(Record r) {
+				if (keepAll) {
+					everything.add(r);
+				}
+				if (r.table >= 0) {
+					List<Record> l = tables.get(r.table);
+					if (l == null) {
+						tables.put(r.table, l = new ArrayList<Record>());
+					}
+					l.add(r);
+				}
+				if (r.subject != null) {
+					List<Record> l = subjects.get(r.subject);
+					if (l == null) {
+						subjects.put(r.subject, l = new ArrayList<Record>());
+					}
+					l.add(r);
+				}
+			}
+		});
+		System.out.println(n + " events in " + dir);
+		System.out.println();
+		if (all) {
+			print("Everything", everything);
+		}
+		for (Map.Entry<Integer, List<Record>> e : tables.entrySet()) {
+			if (onlySubject == null && (onlyTable < 0 || onlyTable == e.getKey())) {
+				print("Table " + (e.getKey() + 1), e.getValue());
+			}
+		}
+		for (Map.Entry<String, List<Record>> e : subjects.entrySet()) {
+			if (onlyTable < 0 && (onlySubject == null || onlySubject.equals(e.getKey()))) {
+				print(e.getKey(), e.getValue());
+			}
+		}
+	}
+}
@@ -0,0 +1,458 @@
+package agent;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Lock-free multi-producer, single-consumer message queue.  Any thread
+ * may post(); only the owning agent's scheduler may drain.  A post is one
+ * atomic swap, so senders never block or retry, and the owner takes a
+ * whole batch at the top of a scheduler pass without locking.
+ *
+ * A message posted concurrently with a drain may be missed by that
+ * drain; the sender's stateChanged() guarantees another pass that will
+ * pick it up.
+ *
+ * A mailbox made with a name and a capacity holds at most that many
+ * messages; what happens to a post when it is full is up to its
+ * Overflow policy.  The capacity and policy of a named mailbox can be
+ * changed with -Dagent.mailbox.NAME.capacity=N and
+ * -Dagent.mailbox.NAME.policy=POLICY.  The owner can keep the lists it
+ * drains into from growing too by passing a limit to drainTo(); what it
+ * leaves behind stays in the mailbox and counts against its capacity.
+ */
+public class Mailbox<T> {
+	/** What post() does when a bounded mailbox is full. */
+	public enum Overflow {
+		/** Wait for room.  Waits through the Clock, so a sender under a
+		 * SimulatedClock counts as idle.  An agent must never post to a
+		 * full BLOCK mailbox of its own. */
+		BLOCK,
+		/** Throw away the oldest message to make room. */
+		DROP_OLDEST,
+		/** Turn the message away and hand it to the RejectHandler. */
+		REJECT,
+		/** Write the message to a file and read it back once there is
+		 * room.  Messages that cannot be serialized are rejected. */
+		SPILL
+	};
+
+	/** Told about each message a full mailbox turns away. */
+	public interface RejectHandler<T> {
+		/** Called on the sender's thread. */
+		void rejected(T item);
+	}
+
+	private static class Node<T> {
+		T item;
+		volatile Node<T> next;
+
+		Node(T item) {
+			this.item = item;
+		}
+	}
+
+	private final AtomicReference<Node<T>> tail;
+	private Node<T> head; // consumer side only; always a spent node
+
+	private final String name;
+	private final int capacity; // 0 for unbounded
+	private final Overflow policy;
+	private final Semaphore slots; // one permit per free place
+	private volatile RejectHandler<? super T> onReject;
+
+	// SPILL only, guarded by this.  Once anything spills, later posts
+	// spill behind it until the file has been read back, to keep order.
+	private File spillFile;
+	private DataOutputStream spillOut;
+	private DataInputStream spillIn;
+	private int spillCount = 0; // messages in the file not read back yet
+
+	private final AtomicLong posted = new AtomicLong();
+	private final AtomicLong blocked = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong spilled = new AtomicLong();
+	private final AtomicInteger highWater = new AtomicInteger();
+
+	/** An unbounded mailbox. */
+	public Mailbox() {
+		this(null, 0, Overflow.BLOCK);
+	}
+
+	/** A mailbox holding at most capacity messages, unless overridden
+	 * by the agent.mailbox.NAME properties.  A capacity of 0 means
+	 * unbounded.  Named mailboxes are listed by MetricsRegistry.dump(). */
+	public Mailbox(String name, int capacity, Overflow policy) {
+		Node<T> stub = new Node<T>(null);
+		head = stub;
+		tail = new AtomicReference<Node<T>>(stub);
+		if (name != null) {
+			capacity = Integer.getInteger("agent.mailbox." + name + ".capacity", capacity);
+			String p = System.getProperty("agent.mailbox." + name + ".policy");
+			if (p != null) {
+				policy = Overflow.valueOf(p.toUpperCase());
+			}
+		}
+		this.name = name;
+		this.capacity = Math.max(capacity, 0);
+		this.policy = policy;
+		slots = this.capacity > 0 ? new Semaphore(this.capacity) : null;
+		if (name != null) {
+			MetricsRegistry.register(this);
+		}
+	}
+
+	/** Where REJECT (and SPILL, for what it cannot write) sends the
+	 * messages it turns away. */
+	public void setRejectHandler(RejectHandler<? super T> handler) {
+		onReject = handler;
+	}
+
+	/** Add a message.  Wait-free and safe from any thread when the
+	 * mailbox is unbounded; see Overflow for what a full one does.
+	 * @return false if the message was turned away */
+	public boolean post(T item) {
+		if (!Flight.on) {
+			return offer(item);
+		}
+		Object event = Flight.begin(Flight.POST);
+		boolean accepted = offer(item);
+		Flight.posted(event, name, policy, accepted);
+		return accepted;
+	}
+
+	private boolean offer(T item) {
+		posted.incrementAndGet();
+		if (slots == null) {
+			enqueue(item);
+			return true;
+		}
+		switch (policy) {
+		case BLOCK:
+			if (!slots.tryAcquire()) {
+				blocked.incrementAndGet();
+				try {
+					Clock.get().acquire(slots);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return reject(item);
+				}
+			}
+			break;
+		case DROP_OLDEST:
+			while (!slots.tryAcquire()) {
+				if (dropOldest()) {
+					break; // its place is ours now
+				}
+				Thread.yield(); // a drain is about to free a place
+			}
+			break;
+		case REJECT:
+			if (!slots.tryAcquire()) {
+				return reject(item);
+			}
+			break;
+		case SPILL:
+			synchronized (this) {
+				if (spillCount > 0 || !slots.tryAcquire()) {
+					return spill(item);
+				}
+				enqueue(item);
+			}
+			noteSize();
+			return true;
+		}
+		enqueue(item);
+		noteSize();
+		return true;
+	}
+
+	private void enqueue(T item) {
+		Node<T> n = new Node<T>(item);
+		Node<T> prev = tail.getAndSet(n);
+		prev.next = n;
+	}
+
+	/** Move every available message, oldest first, into c.  Owner only.
+	 * @return number of messages moved */
+	public int drainTo(Collection<? super T> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/** Move up to max available messages, oldest first, into c.  Owner
+	 * only.
+	 * @return number of messages moved */
+	public int drainTo(Collection<? super T> c, int max) {
+		int count = drain(c, max);
+		if (Flight.on && count > 0) {
+			Flight.drained(name, count);
+		}
+		return count;
+	}
+
+	private int drain(Collection<? super T> c, int max) {
+		if (max <= 0) {
+			return 0;
+		}
+		if (slots == null || policy == Overflow.BLOCK || policy == Overflow.REJECT) {
+			int count = take(c, max);
+			if (slots != null) {
+				slots.release(count);
+			}
+			return count;
+		}
+		synchronized (this) { // senders may take from the head or spill
+			int count = take(c, max);
+			slots.release(count);
+			if (spillCount > 0 && count < max) {
+				count += unspill(c, max - count);
+			}
+			return count;
+		}
+	}
+
+	private int take(Collection<? super T> c, int max) {
+		Node<T> h = head;
+		Node<T> n;
+		int count = 0;
+		while (count < max && (n = h.next) != null) {
+			c.add(n.item);
+			n.item = null; // n becomes the new spent head
+			h = n;
+			count++;
+		}
+		head = h;
+		return count;
+	}
+
+	/** Add every message waiting, oldest first, spilled ones included, to
+	 * c, leaving them in the mailbox.  Owner only, or any thread while
+	 * the owner is idle and nothing is being posted, as at a Checkpoint.
+	 * @return number of messages copied */
+	public int copyTo(Collection<? super T> c) {
+		int count = 0;
+		for (Node<T> n = head.next; n != null; n = n.next) {
+			c.add(n.item);
+			count++;
+		}
+		if (policy == Overflow.SPILL) {
+			synchronized (this) {
+				count += copySpilled(c);
+			}
+		}
+		return count;
+	}
+
+	/** @return true if there is nothing to drain.  Owner only. */
+	public boolean isEmpty() {
+		if (head.next != null) {
+			return false;
+		}
+		if (policy == Overflow.SPILL) {
+			synchronized (this) {
+				return spillCount == 0;
+			}
+		}
+		return true;
+	}
+
+	//DROP_OLDEST, mailbox full: throw the head away and keep its place
+	private synchronized boolean dropOldest() {
+		Node<T> n = head.next;
+		if (n == null) {
+			return false;
+		}
+		n.item = null;
+		head = n;
+		dropped.incrementAndGet();
+		return true;
+	}
+
+	private boolean reject(T item) {
+		rejected.incrementAndGet();
+		RejectHandler<? super T> h = onReject;
+		if (h != null) {
+			h.rejected(item);
+		}
+		return false;
+	}
+
+	//Each message goes into the file as its own serialized record, so one
+	//that fails to serialize leaves the file readable.  Caller holds this.
+	private boolean spill(T item) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream o = new ObjectOutputStream(bytes);
+			o.writeObject(item);
+			o.close();
+			if (spillOut == null) {
+				spillFile = File.createTempFile("mailbox-" + name + "-", ".spill");
+				spillFile.deleteOnExit();
+				spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+			}
+			spillOut.writeInt(bytes.size());
+			bytes.writeTo(spillOut);
+		} catch (IOException e) {
+			return reject(item);
+		}
+		spillCount++;
+		spilled.incrementAndGet();
+		return true;
+	}
+
+	//Caller holds this
+	@SuppressWarnings("unchecked")
+	private int unspill(Collection<? super T> c, int max) {
+		int count = 0;
+		try {
+			spillOut.flush();
+			if (spillIn == null) {
+				spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+			}
+			while (count < max && spillCount > 0) {
+				byte[] b = new byte[spillIn.readInt()];
+				spillIn.readFully(b);
+				spillCount--;
+				ObjectInputStream o = new ObjectInputStream(new ByteArrayInputStream(b));
+				c.add((T) o.readObject());
+				count++;
+			}
+		} catch (Exception e) {
+			System.err.println("Mailbox " + name + ": lost " + spillCount + " spilled messages: " + e);
+			dropped.addAndGet(spillCount);
+			spillCount = 0;
+		}
+		if (spillCount == 0) { // all read back; the next spill starts a new file
+			closeSpill();
+		}
+		return count;
+	}
+
+	//The last spillCount records of the file are the ones not read back
+	//yet; read the file afresh, as spillIn is partway through it.  Caller
+	//holds this
+	@SuppressWarnings("unchecked")
+	private int copySpilled(Collection<? super T> c) {
+		if (spillCount == 0) {
+			return 0;
+		}
+		List<byte[]> records = new ArrayList<byte[]>();
+		DataInputStream in = null;
+		try {
+			spillOut.flush();
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+			while (true) {
+				int size;
+				try {
+					size = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				byte[] b = new byte[size];
+				in.readFully(b);
+				records.add(b);
+			}
+			List<byte[]> waiting = records.subList(records.size() - spillCount, records.size());
+			for (byte[] b : waiting) {
+				ObjectInputStream o = new ObjectInputStream(new ByteArrayInputStream(b));
+				c.add((T) o.readObject());
+			}
+			return waiting.size();
+		} catch (Exception e) {
+			System.err.println("Mailbox " + name + ": could not copy spilled messages: " + e);
+			return 0;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void closeSpill() {
+		try {
+			spillOut.close();
+			if (spillIn != null) {
+				spillIn.close();
+			}
+		} catch (IOException e) {
+		}
+		spillFile.delete();
+		spillOut = null;
+		spillIn = null;
+		spillFile = null;
+	}
+
+	private void noteSize() {
+		int size = capacity - slots.availablePermits();
+		int h;
+		while (size > (h = highWater.get()) && !highWater.compareAndSet(h, size)) {
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/** @return most messages held at once, or 0 if unbounded */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public Overflow getPolicy() {
+		return policy;
+	}
+
+	/** @return messages waiting to be drained, spilled ones included.
+	 * Only known for a bounded mailbox; 0 otherwise. */
+	public int size() {
+		if (slots == null) {
+			return 0;
+		}
+		int size = capacity - slots.availablePermits();
+		synchronized (this) {
+			return size + spillCount;
+		}
+	}
+
+	/** @return messages posted, including any turned away */
+	public long getPosted() {
+		return posted.get();
+	}
+
+	/** @return posts that had to wait for room (BLOCK) */
+	public long getBlocked() {
+		return blocked.get();
+	}
+
+	/** @return messages thrown away (DROP_OLDEST, or spills that
+	 * could not be read back) */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/** @return messages turned away (REJECT, or SPILL failures) */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/** @return messages written out to disk (SPILL) */
+	public long getSpilled() {
+		return spilled.get();
+	}
+
+	/** @return most messages held in memory at once */
+	public int getHighWater() {
+		return highWater.get();
+	}
+
+	/** @return times the capacity was hit, whatever the policy did */
+	public long getLimitHits() {
+		return blocked.get() + dropped.get() + rejected.get() + spilled.get();
+	}
+}
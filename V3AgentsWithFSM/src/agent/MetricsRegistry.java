@@ -0,0 +1,143 @@
+package agent;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Holds the AgentMetrics of every agent started while metrics are
+ * enabled (setEnabled(true) or -Dagent.metrics=true), and prints them as
+ * a table, e.g. at the end of a headless run.  Named, bounded Mailboxes
+ * are listed too, with how often they ran out of room, and AgentGroups,
+ * with how many wake-ups stayed on the group's thread.
+ */
+public class MetricsRegistry {
+	private static volatile boolean enabled = Boolean.getBoolean("agent.metrics");
+	private static final List<AgentMetrics> all = new CopyOnWriteArrayList<AgentMetrics>();
+	private static final List<Mailbox<?>> mailboxes = new CopyOnWriteArrayList<Mailbox<?>>();
+
+	/** Don't construct. */
+	private MetricsRegistry() {
+	}
+
+	/** Agents started after this call are measured. */
+	public static void setEnabled(boolean b) {
+		enabled = b;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/** @return metrics for a newly started agent, or null when disabled */
+	static AgentMetrics register(Agent agent) {
+		if (!enabled) {
+			return null;
+		}
+		AgentMetrics m = new AgentMetrics(agent);
+		all.add(m);
+		return m;
+	}
+
+	/** Called by every named Mailbox, whether or not metrics are enabled */
+	static void register(Mailbox<?> box) {
+		mailboxes.add(box);
+	}
+
+	/** @return metrics of every measured agent, in start order */
+	public static List<AgentMetrics> getAll() {
+		return Collections.unmodifiableList(all);
+	}
+
+	/** Forget everything measured so far. */
+	public static void clear() {
+		all.clear();
+		mailboxes.clear();
+	}
+
+	/** @return every named mailbox, in creation order */
+	public static List<Mailbox<?>> getMailboxes() {
+		return Collections.unmodifiableList(mailboxes);
+	}
+
+	/** Print one line per agent, then one per named mailbox.  Times are
+	 * in microseconds. */
+	public static void dump(PrintStream out) {
+		out.println(String.format("%-20s %-14s %9s %9s %9s %9s %6s %22s %22s",
+			"agent", "type", "passes", "idle", "calls", "actions", "busy%",
+			"pick p50/p99/max", "msg p50/p99/max"));
+		for (AgentMetrics m : all) {
+			out.println(String.format("%-20s %-14s %9d %9d %9d %9d %6.2f %22s %22s",
+				m.getAgentName(), m.getAgentType(), m.getPasses(),
+				m.getIdlePasses(), m.getCalls(), m.getActions(),
+				m.getBusyPercent(), micros(m.getPickTime()),
+				micros(m.getMessageLatency())));
+		}
+		dumpClasses(out);
+		if (!mailboxes.isEmpty()) {
+			dumpMailboxes(out);
+		}
+		if (!AgentGroup.getAll().isEmpty()) {
+			dumpGroups(out);
+		}
+		out.flush();
+	}
+
+	/** Print one line per scheduling class: message latency of its agents
+	 * all together, and for POOLED agents how long they waited for a
+	 * worker and how often aging let them go ahead. */
+	public static void dumpClasses(PrintStream out) {
+		out.println(String.format("%-11s %6s %9s %22s %9s %7s %22s",
+			"class", "agents", "passes", "msg p50/p99/max",
+			"pooled", "aged", "queue p50/p99/max"));
+		for (Agent.Priority p : Agent.Priority.values()) {
+			int agents = 0;
+			long passes = 0;
+			Histogram msg = new Histogram();
+			for (AgentMetrics m : all) {
+				if (m.getPriority() == p) {
+					agents++;
+					passes += m.getPasses();
+					msg.add(m.getMessageLatency());
+				}
+			}
+			out.println(String.format("%-11s %6d %9d %22s %9d %7d %22s",
+				p, agents, passes, micros(msg),
+				AgentScheduler.getServed(p), AgentScheduler.getAged(p),
+				micros(AgentScheduler.getQueueWait(p))));
+		}
+	}
+
+	/** Print one line per named mailbox: its limit and how often it was hit. */
+	public static void dumpMailboxes(PrintStream out) {
+		out.println(String.format("%-20s %-11s %8s %9s %5s %8s %8s %8s %8s",
+			"mailbox", "policy", "capacity", "posted", "high", "blocked",
+			"dropped", "rejected", "spilled"));
+		for (Mailbox<?> b : mailboxes) {
+			out.println(String.format("%-20s %-11s %8d %9d %5d %8d %8d %8d %8d",
+				b.getName(), b.getPolicy(), b.getCapacity(), b.getPosted(),
+				b.getHighWater(), b.getBlocked(), b.getDropped(),
+				b.getRejected(), b.getSpilled()));
+		}
+		out.flush();
+	}
+
+	/** Print one line per AgentGroup: wake-ups from inside the group,
+	 * which stayed on its thread, and from outside. */
+	public static void dumpGroups(PrintStream out) {
+		out.println(String.format("%-20s %7s %10s %10s %7s",
+			"group", "members", "local", "remote", "local%"));
+		for (AgentGroup g : AgentGroup.getAll()) {
+			long local = g.getLocalWakeups(), remote = g.getRemoteWakeups();
+			out.println(String.format("%-20s %7d %10d %10d %7.2f",
+				g.getName(), g.getMembers().size(), local, remote,
+				local + remote == 0 ? 0.0 : 100.0 * local / (local + remote)));
+		}
+		out.flush();
+	}
+
+	private static String micros(Histogram h) {
+		return (h.getPercentile(0.5) / 1000) + "/" + (h.getPercentile(0.99) / 1000)
+			+ "/" + (h.getMax() / 1000);
+	}
+}
@@ -0,0 +1,239 @@
+package agent;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Discrete-event clock.  Time stands still while any agent has work to
+ * do; once every agent is idle (or sleeping, or waiting in acquire()),
+ * the clock jumps straight to the next pending event and runs it.  An
+ * evening of timers and animation delays therefore takes only as long as
+ * the agents' actual work.
+ *
+ * Events due at the same time run in the order they were scheduled, and
+ * all of them run on the clock's own thread, one at a time.
+ *
+ * runUntil(t) holds the clock at t: nothing due later runs, so once it
+ * returns the agents' state can be read without it changing underneath.
+ */
+public class SimulatedClock extends Clock {
+	private class Event implements Comparable<Event>, Timeout {
+		final long time;
+		final long seq;
+		final Runnable task;
+		boolean done; // ran or was cancelled; guarded by the clock
+
+		Event(long time, long seq, Runnable task) {
+			this.time = time;
+			this.seq = seq;
+			this.task = task;
+		}
+
+		public int compareTo(Event o) {
+			if (time != o.time) {
+				return time < o.time ? -1 : 1;
+			}
+			return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+		}
+
+		public boolean cancel() {
+			synchronized (SimulatedClock.this) {
+				if (done) {
+					return false;
+				}
+				done = true;
+				return true;
+			}
+		}
+	}
+
+	private static final long POLL_MILLIS = 10;
+
+	// All guarded by this
+	private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+	private long now;
+	private long nextSeq = 0;
+	private int busy = 0; // agents with work, threads woken by events, the running event
+	private long eventsRun = 0;
+	private long limit = Long.MAX_VALUE; // events due after this wait
+
+	/** Start the simulation at time 0. */
+	public SimulatedClock() {
+		this(0);
+	}
+
+	/** Start the simulation at the given time. */
+	public SimulatedClock(long startMillis) {
+		now = startMillis;
+		Thread driver = new Thread("SimulatedClock") {
+			public void run() {
+				drive();
+			}
+		};
+		driver.setDaemon(true);
+		driver.start();
+	}
+
+	public synchronized long currentTimeMillis() {
+		return now;
+	}
+
+	public synchronized Timeout schedule(Runnable task, long delayMillis) {
+		Event e = new Event(now + Math.max(0, delayMillis), nextSeq++, task);
+		events.add(e);
+		notifyAll();
+		return e;
+	}
+
+	/** Sleep in simulated time.  The caller counts as idle until the
+	 * clock reaches the wake-up time. */
+	public void sleep(long millis) throws InterruptedException {
+		final CountDownLatch wake = new CountDownLatch(1);
+		Event e;
+		synchronized (this) {
+			// The clock counts the sleeper busy again before waking it,
+			// so time cannot move on before it has run.
+			e = new Event(now + Math.max(0, millis), nextSeq++, new Runnable() {
+				public void run() {
+					synchronized (SimulatedClock.this) {
+						busy++;
+					}
+					wake.countDown();
+				}
+			});
+			events.add(e);
+			idle();
+		}
+		try {
+			block(new ForkJoinPool.ManagedBlocker() {
+				public boolean block() throws InterruptedException {
+					wake.await();
+					return true;
+				}
+
+				public boolean isReleasable() {
+					return wake.getCount() == 0;
+				}
+			});
+		} catch (InterruptedException ie) {
+			synchronized (this) {
+				if (e.cancel()) {
+					busy++;
+				}
+			}
+			throw ie;
+		}
+	}
+
+	/** Acquire a permit.  Rather than block, the caller sleeps in
+	 * simulated time and tries again every POLL_MILLIS, so it counts as
+	 * idle while it waits and as busy the moment it has the permit; a
+	 * release is noticed up to POLL_MILLIS late, and the semaphore's
+	 * fairness is not kept. */
+	public void acquire(Semaphore s) throws InterruptedException {
+		while (!s.tryAcquire()) {
+			sleep(POLL_MILLIS);
+		}
+	}
+
+	protected synchronized void agentBusy() {
+		busy++;
+	}
+
+	protected synchronized void agentIdle() {
+		idle();
+	}
+
+	/** Block until simulated time reaches t, or until nothing is left to
+	 * happen. */
+	public synchronized void awaitTime(long t) throws InterruptedException {
+		while (now < t && !isQuiet()) {
+			wait();
+		}
+	}
+
+	/** Run the simulation up to time t and hold it there: events due
+	 * after t are kept for later.  Returns once every agent is idle and
+	 * nothing due by t is left, with the clock at t, or earlier if
+	 * nothing at all is left to happen. */
+	public synchronized void runUntil(long t) throws InterruptedException {
+		limit = t;
+		notifyAll();
+		while (busy > 0 || isDue()) {
+			wait();
+		}
+		if (!events.isEmpty() && now < t) {
+			now = t;
+		}
+	}
+
+	/** Keep the clock at the current time, running only what is due now,
+	 * until runUntil() lets it go on.  For setting up agents that have
+	 * timers but have not been started, as Checkpoint.restore() does. */
+	public synchronized void hold() {
+		limit = now;
+	}
+
+	/** Block until every agent is idle and no events are pending. */
+	public synchronized void awaitQuiet() throws InterruptedException {
+		while (!isQuiet()) {
+			wait();
+		}
+	}
+
+	/** @return number of events run so far */
+	public synchronized long getEventsRun() {
+		return eventsRun;
+	}
+
+	private void idle() {
+		busy--;
+		if (busy <= 0) {
+			notifyAll();
+		}
+	}
+
+	private boolean isQuiet() {
+		return busy <= 0 && events.isEmpty();
+	}
+
+	// An event is waiting that may run by now
+	private boolean isDue() {
+		return !events.isEmpty() && events.peek().time <= limit;
+	}
+
+	private void drive() {
+		while (true) {
+			Event e;
+			synchronized (this) {
+				try {
+					while (busy > 0 || !isDue()) {
+						wait();
+					}
+				} catch (InterruptedException ie) {
+					return;
+				}
+				e = events.poll();
+				if (e.done) {
+					notifyAll(); // it may have been the last one
+					continue;
+				}
+				e.done = true;
+				if (e.time > now) {
+					now = e.time;
+				}
+				eventsRun++;
+				busy++; // until the task has passed its work on
+				notifyAll();
+			}
+			try {
+				e.task.run();
+			} catch (RuntimeException ex) {
+				ex.printStackTrace();
+			}
+			synchronized (this) {
+				idle();
+			}
+		}
+	}
+}
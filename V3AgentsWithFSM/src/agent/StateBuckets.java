@@ -0,0 +1,80 @@
+package agent;
+
+import java.util.*;
+
+/**
+ * Items sorted into one bucket per state, so that a scheduler rule like
+ * "if there is a customer who needs seating" is a lookup rather than a
+ * scan of every customer.  Call setState() on every transition and the
+ * buckets stay current; each bucket keeps its items in the order they
+ * entered that state, so first() is the one that has waited longest.
+ *
+ * Synchronized, so messages from other agents may move items while the
+ * owner's scheduler reads them.
+ */
+public class StateBuckets<S extends Enum<S>, T> {
+	private final EnumMap<S, LinkedHashSet<T>> buckets;
+	private final Map<T, S> states = new HashMap<T, S>();
+
+	public StateBuckets(Class<S> stateType) {
+		buckets = new EnumMap<S, LinkedHashSet<T>>(stateType);
+		for (S s : stateType.getEnumConstants())
+			buckets.put(s, new LinkedHashSet<T>());
+	}
+
+	/** Put item in the bucket for state, moving it out of its old one
+	 * if it already had a state.
+	 * @return the state it had before, or null if it is new */
+	public synchronized S setState(T item, S state) {
+		S old = states.put(item, state);
+		if (old == state)
+			return old;
+		if (old != null)
+			buckets.get(old).remove(item);
+		buckets.get(state).add(item);
+		return old;
+	}
+
+	/** @return item's state, or null if it is not here */
+	public synchronized S getState(T item) {
+		return states.get(item);
+	}
+
+	/** Forget item altogether.
+	 * @return true if it was here */
+	public synchronized boolean remove(T item) {
+		S old = states.remove(item);
+		if (old == null)
+			return false;
+		buckets.get(old).remove(item);
+		return true;
+	}
+
+	/** @return the item that has been in state longest, or null if none */
+	public synchronized T first(S state) {
+		Iterator<T> i = buckets.get(state).iterator();
+		return i.hasNext() ? i.next() : null;
+	}
+
+	/** @return every item in state, oldest first.  A copy, so the
+	 * caller may change states while going through it. */
+	public synchronized List<T> items(S state) {
+		return new ArrayList<T>(buckets.get(state));
+	}
+
+	public synchronized boolean isEmpty(S state) {
+		return buckets.get(state).isEmpty();
+	}
+
+	public synchronized int size(S state) {
+		return buckets.get(state).size();
+	}
+
+	public synchronized boolean isEmpty() {
+		return states.isEmpty();
+	}
+
+	public synchronized int size() {
+		return states.size();
+	}
+}
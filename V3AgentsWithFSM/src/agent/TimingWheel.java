@@ -0,0 +1,215 @@
+package agent;
+
+import java.util.*;
+
+/**
+ * Hierarchical timing wheel: one thread runs every delayed task in the
+ * program.  Time is cut into ticks (10ms unless -Dagent.timer.tickMillis
+ * says otherwise).  Level 0 has a slot for each of the next 256 ticks;
+ * each level above covers 256 times the span of the one below.  A task
+ * goes in the lowest level whose span reaches its deadline and moves down
+ * a level each time the wheel below comes round, so schedule() and
+ * cancel() are a few array and list operations whatever the number of
+ * pending tasks.  Tasks fire on a tick boundary, up to one tick late.
+ *
+ * Tasks run on the wheel's thread, one at a time, and should only send
+ * messages.
+ */
+public class TimingWheel {
+	private static final int BITS = 8;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 4; // 2^32 ticks, over a year at 10ms
+
+	private static final long DEFAULT_TICK =
+		Long.getLong("agent.timer.tickMillis", 10).longValue();
+
+	/** A pending task; a member of one doubly-linked slot list. */
+	private class Entry implements Clock.Timeout {
+		final long deadline; // tick
+		final Runnable task;
+		Entry prev, next; // null when not in the wheel; guarded by the wheel
+
+		Entry(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		public boolean cancel() {
+			synchronized (TimingWheel.this) {
+				if (prev == null) {
+					return false; // already run or cancelled
+				}
+				unlink(this);
+				size--;
+				return true;
+			}
+		}
+	}
+
+	private final long tickMillis;
+	private final long startMillis = System.currentTimeMillis();
+
+	// All guarded by this
+	private final Entry[][] wheels = new Entry[LEVELS][SLOTS]; // list heads
+	private final Entry overflow; // beyond the top level
+	private long currentTick = 0; // last tick processed
+	private int size = 0;
+
+	private final List<Runnable> expired = new ArrayList<Runnable>(); // wheel thread only
+
+	public TimingWheel(String name) {
+		this(name, DEFAULT_TICK);
+	}
+
+	public TimingWheel(String name, long tickMillis) {
+		this.tickMillis = Math.max(1, tickMillis);
+		for (int l = 0; l < LEVELS; l++) {
+			for (int s = 0; s < SLOTS; s++) {
+				wheels[l][s] = newHead();
+			}
+		}
+		overflow = newHead();
+		Thread t = new Thread(name) {
+			public void run() {
+				turn();
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** Run task once, delayMillis from now (rounded up to a tick). */
+	public synchronized Clock.Timeout schedule(Runnable task, long delayMillis) {
+		long now = nowTick();
+		if (size == 0 && now > currentTick) {
+			// Nothing is pending, so the ticks we slept through had no
+			// work; skip them instead of walking through them.
+			currentTick = now;
+		}
+		long deadline = now + (Math.max(0, delayMillis) + tickMillis - 1) / tickMillis;
+		Entry e = new Entry(Math.max(deadline, currentTick + 1), task);
+		insert(e);
+		size++;
+		if (size == 1) {
+			notifyAll();
+		}
+		return e;
+	}
+
+	/** @return number of tasks waiting to run */
+	public synchronized int size() {
+		return size;
+	}
+
+	public long getTickMillis() {
+		return tickMillis;
+	}
+
+	private long nowTick() {
+		return (System.currentTimeMillis() - startMillis) / tickMillis;
+	}
+
+	private Entry newHead() {
+		Entry h = new Entry(0, null);
+		h.prev = h;
+		h.next = h;
+		return h;
+	}
+
+	/** Put e in the lowest level where its deadline lies in the same
+	 * block as the current tick; its slot there is then still ahead of
+	 * the wheel's hand. */
+	private void insert(Entry e) {
+		long diff = e.deadline ^ currentTick;
+		for (int l = 0; l < LEVELS; l++) {
+			if ((diff >>> (BITS * (l + 1))) == 0) {
+				link(wheels[l][(int) (e.deadline >>> (BITS * l)) & MASK], e);
+				return;
+			}
+		}
+		link(overflow, e);
+	}
+
+	private static void link(Entry head, Entry e) {
+		e.prev = head.prev;
+		e.next = head;
+		head.prev.next = e;
+		head.prev = e;
+	}
+
+	private static void unlink(Entry e) {
+		e.prev.next = e.next;
+		e.next.prev = e.prev;
+		e.prev = null;
+		e.next = null;
+	}
+
+	/** Re-insert everything in a slot relative to the current tick. */
+	private void cascade(Entry head) {
+		Entry e = head.next;
+		head.next = head;
+		head.prev = head;
+		while (e != head) {
+			Entry next = e.next;
+			insert(e);
+			e = next;
+		}
+	}
+
+	/** The wheel thread: wait for work, then advance tick by tick,
+	 * running whatever falls due. */
+	private void turn() {
+		while (true) {
+			synchronized (this) {
+				try {
+					while (size == 0) {
+						wait();
+					}
+					long wait;
+					while ((wait = startMillis + (currentTick + 1) * tickMillis
+							- System.currentTimeMillis()) > 0) {
+						wait(wait);
+					}
+				} catch (InterruptedException ie) {
+					return;
+				}
+				long now = nowTick();
+				while (currentTick < now && expired.size() < SLOTS) {
+					advance();
+				}
+			}
+			for (int i = 0; i < expired.size(); i++) {
+				try {
+					expired.get(i).run();
+				} catch (RuntimeException ex) {
+					ex.printStackTrace();
+				}
+			}
+			expired.clear();
+		}
+	}
+
+	/** Process the next tick: move down whatever the lower wheels now
+	 * cover, then collect the level 0 slot. */
+	private void advance() {
+		long t = ++currentTick;
+		if ((t & ((1L << (BITS * LEVELS)) - 1)) == 0) {
+			cascade(overflow);
+		}
+		for (int l = LEVELS - 1; l >= 1; l--) {
+			if ((t & ((1L << (BITS * l)) - 1)) == 0) {
+				cascade(wheels[l][(int) (t >>> (BITS * l)) & MASK]);
+			}
+		}
+		Entry head = wheels[0][(int) t & MASK];
+		Entry e = head.next;
+		while (e != head) {
+			Entry next = e.next;
+			unlink(e);
+			size--;
+			expired.add(e.task);
+			e = next;
+		}
+	}
+}
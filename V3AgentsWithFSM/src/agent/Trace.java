@@ -0,0 +1,395 @@
+package agent;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * Record and replay of an agent run.
+ *
+ * While a trace is being recorded or replayed, agents take turns: one
+ * scheduler pass runs at a time, until it ends or blocks in the clock
+ * (sleep, acquire), and then the next waiting agent gets its turn.
+ * Recording writes down who got each turn, along with every message
+ * sent (stateChanged() called by the agent whose turn it is), every
+ * timer message delivered and every random draw made with
+ * Agent.random().  Replaying hands out turns in the recorded order and
+ * gives back the recorded random draws, so the agents do exactly what
+ * they did before.  Sends and timers are checked against the log as
+ * they happen; at the first difference replay says where and goes on
+ * unchecked.
+ *
+ * Meant for the SimulatedClock: with the wall clock, timers fire
+ * whenever the machine gets to them and a replay soon diverges.  Code
+ * outside the agents that sends them messages, such as a main thread
+ * starting them up, should do so inside outside() to take a turn too.
+ *
+ * Turn it on with -Dagent.record=file or -Dagent.replay=file, or with
+ * record()/replay() before any agent is started.  Call close() at the
+ * end of a recorded run so the log is complete.
+ *
+ * The log is a small header followed by one event per record: a kind
+ * byte, then the agent ids and value as unsigned varints.  Agents are
+ * numbered 1, 2, ... in the order they were created; 0 is anyone else.
+ */
+public class Trace {
+	public enum Mode {OFF, RECORD, REPLAY};
+
+	private static final int MAGIC = 0x41475452; // "AGTR"
+	private static final int VERSION = 1;
+	private static final int END = 0, TURN = 1, SEND = 2, TIMER = 3, RANDOM = 4;
+	private static final String[] KINDS = {"end", "turn", "send", "timer", "random"};
+
+	/** How long replay waits for the agent whose turn it is before it
+	 * gives up on the log, in real milliseconds */
+	private static final long STALL_MILLIS = Long.getLong("agent.replay.stallMillis", 10000);
+
+	private static volatile Mode mode = Mode.OFF;
+	private static int nextId = 1; // guarded by Trace.class
+
+	// All guarded by lock
+	private static final Object lock = new Object();
+	private static Thread holder; // thread whose turn it is
+	private static DataOutputStream out;
+	private static DataInputStream in;
+	private static long events = 0;
+	private static boolean diverged = false;
+	// Replay: the next event in the log
+	private static int nextKind = END, nextA, nextB;
+
+	// Agent id of the turn this thread holds, or -1
+	private static final ThreadLocal<int[]> turn = new ThreadLocal<int[]>() {
+		protected int[] initialValue() {
+			return new int[] {-1};
+		}
+	};
+
+	static {
+		try {
+			String r = System.getProperty("agent.record");
+			String p = System.getProperty("agent.replay");
+			if (r != null) {
+				record(new File(r));
+			} else if (p != null) {
+				replay(new File(p));
+			}
+		} catch (IOException e) {
+			System.err.println("Trace: " + e);
+		}
+	}
+
+	/** Don't construct. */
+	private Trace() {
+	}
+
+	/** Record the run from now on into file. */
+	public static void record(File file) throws IOException {
+		synchronized (lock) {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			events = 0;
+			mode = Mode.RECORD;
+		}
+	}
+
+	/** Replay the run recorded in file. */
+	public static void replay(File file) throws IOException {
+		synchronized (lock) {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+			if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+				throw new IOException(file + " is not an agent trace");
+			}
+			diverged = false;
+			events = 0;
+			readNext();
+			mode = Mode.REPLAY;
+		}
+	}
+
+	public static Mode getMode() {
+		return mode;
+	}
+
+	/** @return true if a replay has stopped following its log */
+	public static boolean hasDiverged() {
+		synchronized (lock) {
+			return diverged;
+		}
+	}
+
+	/** @return events recorded or replayed so far */
+	public static long getEvents() {
+		synchronized (lock) {
+			return events;
+		}
+	}
+
+	/** Finish the log.  Agents keep taking turns, but nothing more is
+	 * recorded. */
+	public static void close() throws IOException {
+		synchronized (lock) {
+			if (out != null) {
+				out.writeByte(END);
+				out.close();
+				out = null;
+			}
+			if (in != null) {
+				in.close();
+				in = null;
+				nextKind = END;
+			}
+		}
+	}
+
+	/** Run r as a turn of its own, so the messages it sends happen at
+	 * the same point of a replay as they did when recorded. */
+	public static void outside(Runnable r) {
+		boolean took = enter(0);
+		try {
+			r.run();
+		} finally {
+			if (took) {
+				leave();
+			}
+		}
+	}
+
+	/** @return the id for a newly created agent */
+	static synchronized int register() {
+		return nextId++;
+	}
+
+	/** Wait for agent id's turn.  Returns at once when tracing is off,
+	 * or if this thread already has a turn.  Waits as a ManagedBlocker,
+	 * so a POOLED agent waiting for its turn does not hold up the one
+	 * whose turn it is.
+	 * @return true if a turn was taken; pass it back with leave() */
+	static boolean enter(int id) {
+		if (mode == Mode.OFF) {
+			return false;
+		}
+		int[] t = turn.get();
+		if (t[0] >= 0) {
+			return false;
+		}
+		TurnWait w = new TurnWait(id);
+		boolean interrupted = false;
+		while (!w.isReleasable()) {
+			try {
+				ForkJoinPool.managedBlock(w);
+			} catch (InterruptedException e) {
+				interrupted = true; // kept for the caller, once it has its turn
+			}
+		}
+		t[0] = id;
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return true;
+	}
+
+	/** Takes agent id's turn as soon as it comes round. */
+	private static class TurnWait implements ForkJoinPool.ManagedBlocker {
+		private final int id;
+		private boolean taken = false;
+
+		TurnWait(int id) {
+			this.id = id;
+		}
+
+		public boolean isReleasable() {
+			synchronized (lock) {
+				if (!taken && holder == null && myTurn(id)) {
+					take();
+				}
+				return taken;
+			}
+		}
+
+		public boolean block() throws InterruptedException {
+			synchronized (lock) {
+				long seen = events;
+				long since = System.currentTimeMillis();
+				while (holder != null || !myTurn(id)) {
+					lock.wait(100);
+					if (events != seen) {
+						seen = events;
+						since = System.currentTimeMillis();
+					} else if (holder == null && System.currentTimeMillis() - since > STALL_MILLIS) {
+						diverge("agent " + id + " waiting for its turn, log wants " + describeNext());
+					}
+				}
+				take();
+				return true;
+			}
+		}
+
+		//Caller holds lock
+		private void take() {
+			holder = Thread.currentThread();
+			taken = true;
+			if (following()) {
+				consume();
+			} else {
+				write(TURN, id, 0);
+			}
+		}
+	}
+
+	/** Give up the turn taken with enter(). */
+	static void leave() {
+		turn.get()[0] = -1;
+		synchronized (lock) {
+			holder = null;
+			lock.notifyAll();
+		}
+	}
+
+	/** Give up this thread's turn while it blocks, if it has one.
+	 * @return the agent id to pass to resume() */
+	static int pause() {
+		if (mode == Mode.OFF) {
+			return -1;
+		}
+		int id = turn.get()[0];
+		if (id >= 0) {
+			leave();
+		}
+		return id;
+	}
+
+	/** Take the turn back after pause(). */
+	static void resume(int id) {
+		if (id >= 0) {
+			enter(id);
+		}
+	}
+
+	/** A message from the thread whose turn it is to agent to. */
+	static void send(int to) {
+		if (mode == Mode.OFF) {
+			return;
+		}
+		int from = turn.get()[0];
+		if (from >= 0) {
+			event(SEND, from, to);
+		}
+	}
+
+	/** A timer message delivered to agent id. */
+	static void timer(int id) {
+		if (mode != Mode.OFF && turn.get()[0] >= 0) {
+			event(TIMER, id, 0);
+		}
+	}
+
+	/** A random draw by agent id.
+	 * @return value, or when replaying the value drawn in the recording */
+	static int random(int id, int value) {
+		if (mode == Mode.OFF) {
+			return value;
+		}
+		synchronized (lock) {
+			if (following() && nextKind == RANDOM && nextA == id) {
+				value = nextB;
+				consume();
+			} else if (following()) {
+				diverge("agent " + id + " drew a random number, log wants " + describeNext());
+			} else {
+				write(RANDOM, id, value);
+			}
+		}
+		return value;
+	}
+
+	private static void event(int kind, int a, int b) {
+		synchronized (lock) {
+			if (following()) {
+				if (nextKind == kind && nextA == a && nextB == b) {
+					consume();
+				} else {
+					diverge(KINDS[kind] + " " + a + "," + b + ", log wants " + describeNext());
+				}
+			} else {
+				write(kind, a, b);
+			}
+		}
+	}
+
+	//True while a replay still goes by its log.  Caller holds lock.
+	private static boolean following() {
+		return mode == Mode.REPLAY && !diverged && nextKind != END;
+	}
+
+	//Replay turns go by the log, recorded ones to whoever asks first
+	private static boolean myTurn(int id) {
+		return !following() || (nextKind == TURN && nextA == id);
+	}
+
+	private static void diverge(String why) {
+		diverged = true;
+		System.err.println("Trace: replay diverged after " + events + " events: " + why);
+		lock.notifyAll();
+	}
+
+	private static String describeNext() {
+		return nextKind == END ? "end" : KINDS[nextKind] + " " + nextA + "," + nextB;
+	}
+
+	private static void write(int kind, int a, int b) {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.writeByte(kind);
+			writeVarint(a);
+			if (kind == SEND || kind == RANDOM) {
+				writeVarint(b);
+			}
+			events++;
+		} catch (IOException e) {
+			System.err.println("Trace: recording stopped: " + e);
+			out = null;
+		}
+	}
+
+	//Replay: the next event has happened as logged
+	private static void consume() {
+		events++;
+		readNext();
+	}
+
+	private static void readNext() {
+		try {
+			nextKind = in.readByte();
+			if (nextKind > END && nextKind < KINDS.length) {
+				nextA = readVarint();
+				nextB = (nextKind == SEND || nextKind == RANDOM) ? readVarint() : 0;
+				return;
+			}
+		} catch (IOException e) {
+			// a log cut short replays as far as it goes
+		}
+		nextKind = END;
+		System.err.println("Trace: end of log after " + events + " events");
+	}
+
+	private static void writeVarint(int v) throws IOException {
+		while ((v & ~0x7f) != 0) {
+			out.writeByte((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte(v);
+	}
+
+	private static int readVarint() throws IOException {
+		int v = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = in.readByte();
+			v |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+	}
+}
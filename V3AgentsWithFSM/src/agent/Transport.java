@@ -0,0 +1,660 @@
+package agent;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Messages between agents in different JVMs, over TCP, on the loopback
+ * interface unless told otherwise.
+ *
+ * Each JVM makes a Transport, export()s the agents others may send to,
+ * and either listen()s or connect()s.  Peers tell each other the names of
+ * their exported agents, and send(agent, message, args) then calls the
+ * public method named message on that agent in whichever JVM has it, as
+ * if it had been called there.  Only msg... methods can be called this
+ * way, and there is no authentication: anyone who can reach the port can
+ * send any message to any exported agent.  So listen(port) only accepts
+ * connections from this machine; listen(address, port), or
+ * -Dagent.transport.bind=address for listen(port), opens it wider, e.g.
+ * 0.0.0.0 for every interface, on a network you trust.  Code that
+ * wants an agent in another JVM to look like a local one writes a small
+ * stand-in that calls send(), and registers it with alias() so agent
+ * references coming in over the wire turn into the stand-in.  A message
+ * referring to an agent with no alias, or to a type with no Codec, is
+ * dropped with a complaint on System.err; the connection carries on.
+ *
+ * Arguments may be null, Boolean, Integer, Long, Double, String, Maps and
+ * Lists of these, Agents (sent by name) and classes with a Codec.
+ *
+ * The wire format is a stream of frames, each an int length and a batch
+ * of messages.  Numbers are varints.  Names (of agents, messages and
+ * Codec classes) are sent once per connection and then by number; there
+ * are only so many of them.  String arguments are sent as they are each
+ * time, since values like order ids would fill the tables forever.  A
+ * connection's writer thread sends whatever has piled up since its last
+ * write as one frame, so a busy sender gets batching for free.
+ *
+ * Remote messages are delivered on the connection's reader thread, like
+ * any message from another thread.  Timing does not cross JVMs, so use
+ * the wall clock, and no Trace.
+ */
+public class Transport {
+	/** How to send a class that is not one of the built-in kinds. */
+	public interface Codec<T> {
+		/** @return the values to send; any kind send() takes */
+		Object[] fields(T value);
+
+		/** @return the value rebuilt from fields() as received */
+		T make(Object[] fields);
+	}
+
+	private static final int MSG = 1, EXPORT = 2;
+	private static final int NULL = 0, TRUE = 1, FALSE = 2, INT = 3, LONG = 4,
+		DOUBLE = 5, STRING = 6, MAP = 7, LIST = 8, AGENT = 9, OBJECT = 10;
+
+	private static final ConcurrentHashMap<String, Codec<?>> codecs =
+		new ConcurrentHashMap<String, Codec<?>>();
+
+	private final String node;
+	// Agents by name: exported ones, and stand-ins for remote ones
+	private final ConcurrentHashMap<String, Agent> agents = new ConcurrentHashMap<String, Agent>();
+	private final Set<String> exported = new CopyOnWriteArraySet<String>();
+	// Which connection has each remote agent
+	private final ConcurrentHashMap<String, Connection> routes = new ConcurrentHashMap<String, Connection>();
+	private final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+	private final ConcurrentHashMap<String, Method> methods = new ConcurrentHashMap<String, Method>();
+	private volatile ServerSocket server;
+	private volatile boolean closed = false;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong frames = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong undeliverable = new AtomicLong();
+
+	/** @param node name of this JVM, for thread names and messages */
+	public Transport(String node) {
+		this.node = node;
+	}
+
+	/** How to send values of type c. */
+	public static <T> void register(Class<T> c, Codec<T> codec) {
+		codecs.put(c.getName(), codec);
+	}
+
+	/** Let peers send to agent, by its name. */
+	public void export(Agent agent) {
+		String name = agent.getName();
+		agents.put(name, agent);
+		exported.add(name);
+		for (Connection c : connections) {
+			c.export(Collections.singleton(name));
+		}
+	}
+
+	/** Stand for a remote agent: references to name that come in are
+	 * handed to the receiver as stub. */
+	public void alias(String name, Agent stub) {
+		agents.put(name, stub);
+	}
+
+	/** Accept peers on port, from now until close(): on loopback, or the
+	 * address in -Dagent.transport.bind. */
+	public void listen(int port) throws IOException {
+		String bind = System.getProperty("agent.transport.bind");
+		listen(bind == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind), port);
+	}
+
+	/** Accept peers on port at address, from now until close().  A
+	 * wildcard address (0.0.0.0) lets in every host that can reach this
+	 * one. */
+	public void listen(InetAddress address, int port) throws IOException {
+		server = new ServerSocket(port, 50, address);
+		Thread t = new Thread("Transport-" + node + "-accept") {
+			public void run() {
+				while (!closed) {
+					try {
+						open(server.accept());
+					} catch (IOException e) {
+						if (!closed) {
+							System.err.println("Transport " + node + ": " + e);
+						}
+					}
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** @return the port listen() is on, e.g. after listen(0) */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/** Connect to a peer that listen()s. */
+	public void connect(String host, int port) throws IOException {
+		open(new Socket(host, port));
+	}
+
+	/** Wait until some peer has exported name.
+	 * @return false if it had not after millis */
+	public boolean await(String name, long millis) throws InterruptedException {
+		long end = System.currentTimeMillis() + millis;
+		synchronized (routes) {
+			while (!routes.containsKey(name) && !exported.contains(name)) {
+				long left = end - System.currentTimeMillis();
+				if (left <= 0) {
+					return false;
+				}
+				routes.wait(left);
+			}
+		}
+		return true;
+	}
+
+	/** Call message(args) on the agent called name, here or in whichever
+	 * JVM exported it.  Returns once the message is queued for sending. */
+	public void send(String name, String message, Object... args) {
+		Agent local = exported.contains(name) ? agents.get(name) : null;
+		if (local != null) {
+			deliver(local, message, args);
+			return;
+		}
+		Connection c = routes.get(name);
+		if (c == null) {
+			undeliverable.incrementAndGet();
+			System.err.println("Transport " + node + ": nobody has " + name + " for " + message);
+			return;
+		}
+		try {
+			c.send(name, message, args);
+			sent.incrementAndGet();
+		} catch (IOException e) {
+			undeliverable.incrementAndGet();
+			System.err.println("Transport " + node + ": " + message + " to " + name + " not sent: " + e);
+		}
+	}
+
+	/** Stop listening and close every connection. */
+	public void close() {
+		closed = true;
+		try {
+			if (server != null) {
+				server.close();
+			}
+		} catch (IOException e) {
+		}
+		for (Connection c : connections) {
+			c.close();
+		}
+	}
+
+	/** @return messages sent to other JVMs */
+	public long getSent() {
+		return sent.get();
+	}
+
+	/** @return messages received from other JVMs */
+	public long getReceived() {
+		return received.get();
+	}
+
+	/** @return frames written; sent / frames is the batching achieved */
+	public long getFrames() {
+		return frames.get();
+	}
+
+	/** @return bytes written, frame headers included */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/** @return messages dropped for want of a route or a connection */
+	public long getUndeliverable() {
+		return undeliverable.get();
+	}
+
+	private void open(Socket s) throws IOException {
+		s.setTcpNoDelay(true); // the writer batches already
+		Connection c = new Connection(s);
+		connections.add(c);
+		c.export(exported);
+		c.start();
+	}
+
+	//Call the public method on agent, as the remote sender did.  Only
+	//messages: not stopThread(), setCook() and the like
+	private void deliver(Agent agent, String message, Object[] args) {
+		String key = agent.getClass().getName() + "." + message + "/" + args.length;
+		Method m = methods.get(key);
+		if (m == null && message.startsWith("msg")) {
+			for (Method c : agent.getClass().getMethods()) {
+				if (c.getName().equals(message) && c.getParameterTypes().length == args.length) {
+					m = c;
+					methods.put(key, m);
+					break;
+				}
+			}
+		}
+		if (m == null) {
+			undeliverable.incrementAndGet();
+			System.err.println("Transport " + node + ": " + agent.getName() + " has no " + key);
+			return;
+		}
+		try {
+			m.invoke(agent, args);
+		} catch (InvocationTargetException e) {
+			System.err.println("Transport " + node + ": " + key + " to " + agent.getName() + " threw " + e.getCause());
+		} catch (Exception e) {
+			System.err.println("Transport " + node + ": " + key + " to " + agent.getName() + ": " + e);
+		}
+	}
+
+	/** One peer: a reader thread delivering, a writer thread batching. */
+	private class Connection {
+		private final Socket socket;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+		// Encoded messages not yet written, guarded by this
+		private Buffer pending = new Buffer();
+		private Buffer writing = new Buffer();
+		private final DataOutputStream enc;
+		private final Map<String, Integer> sentNames = new HashMap<String, Integer>();
+		private final List<String> readNames = new ArrayList<String>(); // reader only
+		// Why the message being read can't be delivered, if it can't
+		// (an agent or type this side doesn't know); reader only
+		private String unreadable;
+		private volatile boolean open = true;
+
+		Connection(Socket s) throws IOException {
+			socket = s;
+			in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+			out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+			enc = new DataOutputStream(new OutputStream() {
+				public void write(int b) {
+					pending.write(b);
+				}
+
+				public void write(byte[] b, int off, int len) {
+					pending.write(b, off, len);
+				}
+			});
+		}
+
+		void start() {
+			Thread r = new Thread("Transport-" + node + "-reader") {
+				public void run() {
+					read();
+				}
+			};
+			Thread w = new Thread("Transport-" + node + "-writer") {
+				public void run() {
+					write();
+				}
+			};
+			r.setDaemon(true);
+			w.setDaemon(true);
+			r.start();
+			w.start();
+		}
+
+		synchronized void export(Collection<String> names) {
+			try {
+				for (String n : names) {
+					enc.writeByte(EXPORT);
+					writeName(n);
+				}
+			} catch (IOException e) {
+				// only the buffer is written here
+			}
+			notifyAll();
+		}
+
+		synchronized void send(String name, String message, Object[] args) throws IOException {
+			if (!open) {
+				throw new IOException("connection closed");
+			}
+			int mark = pending.size();
+			int names = sentNames.size();
+			try {
+				enc.writeByte(MSG);
+				writeName(name);
+				writeName(message);
+				writeVarint(args.length);
+				for (Object a : args) {
+					writeValue(a);
+				}
+			} catch (IOException e) {
+				// Take the message back, along with any names it introduced
+				pending.truncate(mark);
+				for (Iterator<Integer> i = sentNames.values().iterator(); i.hasNext(); ) {
+					if (i.next() >= names) {
+						i.remove();
+					}
+				}
+				throw e;
+			}
+			notifyAll();
+		}
+
+		//Writer thread: send whatever has piled up as one frame
+		private void write() {
+			try {
+				for (;;) {
+					synchronized (this) {
+						while (open && pending.size() == 0) {
+							wait();
+						}
+						if (!open) {
+							return;
+						}
+						Buffer b = pending;
+						pending = writing;
+						writing = b;
+					}
+					out.writeInt(writing.size());
+					writing.writeTo(out);
+					out.flush();
+					frames.incrementAndGet();
+					bytes.addAndGet(4 + writing.size());
+					writing.reset();
+				}
+			} catch (Exception e) {
+				lost(e);
+			}
+		}
+
+		//Reader thread
+		private void read() {
+			try {
+				for (;;) {
+					int len = in.readInt();
+					long end = len;
+					CountingInput frame = new CountingInput(in, len);
+					DataInputStream d = new DataInputStream(frame);
+					while (frame.read < end) {
+						int kind = d.readByte();
+						if (kind == EXPORT) {
+							String name = readName(d);
+							synchronized (routes) {
+								routes.put(name, this);
+								routes.notifyAll();
+							}
+						} else if (kind == MSG) {
+							String name = readName(d);
+							String message = readName(d);
+							Object[] args = new Object[readVarint(d)];
+							for (int i = 0; i < args.length; i++) {
+								args[i] = readValue(d);
+							}
+							received.incrementAndGet();
+							Agent a = exported.contains(name) ? agents.get(name) : null;
+							if (unreadable != null) {
+								// read to the end, so the next one is in step
+								undeliverable.incrementAndGet();
+								System.err.println("Transport " + node + ": " + message + " to " + name
+									+ " dropped: " + unreadable);
+								unreadable = null;
+							} else if (a == null) {
+								undeliverable.incrementAndGet();
+								System.err.println("Transport " + node + ": no agent " + name + " here for " + message);
+							} else {
+								deliver(a, message, args);
+							}
+						} else {
+							throw new IOException("bad message kind " + kind);
+						}
+					}
+				}
+			} catch (IOException e) {
+				lost(e);
+			}
+		}
+
+		private void lost(Exception e) {
+			if (open && !closed) {
+				System.err.println("Transport " + node + ": connection to "
+					+ socket.getRemoteSocketAddress() + " lost: " + e);
+			}
+			close();
+		}
+
+		void close() {
+			synchronized (this) {
+				open = false;
+				notifyAll();
+			}
+			connections.remove(this);
+			routes.values().removeAll(Collections.singleton(this));
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+
+		//Encoding, caller holds this
+
+		private void writeName(String s) throws IOException {
+			Integer i = sentNames.get(s);
+			if (i != null) {
+				writeVarint(i + 1);
+			} else {
+				sentNames.put(s, sentNames.size());
+				writeVarint(0);
+				enc.writeUTF(s);
+			}
+		}
+
+		private void writeValue(Object v) throws IOException {
+			if (v == null) {
+				enc.writeByte(NULL);
+			} else if (v instanceof Boolean) {
+				enc.writeByte((Boolean) v ? TRUE : FALSE);
+			} else if (v instanceof Integer) {
+				enc.writeByte(INT);
+				int n = (Integer) v;
+				writeVarint((n << 1) ^ (n >> 31));
+			} else if (v instanceof Long) {
+				enc.writeByte(LONG);
+				long n = (Long) v;
+				writeVarlong((n << 1) ^ (n >> 63));
+			} else if (v instanceof Double) {
+				enc.writeByte(DOUBLE);
+				enc.writeDouble((Double) v);
+			} else if (v instanceof String) {
+				enc.writeByte(STRING);
+				enc.writeUTF((String) v); // inline: values aren't numbered
+			} else if (v instanceof Map) {
+				Map<?, ?> m = (Map<?, ?>) v;
+				enc.writeByte(MAP);
+				writeVarint(m.size());
+				for (Map.Entry<?, ?> e : m.entrySet()) {
+					writeValue(e.getKey());
+					writeValue(e.getValue());
+				}
+			} else if (v instanceof List) {
+				List<?> l = (List<?>) v;
+				enc.writeByte(LIST);
+				writeVarint(l.size());
+				for (Object o : l) {
+					writeValue(o);
+				}
+			} else if (v instanceof Agent) {
+				enc.writeByte(AGENT);
+				writeName(((Agent) v).getName());
+			} else {
+				@SuppressWarnings("unchecked")
+				Codec<Object> c = (Codec<Object>) codecs.get(v.getClass().getName());
+				if (c == null) {
+					throw new NotSerializableException("no Transport.Codec for " + v.getClass().getName());
+				}
+				Object[] fields = c.fields(v);
+				enc.writeByte(OBJECT);
+				writeName(v.getClass().getName());
+				writeVarint(fields.length);
+				for (Object f : fields) {
+					writeValue(f);
+				}
+			}
+		}
+
+		private void writeVarint(int v) throws IOException {
+			while ((v & ~0x7f) != 0) {
+				enc.writeByte((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			enc.writeByte(v);
+		}
+
+		private void writeVarlong(long v) throws IOException {
+			while ((v & ~0x7fL) != 0) {
+				enc.writeByte((int) (v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			enc.writeByte((int) v);
+		}
+
+		//Decoding, reader thread only
+
+		private String readName(DataInputStream d) throws IOException {
+			int i = readVarint(d);
+			if (i == 0) {
+				String s = d.readUTF();
+				readNames.add(s);
+				return s;
+			}
+			return readNames.get(i - 1);
+		}
+
+		private Object readValue(DataInputStream d) throws IOException {
+			int tag = d.readByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case INT: {
+				int n = readVarint(d);
+				return (n >>> 1) ^ -(n & 1);
+			}
+			case LONG: {
+				long n = readVarlong(d);
+				return (n >>> 1) ^ -(n & 1);
+			}
+			case DOUBLE:
+				return d.readDouble();
+			case STRING:
+				return d.readUTF();
+			case MAP: {
+				int n = readVarint(d);
+				Map<Object, Object> m = new HashMap<Object, Object>();
+				for (int i = 0; i < n; i++) {
+					Object k = readValue(d);
+					m.put(k, readValue(d));
+				}
+				return m;
+			}
+			case LIST: {
+				int n = readVarint(d);
+				List<Object> l = new ArrayList<Object>(n);
+				for (int i = 0; i < n; i++) {
+					l.add(readValue(d));
+				}
+				return l;
+			}
+			case AGENT: {
+				String name = readName(d);
+				Agent a = agents.get(name);
+				if (a == null) {
+					unreadable = "reference to unknown agent " + name + "; alias() it";
+				}
+				return a;
+			}
+			case OBJECT: {
+				String type = readName(d);
+				Object[] fields = new Object[readVarint(d)];
+				for (int i = 0; i < fields.length; i++) {
+					fields[i] = readValue(d);
+				}
+				Codec<?> c = codecs.get(type);
+				if (c == null) {
+					unreadable = "no Transport.Codec for " + type;
+					return null;
+				}
+				return c.make(fields);
+			}
+			default:
+				throw new IOException("bad value tag " + tag);
+			}
+		}
+
+		private int readVarint(DataInputStream d) throws IOException {
+			int v = 0;
+			for (int shift = 0; ; shift += 7) {
+				int b = d.readByte();
+				v |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+		}
+
+		private long readVarlong(DataInputStream d) throws IOException {
+			long v = 0;
+			for (int shift = 0; ; shift += 7) {
+				int b = d.readByte();
+				v |= (long) (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+		}
+	}
+
+	/** A ByteArrayOutputStream that can take back a half-written message. */
+	private static class Buffer extends ByteArrayOutputStream {
+		void truncate(int size) {
+			count = size;
+		}
+	}
+
+	/** Reads one frame's worth of the stream and counts it. */
+	private static class CountingInput extends FilterInputStream {
+		long read = 0;
+		private final long limit;
+
+		CountingInput(InputStream in, long limit) {
+			super(in);
+			this.limit = limit;
+		}
+
+		public int read() throws IOException {
+			if (read >= limit) {
+				return -1;
+			}
+			int b = super.read();
+			if (b >= 0) {
+				read++;
+			}
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (read >= limit) {
+				return -1;
+			}
+			int n = super.read(b, off, (int) Math.min(len, limit - read));
+			if (n > 0) {
+				read += n;
+			}
+			return n;
+		}
+	}
+}
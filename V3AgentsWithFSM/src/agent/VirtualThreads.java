@@ -0,0 +1,58 @@
+package agent;
+
+import java.lang.reflect.*;
+
+/**
+ * Creates virtual threads when the running JVM has them.  The project is
+ * still compiled for older JDKs, so Thread.ofVirtual() is looked up
+ * reflectively once and every later call goes through the cached methods.
+ */
+class VirtualThreads {
+	private static final Method ofVirtual; // Thread.ofVirtual()
+	private static final Method name; // Thread.Builder.name(String)
+	private static final Method unstarted; // Thread.Builder.unstarted(Runnable)
+
+	static {
+		Method o = null, n = null, u = null;
+		try {
+			o = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = o.getReturnType();
+			n = builder.getMethod("name", String.class);
+			u = builder.getMethod("unstarted", Runnable.class);
+			// On JDK 19/20 the methods exist but throw unless preview
+			// features are enabled, so try one before trusting them.
+			u.invoke(o.invoke(null), new Runnable() {
+				public void run() {
+				}
+			});
+		} catch (Exception e) {
+			o = null;
+		}
+		ofVirtual = o;
+		name = n;
+		unstarted = u;
+	}
+
+	/** Don't construct. */
+	private VirtualThreads() {
+	}
+
+	/** @return true if newThread() will really hand out virtual threads */
+	static boolean isSupported() {
+		return ofVirtual != null;
+	}
+
+	/** Return an unstarted virtual thread running r, or a platform thread
+	 * if virtual threads are unavailable. */
+	static Thread newThread(String threadName, Runnable r) {
+		if (ofVirtual != null) {
+			try {
+				Object builder = name.invoke(ofVirtual.invoke(null), threadName);
+				return (Thread) unstarted.invoke(builder, r);
+			} catch (Exception e) {
+				// fall through to a platform thread
+			}
+		}
+		return new Thread(r, threadName);
+	}
+}
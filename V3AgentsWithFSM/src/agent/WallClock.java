@@ -0,0 +1,32 @@
+package agent;
+
+import java.util.concurrent.*;
+
+/**
+ * Real time.  All delayed work shares one TimingWheel thread rather than
+ * one java.util.Timer per agent.
+ */
+public class WallClock extends Clock {
+	private final TimingWheel wheel = new TimingWheel("WallClock");
+
+	public long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	public Timeout schedule(Runnable task, long delayMillis) {
+		return wheel.schedule(task, delayMillis);
+	}
+
+	public void sleep(final long millis) throws InterruptedException {
+		block(new ForkJoinPool.ManagedBlocker() {
+			public boolean block() throws InterruptedException {
+				Thread.sleep(millis);
+				return true;
+			}
+
+			public boolean isReleasable() {
+				return millis <= 0;
+			}
+		});
+	}
+}
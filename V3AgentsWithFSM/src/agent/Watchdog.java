@@ -0,0 +1,225 @@
+package agent;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Finds agents whose scheduler pass has been running too long: an action
+ * that sleeps and never comes back, or a rule that spins.  Turn it on
+ * with setEnabled(true) or -Dagent.watchdog=true before the agents are
+ * started.
+ *
+ * Each watched agent notes when its pass starts and ends and keeps a
+ * small ring of the messages it was last sent: who from and when.  A
+ * daemon thread looks at every agent a few times per stall time
+ * (-Dagent.watchdog.stallMillis, default 10000, real time) and reports
+ * each pass that runs past it once, on System.err: how long it has run,
+ * what its thread is doing, the agent's recent messages and any threads
+ * deadlocked on monitors.  It reports again when the pass ends.
+ *
+ * Nothing but the watchdog thread ever walks a stack, so watching costs
+ * an agent a few field writes per pass and per message.  With
+ * -Dagent.watchdog.messageNames=true the ring also names each message,
+ * which does cost a stack walk per message; meant for hunting a stall
+ * rather than for always.
+ */
+public class Watchdog {
+	private static volatile boolean enabled = Boolean.getBoolean("agent.watchdog");
+	private static volatile long stallNanos =
+		TimeUnit.MILLISECONDS.toNanos(Long.getLong("agent.watchdog.stallMillis", 10000));
+	private static final int HISTORY = Integer.getInteger("agent.watchdog.history", 16);
+	private static final boolean MESSAGE_NAMES = Boolean.getBoolean("agent.watchdog.messageNames");
+	private static final int STACK_DEPTH = 16;
+
+	private static final List<Agent> agents = new CopyOnWriteArrayList<Agent>();
+	private static Thread thread; // guarded by Watchdog.class
+	private static volatile long stalls = 0;
+
+	//The agent whose pass this thread is running, to name the sender
+	private static final ThreadLocal<Agent> running = new ThreadLocal<Agent>();
+
+	/** Don't construct. */
+	private Watchdog() {
+	}
+
+	/** Agents started after this call are watched. */
+	public static void setEnabled(boolean b) {
+		enabled = b;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/** How long a pass may run before it is reported. */
+	public static void setStallMillis(long millis) {
+		stallNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	/** @return passes reported as stalled so far */
+	public static long getStallCount() {
+		return stalls;
+	}
+
+	/** @return what a newly started agent should keep up, or null when
+	 * disabled */
+	static Watch register(Agent agent) {
+		if (!enabled) {
+			return null;
+		}
+		agents.add(agent);
+		startThread();
+		return new Watch();
+	}
+
+	/** One agent's pass and recent messages, as far as the watchdog
+	 * needs them. */
+	static class Watch {
+		volatile long passStart; // nanoTime, 0 between passes
+		volatile Thread passThread;
+		long reported; // watchdog thread only: passStart already reported
+		// Ring of recent messages, guarded by this
+		private final long[] at = new long[HISTORY];
+		private final String[] from = new String[HISTORY];
+		private final String[] what = new String[HISTORY];
+		private int next = 0;
+		private long count = 0;
+
+		void passStarted() {
+			passThread = Thread.currentThread();
+			passStart = System.nanoTime();
+		}
+
+		void passEnded() {
+			passStart = 0;
+			passThread = null;
+		}
+
+		/** A stateChanged(), on the sender's thread. */
+		void message() {
+			Agent sender = running.get();
+			String name = MESSAGE_NAMES ? caller() : null;
+			long now = System.nanoTime();
+			synchronized (this) {
+				int i = next;
+				at[i] = now;
+				from[i] = sender != null ? sender.getName() : Thread.currentThread().getName();
+				what[i] = name;
+				next = (i + 1) % HISTORY;
+				count++;
+			}
+		}
+
+		synchronized void dumpMessages(StringBuilder b, long now) {
+			int n = (int) Math.min(count, HISTORY);
+			b.append("  last ").append(n).append(" of ").append(count).append(" messages:\n");
+			for (int k = n; k > 0; k--) {
+				int i = (next - k + HISTORY) % HISTORY;
+				b.append("    ").append((now - at[i]) / 1000000).append("ms ago from ").append(from[i]);
+				if (what[i] != null) {
+					b.append(": ").append(what[i]);
+				}
+				b.append('\n');
+			}
+		}
+	}
+
+	/** Note that this thread now runs agent's pass, or nobody's. */
+	static void setRunning(Agent agent) {
+		running.set(agent);
+	}
+
+	//The method that called stateChanged()
+	private static String caller() {
+		StackTraceElement[] s = new Throwable().getStackTrace();
+		for (int i = 0; i < s.length - 1; i++) {
+			if (s[i].getMethodName().equals("stateChanged")) {
+				StackTraceElement e = s[i + 1];
+				return StringUtil.shortName(e.getClassName()) + "." + e.getMethodName();
+			}
+		}
+		return null;
+	}
+
+	private static synchronized void startThread() {
+		if (thread != null) {
+			return;
+		}
+		thread = new Thread("Watchdog") {
+			public void run() {
+				for (;;) {
+					try {
+						Thread.sleep(Math.max(1, TimeUnit.NANOSECONDS.toMillis(stallNanos) / 4));
+					} catch (InterruptedException e) {
+						return;
+					}
+					check();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	//One look at every agent
+	private static void check() {
+		long now = System.nanoTime();
+		for (Agent a : agents) {
+			Watch w = a.getWatch();
+			if (w == null) {
+				continue; // still starting
+			}
+			long start = w.passStart;
+			Thread t = w.passThread;
+			if (start == 0 || t == null) {
+				if (w.reported != 0) {
+					System.err.println("Watchdog: " + a.getName() + " is going again; that pass took up to "
+						+ (now - w.reported) / 1000000 + "ms");
+					w.reported = 0;
+				}
+				continue;
+			}
+			if (now - start > stallNanos && w.reported != start) {
+				w.reported = start;
+				stalls++;
+				report(a, w, t, now - start, now);
+			}
+		}
+	}
+
+	private static void report(Agent a, Watch w, Thread t, long nanos, long now) {
+		StringBuilder b = new StringBuilder();
+		b.append("Watchdog: ").append(a.getName()).append(" has been in one scheduler pass for ")
+			.append(nanos / 1000000).append("ms, on ").append(t.getName())
+			.append(" (").append(t.getState()).append(")\n");
+		StackTraceElement[] stack = t.getStackTrace();
+		for (int i = 0; i < stack.length && i < STACK_DEPTH; i++) {
+			b.append("    at ").append(stack[i]).append('\n');
+			if (stack[i].getMethodName().equals("pickAndExecuteAnAction")) {
+				break; // the rest is the agent's own loop
+			}
+		}
+		w.dumpMessages(b, now);
+		deadlocks(b);
+		System.err.print(b);
+		System.err.flush();
+	}
+
+	//Threads stuck on each other's monitors or locks, if any
+	private static void deadlocks(StringBuilder b) {
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		long[] ids = mx.findDeadlockedThreads();
+		if (ids == null) {
+			return;
+		}
+		b.append("  deadlocked threads:\n");
+		for (ThreadInfo i : mx.getThreadInfo(ids)) {
+			if (i != null) {
+				b.append("    ").append(i.getThreadName()).append(" waits for ")
+					.append(i.getLockName()).append(" held by ")
+					.append(i.getLockOwnerName()).append('\n');
+			}
+		}
+	}
+}
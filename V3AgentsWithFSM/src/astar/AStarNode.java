@@ -6,18 +6,26 @@ public class AStarNode implements Node
 	private Position pos; //last position in path ; redundant
 	private double distTravelled;
 	private double approxTotalDist;
-	private List<Position> path; 
+	private AStarNode parent; //node we came from, null at the start
+	private List<Position> path; //built from the parents when asked for
 
 	public AStarNode(Position pos){
 	    if (pos==null) System.out.println("AStarNode constructor, pos is null?");
 	    this.pos = pos;
 	}
+	public AStarNode(Position pos, AStarNode parent){
+	    this(pos);
+	    this.parent = parent;
+	}
+	public AStarNode getParent() {
+		return parent;
+	}
 	public Position getPosition() {
 		return pos;		
 	}
 	public String toString(){
 	    String t = "";
-	    for (Position p : path) t = t + p.toString();
+	    for (Position p : getPath()) t = t + p.toString();
 	    return "("+ approxTotalDist +","+distTravelled+",("+t+")";		    
 	}
 	public double getDistTravelled() {
@@ -33,16 +41,22 @@ public class AStarNode implements Node
 		//distCity is the straight line distance to B
 		approxTotalDist =  newApprox;
 	}
+	/** @return positions from the start to here. Only the goal node
+	 * normally gets asked, so the list is built once per search by
+	 * walking back up the parents. */
 	public List<Position> getPath() {
+		if (path == null) {
+		    int n = 0;
+		    for (AStarNode a = this; a != null; a = a.parent) n++;
+		    Position[] ps = new Position[n];
+		    for (AStarNode a = this; a != null; a = a.parent) ps[--n] = a.pos;
+		    path = new ArrayList<Position>(Arrays.asList(ps));
+		}
 		return path;
 	}
 	public void setPath(List<Position> path) {
 	    this.path=path;
 	}
-	public void updatePath(List<Position> x) {
-		path = new ArrayList<Position>(x);
-		path.add(pos);
-	}
 	public void printNode() {
 	    String ppos = printPath();
 	    System.out.print("("+pos);
@@ -52,7 +66,7 @@ public class AStarNode implements Node
 	}
 	public String printPath() {
 	    String pp = "(";
-	    for (Position p:path) pp = pp + p;
+	    for (Position p:getPath()) pp = pp + p;
 	    return pp+")";
 	}
 
@@ -1,16 +1,30 @@
 package astar;
 import java.util.*;
 import java.util.concurrent.*;
+import agent.Flight;
 
 public class AStarTraversal extends GraphTraversal
 {
     private Semaphore[][] grid;
+    /** Cost of a step across or down, and of a diagonal one: sqrt(2)
+     *  in fixed point, rounded down. */
+    public static final int STRAIGHT = 1000, DIAGONAL = 1414;
+
+    private int expanded; //nodes expanded by the search under way
+    private long searches, totalExpanded;
+    //the per-cell arrays and open list every search works in
+    private SearchContext ctx;
+    private Heuristic heuristic = Heuristic.OCTILE;
+    private final RouteCache cells; //the grid's, looked up once
+    private RouteCache routes; //cells, or null when not caching
 
     public AStarTraversal(Semaphore[][] grid){
 	super();
 	this.grid = grid; 
 	//grid = new Object[1000][2000];
 	System.out.println("grid rows="+grid.length+",grid cols="+grid[0].length);
+	ctx = new SearchContext(grid.length, grid[0].length);
+	cells = routes = RouteCache.of(grid);
 	nodes = new PriorityQueue<Node>(6, new Comparator<Node>()
 	{
 	    public int compare(Node a, Node b)
@@ -26,14 +40,161 @@ public class AStarTraversal extends GraphTraversal
 	}
 	);
     }
+    public Heuristic getHeuristic(){return heuristic;}
+    /** Estimate the rest of the way with h from now on */
+    public void setHeuristic(Heuristic h){heuristic = h;}
+    /** @return one of the Heuristic constants, by its toString(), or null */
+    public static Heuristic heuristic(String name){
+	Heuristic[] all = {Heuristic.OCTILE, Heuristic.EUCLIDEAN,
+			   Heuristic.CHEBYSHEV, Heuristic.MANHATTAN};
+	for (Heuristic h : all) if (h.toString().equalsIgnoreCase(name)) return h;
+	return null;
+    }
+    /** Look paths up in the grid's RouteCache (the default), or
+     *  search every time */
+    public void setCaching(boolean on){routes = on ? cells : null;}
+    /** @return the cache generalSearch uses, or null if it doesn't */
+    public RouteCache getRouteCache(){return routes;}
+
+    /** p.moveInto(grid), without finding the grid's RouteCache again
+     *  for every step */
+    public boolean moveInto(Position p){return cells.moveInto(p.x, p.y);}
+    /** p.release(grid), likewise */
+    public void release(Position p){cells.release(p.x, p.y);}
+    /** @return cells expanded by the last search */
+    public int getExpanded(){return expanded;}
+    /** @return searches run so far */
+    public long getSearches(){return searches;}
+    /** @return cells expanded by all of them */
+    public long getTotalExpanded(){return totalExpanded;}
+
+    /** The way from start to end, both Positions, around the furniture.
+     *  With caching on it comes from the RouteCache if this trip has
+     *  been made before, so it may run into someone standing in the
+     *  way; take each step with moveInto and fall back on searchNow().
+     *  @return a node for end whose getPath() is the way there (don't
+     *  change the list; others may have it too), or null */
+    public Node generalSearch(Object start, Object end) {
+	return find((Position)start, (Position)end, routes);
+    }
+    /** A* from start to end around everything holding a cell right now,
+     *  people included. Never cached. */
+    public Node searchNow(Object start, Object end) {
+	return find((Position)start, (Position)end, null);
+    }
+    //timed for a flight recording if one is running
+    private AStarNode find(Position start, Position end, RouteCache routes){
+	if (!Flight.isOn()) return route(start, end, routes);
+	Object event = Flight.searchBegin();
+	AStarNode found = route(start, end, routes);
+	Flight.searched(event, start, end, expanded, found == null ? 0 : found.getPath().size());
+	return found;
+    }
+    private AStarNode route(Position start, Position end, RouteCache routes){
+	if (routes == null) return search(start, end, null);
+	int from = ctx.cell(start.getX(), start.getY());
+	int to = ctx.cell(end.getX(), end.getY());
+	List<Position> path = routes.get(from, to);
+	if (path == null) {
+	    int v = routes.getVersion();
+	    AStarNode found = search(start, end, routes.walls());
+	    if (found != null) {
+		found.setPath(Collections.unmodifiableList(found.getPath()));
+		routes.put(from, to, found.getPath(), v);
+	    }
+	    return found;
+	}
+	expanded = 0;
+	//no need to keep the cost; add it up again
+	int g = 0;
+	for (int i = 1; i < path.size(); i++) {
+	    Position a = path.get(i-1), b = path.get(i);
+	    g += a.getX() == b.getX() || a.getY() == b.getY() ? STRAIGHT : DIAGONAL;
+	}
+	AStarNode node = new AStarNode(end);
+	node.setDistTravelled(g / (double)STRAIGHT);
+	node.setApproxTotalDist(g / (double)STRAIGHT);
+	node.setPath(path);
+	return node;
+    }
+    //The search itself, on cell numbers in ctx instead of node objects,
+    //so that once the arrays are there it allocates nothing until it
+    //builds the path it found. With walls, only those cells are in the
+    //way; without, any cell someone holds is.
+    private AStarNode search(Position start, Position end, boolean[] walls){
+	startingState = start;
+	endingState = end;
+	expanded = 0;
+	searches++;
+	int ex = end.getX(), ey = end.getY();
+	int goal = ctx.cell(ex, ey);
+	ctx.clear();
+	int s = ctx.cell(start.getX(), start.getY());
+	ctx.reach(s, -1, 0);
+	ctx.push(s, estimate(start.getX(), start.getY(), ex, ey));
+	while (!ctx.isEmpty()) {
+	    int c = ctx.pop();
+	    if (c == goal) {
+		totalExpanded += expanded;
+		return pathTo(c);
+	    }
+	    //with a consistent heuristic (OCTILE, CHEBYSHEV) c came the
+	    //shortest way and stays closed; see below for the others
+	    ctx.close(c);
+	    expanded++;
+	    int x = ctx.x(c), y = ctx.y(c);
+	    for (int i = -1; i <= 1; i++) {
+		for (int j = -1; j <= 1; j++) {
+		    int nextX = x+i, nextY = y+j;
+		    if (nextX<0 || nextY<0 || nextX>=ctx.rows || nextY>=ctx.cols) continue;
+		    int n = ctx.cell(nextX, nextY);
+		    if (walls != null ? walls[n] : grid[nextX][nextY].availablePermits()==0) continue;
+		    int g = ctx.g[c] + (i==0 || j==0 ? STRAIGHT : DIAGONAL);
+		    if (!ctx.better(n, g)) continue; //reached by a way at least as short
+		    //closed, yet a shorter way turned up: the estimate isn't
+		    //consistent (EUCLIDEAN rounds down unevenly, MANHATTAN
+		    //overestimates). Open it again. MANHATTAN may still hand
+		    //back a longer path than need be; the goal can come off
+		    //the list before the shortest way to it does.
+		    if (ctx.isClosed(n)) ctx.reopen(n);
+		    ctx.reach(n, c, g);
+		    ctx.push(n, g + estimate(nextX, nextY, ex, ey));
+		}
+	    }
+	}
+	totalExpanded += expanded;
+	printMessage("Failed to find a path from " + start +
+		     " to " + end + ", sorry.", null);
+	return null;
+    }
+    private int estimate(int x, int y, int toX, int toY){
+	return heuristic.estimate(Math.abs(toX-x), Math.abs(toY-y));
+    }
+    //the node handed back: c, with the path to it from the parents
+    private AStarNode pathTo(int c){
+	int n = 0;
+	for (int p = c; p != -1; p = ctx.parent[p]) n++;
+	List<Position> path = new ArrayList<Position>(n);
+	for (int p = c; p != -1; p = ctx.parent[p])
+	    path.add(new Position(ctx.x(p), ctx.y(p)));
+	Collections.reverse(path);
+	AStarNode node = new AStarNode(path.get(n-1));
+	node.setDistTravelled(ctx.g[c] / (double)STRAIGHT);
+	node.setApproxTotalDist(ctx.g[c] / (double)STRAIGHT);
+	node.setPath(path);
+	return node;
+    }
+
+    //What follows is the node-by-node version GraphTraversal's own
+    //generalSearch drives. It shares ctx's tables with search().
     public AStarNode createStartNode(Object state){
 	Position p = (Position) state;
+	ctx.clear();
+	ctx.reach(ctx.cell(p.getX(), p.getY()), -1, 0);
 	AStarNode n = new AStarNode(p);
 	n.setDistTravelled(0);
-	n.setApproxTotalDist(p.distance((Position)getEndingState()));
-	List<Position> path = new ArrayList<Position>();
-	path.add(p);
-	n.setPath(path);
+	Position end = (Position)getEndingState();
+	n.setApproxTotalDist(estimate(p.getX(), p.getY(), end.getX(), end.getY()) / (double)STRAIGHT);
 	//System.out.print("createStartNode"); n.printNode();
 	return n;
     }
@@ -41,10 +202,17 @@ public class AStarTraversal extends GraphTraversal
 	AStarNode node = (AStarNode) n;
 	//loop computes the positions you can get to from node
 	List<Node> expandedNodes = new ArrayList<Node>();
-	List<Position> path = node.getPath();
 	Position pos = node.getPosition();
 	int x = pos.getX();
 	int y = pos.getY();
+	//a cell is expanded again only if a shorter way to it turns up,
+	//which takes an estimate that isn't consistent (see search());
+	//copies left on the queue from a longer way are stale.
+	int here = ctx.cell(x, y);
+	if (ctx.isClosed(here) ||
+	    Math.round(node.getDistTravelled() * STRAIGHT) > ctx.g[here]) return expandedNodes;
+	ctx.close(here);
+	expanded++;
 	//this next pair of loops will create all the possible moves
 	//from pos.
 	for(int i = -1; i <= 1; i++) {//increment for x direction
@@ -57,31 +225,32 @@ public class AStarTraversal extends GraphTraversal
 		      (nextX<0 || nextY<0)) continue;
 		Position next = new Position(nextX,nextY);
 		//System.out.println("considering"+next);
-		if (inPath(next,path) || !next.open(grid) ) continue;
+		int c = ctx.cell(nextX, nextY);
+		if (!next.open(grid) ) continue;
+		int g = ctx.g[here] + (i==0 || j==0 ? STRAIGHT : DIAGONAL);
+		//already queued by a way at least as short
+		if (!ctx.better(c, g)) continue;
+		if (ctx.isClosed(c)) ctx.reopen(c);
+		ctx.reach(c, here, g);
 		//printCurrentList();
 		//System.out.println("available"+next);
-		AStarNode nodeTemp = new AStarNode(next);
+		//the new node just points back at node; no copy of the path
+		AStarNode nodeTemp = new AStarNode(next, node);
 
 		//update distance travelled
-		nodeTemp.setDistTravelled(
-                        node.getDistTravelled()+pos.distance(next));
+		nodeTemp.setDistTravelled(g / (double)STRAIGHT);
 		//update approximate total distance to destination
-		//note that we are computing the straight-line
-		//heuristic on the fly right here from next to endingState
+		//note that we are computing the heuristic on the fly
+		//right here from next to endingState
+		Position end = (Position)endingState;
 		nodeTemp.setApproxTotalDist(
-			nodeTemp.getDistTravelled() + next.distance((Position)endingState));	
-		//update internal path
-		nodeTemp.updatePath(path);
+			(g + estimate(nextX, nextY, end.getX(), end.getY())) / (double)STRAIGHT);	
 		expandedNodes.add(nodeTemp);//could have just added
 					    //them directly to nodelist 
 	    }
 	}
 	return expandedNodes;
     }//end expandFunc
-    private boolean inPath (Position pos, List<Position> path){
-	for (Position n:path) {if (pos.equals(n)) return true;};
-	return false;
-    }
     public void printCurrentList() {
 	PriorityQueue<Node> pq = new PriorityQueue<Node>(nodes);
 	AStarNode p;
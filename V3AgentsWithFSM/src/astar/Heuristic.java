@@ -0,0 +1,53 @@
+package astar;
+
+/** How AStarTraversal estimates the cost of getting from a cell to the
+ *  goal. Costs are in fixed point: a straight step costs
+ *  AStarTraversal.STRAIGHT, a diagonal one AStarTraversal.DIAGONAL.
+ *  An estimate that never comes out above the real cost finds shortest
+ *  paths; the closer it comes to the real cost, the fewer cells A* has
+ *  to expand on the way.
+ */
+public interface Heuristic {
+    /** @return estimated cost of dx steps across and dy steps down,
+     *  both at least 0, with nothing in the way */
+    public int estimate(int dx, int dy);
+
+    /** The exact cost on an open 8-connected grid: diagonal steps for
+     *  the shorter side, straight ones for the rest. The default. */
+    public static final Heuristic OCTILE = new Heuristic() {
+	public int estimate(int dx, int dy) {
+	    return dx < dy
+		? AStarTraversal.STRAIGHT*dy + (AStarTraversal.DIAGONAL-AStarTraversal.STRAIGHT)*dx
+		: AStarTraversal.STRAIGHT*dx + (AStarTraversal.DIAGONAL-AStarTraversal.STRAIGHT)*dy;
+	}
+	public String toString() {return "octile";}
+    };
+
+    /** Straight-line distance, as Position.distance, scaled down a hair
+     *  so it stays under OCTILE. What the search used to use. */
+    public static final Heuristic EUCLIDEAN = new Heuristic() {
+	public int estimate(int dx, int dy) {
+	    return (int)(AStarTraversal.DIAGONAL / Math.sqrt(2) * Math.sqrt(dx*dx + dy*dy));
+	}
+	public String toString() {return "euclidean";}
+    };
+
+    /** As if diagonal steps cost no more than straight ones: never too
+     *  much, but weaker than OCTILE. */
+    public static final Heuristic CHEBYSHEV = new Heuristic() {
+	public int estimate(int dx, int dy) {
+	    return AStarTraversal.STRAIGHT * Math.max(dx, dy);
+	}
+	public String toString() {return "chebyshev";}
+    };
+
+    /** As if there were no diagonal steps. It overestimates any trip
+     *  that could go diagonally, so paths may come out longer than they
+     *  need to be, but it heads for the goal with few detours. */
+    public static final Heuristic MANHATTAN = new Heuristic() {
+	public int estimate(int dx, int dy) {
+	    return AStarTraversal.STRAIGHT * (dx + dy);
+	}
+	public String toString() {return "manhattan";}
+    };
+}
@@ -38,9 +38,12 @@ public class Position {
     }
     public boolean moveInto(Semaphore[][] grid){
 	//System.out.println("moveInto"+this+ " permits="+grid[x][y].availablePermits());
-	return grid[x][y].tryAcquire();
+	//through the route cache, so it knows it's only someone passing.
+	//Finding it takes a lock shared by every grid; something moving a
+	//step at a time should use AStarTraversal.moveInto instead.
+	return RouteCache.of(grid).moveInto(x, y);
     }
     public void release(Semaphore[][] grid){
-	grid[x][y].release();
+	RouteCache.of(grid).release(x, y);
     }
 }
\ No newline at end of file
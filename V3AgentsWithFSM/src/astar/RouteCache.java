@@ -0,0 +1,105 @@
+package astar;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Paths between pairs of cells, shared by every AStarTraversal on the
+ *  same grid. Waiters keep making the same trips (home to a table, the
+ *  grill to a table, ...), so each is searched once and then looked up.
+ *
+ *  A cached path only goes around what stays put: walls, the counter,
+ *  the grill and tables. Cells held by someone moving around (through
+ *  Position.moveInto) count as free, because they won't be held for
+ *  long; whoever follows a path still has to get each step on the way.
+ *  Call invalidate() whenever the furniture changes, i.e. a table is
+ *  added or moved, and paths are searched again from then on.
+ */
+public class RouteCache {
+    private static final Map<Semaphore[][], RouteCache> caches =
+	new WeakHashMap<Semaphore[][], RouteCache>();
+
+    private final Semaphore[][] grid;
+    private final int cols;
+    private final int[] movers;  //per cell, how many movers hold it
+    private boolean[] walls;     //per cell, held by furniture; null when stale
+    private int version;         //bumped by invalidate()
+    private final Map<Long, List<Position>> routes = new HashMap<Long, List<Position>>();
+    private long hits, misses;
+
+    private RouteCache(Semaphore[][] grid){
+	this.grid = grid;
+	cols = grid[0].length;
+	movers = new int[grid.length * cols];
+    }
+
+    /** @return the cache for grid, made the first time it is asked for */
+    public static RouteCache of(Semaphore[][] grid){
+	synchronized (caches) {
+	    RouteCache c = caches.get(grid);
+	    if (c == null) caches.put(grid, c = new RouteCache(grid));
+	    return c;
+	}
+    }
+
+    /** The furniture on grid has changed: forget every path. */
+    public static void invalidate(Semaphore[][] grid){
+	of(grid).invalidate();
+    }
+    public synchronized void invalidate(){
+	routes.clear();
+	walls = null;
+	version++;
+    }
+
+    //Position.moveInto and release: a mover takes or leaves a cell. The
+    //count and the permit change together under this lock, which walls()
+    //takes too, so it never sees a mover's cell held but not counted, nor
+    //furniture's cell counted for a mover that failed to get in.
+    synchronized boolean moveInto(int x, int y){
+	int c = x*cols + y;
+	movers[c]++;
+	if (grid[x][y].tryAcquire()) return true;
+	movers[c]--;
+	return false;
+    }
+    synchronized void release(int x, int y){
+	grid[x][y].release();
+	int c = x*cols + y;
+	movers[c] = Math.max(0, movers[c] - 1);
+    }
+
+    /** @return the path from one cell to another, or null if it has
+     *  not been searched since the last invalidate() */
+    synchronized List<Position> get(int fromCell, int toCell){
+	List<Position> path = routes.get(key(fromCell, toCell));
+	if (path != null) hits++;
+	else misses++;
+	return path;
+    }
+    /** Keep path, found with walls() of version v, unless the furniture
+     *  has changed since */
+    synchronized void put(int fromCell, int toCell, List<Position> path, int v){
+	if (v == version) routes.put(key(fromCell, toCell), path);
+    }
+    synchronized int getVersion(){return version;}
+
+    /** @return which cells the furniture holds, worked out again after
+     *  an invalidate(). Never changed once handed out. */
+    synchronized boolean[] walls(){
+	if (walls == null) {
+	    boolean[] w = new boolean[movers.length];
+	    for (int x = 0; x < grid.length; x++)
+		for (int y = 0; y < cols; y++)
+		    w[x*cols + y] = grid[x][y].availablePermits() == 0 && movers[x*cols + y] == 0;
+	    walls = w;
+	}
+	return walls;
+    }
+
+    private long key(int fromCell, int toCell){
+	return ((long)fromCell << 32) | toCell;
+    }
+
+    public synchronized long getHits(){return hits;}
+    public synchronized long getMisses(){return misses;}
+    public synchronized int size(){return routes.size();}
+}
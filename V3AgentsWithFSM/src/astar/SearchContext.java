@@ -0,0 +1,117 @@
+package astar;
+import java.util.*;
+
+/** The working storage of A* searches on one grid, kept by an
+ *  AStarTraversal and reused by every search it runs, so that a
+ *  search allocates nothing but the path it hands back.
+ *
+ *  Cells are numbered x*cols+y. Rather than clearing every array for
+ *  each search, clear() bumps a generation number: a cell's g and
+ *  parent only count if seen[cell] is the current generation, and it
+ *  is only closed if closed[cell] is. The open list is a binary heap of
+ *  cell numbers ordered on f, with where[] so a cell already on it can
+ *  be moved up when a shorter way to it turns up.
+ */
+class SearchContext {
+    final int rows, cols;
+    final int[] g;         //cost from the start
+    final int[] f;         //g plus the estimate to the goal; the heap key
+    final int[] parent;    //the cell we got here from, -1 for the start
+    private final int[] seen;   //generation that last reached the cell
+    private final int[] closed; //generation that last expanded it
+    private final int[] heap;
+    private final int[] where;  //index in heap, while the cell is on it
+    private int size;
+    private int generation;
+
+    SearchContext(int rows, int cols){
+	this.rows = rows;
+	this.cols = cols;
+	int n = rows*cols;
+	g = new int[n];
+	f = new int[n];
+	parent = new int[n];
+	seen = new int[n];
+	closed = new int[n];
+	heap = new int[n];
+	where = new int[n];
+    }
+
+    /** Start a new search: nothing reached, nothing open. */
+    void clear(){
+	size = 0;
+	if (++generation == Integer.MAX_VALUE) {
+	    //a couple of billion searches later; clear them the slow way
+	    Arrays.fill(seen, 0);
+	    Arrays.fill(closed, 0);
+	    generation = 1;
+	}
+    }
+    int cell(int x, int y){return x*cols + y;}
+    int x(int c){return c / cols;}
+    int y(int c){return c % cols;}
+
+    boolean isClosed(int c){return closed[c] == generation;}
+    void close(int c){closed[c] = generation;}
+    void reopen(int c){closed[c] = 0;}
+
+    /** @return true if dist is shorter than any way to c found so far */
+    boolean better(int c, int dist){
+	return seen[c] != generation || dist < g[c];
+    }
+    /** Record that c is dist from the start, by way of from */
+    void reach(int c, int from, int dist){
+	seen[c] = generation;
+	g[c] = dist;
+	parent[c] = from;
+    }
+
+    boolean isEmpty(){return size == 0;}
+
+    //Heap order: smaller f first, and between equal f the one further
+    //from the start, which is likely nearer the goal. Good heuristics
+    //leave many cells with equal f; this goes deep instead of wide.
+    private boolean before(int a, int b){
+	return f[a] < f[b] || (f[a] == f[b] && g[a] > g[b]);
+    }
+
+    /** Put c on the open list with key k, or move it up if it is on
+     *  it already (k is never larger then). */
+    void push(int c, int k){
+	f[c] = k;
+	int i = where[c];
+	if (i >= size || heap[i] != c) i = size++; //not on it yet
+	//sift up
+	while (i > 0) {
+	    int p = (i-1) >> 1;
+	    if (!before(c, heap[p])) break;
+	    heap[i] = heap[p];
+	    where[heap[i]] = i;
+	    i = p;
+	}
+	heap[i] = c;
+	where[c] = i;
+    }
+
+    /** @return the open cell with the smallest f, taken off the list */
+    int pop(){
+	int top = heap[0];
+	int c = heap[--size];
+	if (size > 0) {
+	    //sift the last one down from the top
+	    int i = 0;
+	    while (true) {
+		int m = 2*i + 1;
+		if (m >= size) break;
+		if (m+1 < size && before(heap[m+1], heap[m])) m++;
+		if (!before(heap[m], c)) break;
+		heap[i] = heap[m];
+		where[heap[i]] = i;
+		i = m;
+	    }
+	    heap[i] = c;
+	    where[c] = i;
+	}
+	return top;
+    }
+}
@@ -1,12 +1,16 @@
 package restaurant;
 
 import agent.Agent;
+import agent.Checkpoint;
+import agent.Journal;
+import agent.Mailbox;
 
+import java.io.*;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.util.*;
 
-public class CashierAgent extends Agent {
+public class CashierAgent extends Agent implements Checkpoint.Saved {
 	//Name: CashierAgent
 	//Description:  Customer pays this agent for his/her food before notifying the waiter & leaving
 
@@ -48,21 +52,26 @@ public class CashierAgent extends Agent {
 	/*Part 2 Normative*/
 	List<Bill> marketBills = new ArrayList<Bill>(); // Bills that come from markets  market agent is given as a reference in the bill itself
 
+	// Messages post into these; the scheduler drains them into the lists above
+	private Mailbox<Bill> customerBillBox = new Mailbox<Bill>();
+	private Mailbox<PayCustomer> paymentBox = new Mailbox<PayCustomer>();
+	private Mailbox<Bill> marketBillBox = new Mailbox<Bill>();
+
 	//Messages:
 	/*Part 1 Normative*/
 	public void msgHereIsCustomerOrder(Bill bill) { // The waiter will send what his/her customer orders to the cashier, and then the cashier will generate a bill from this information
-		billsToPay.add(bill);
+		customerBillBox.post(bill);
 		stateChanged();
 	}
 
 	public void msgHereIsCustomerPayment(double money, Bill bill) { // The customer will send his/her order though this message
-		customerPayments.add(new PayCustomer(money, bill));
+		paymentBox.post(new PayCustomer(money, bill));
 		stateChanged();
 	}
 
 	/*Part 2 Normative*/
 	public void msgHereIsBill(Bill bill) { // Get a bill from a market
-		marketBills.add(bill);
+		marketBillBox.post(bill);
 		stateChanged();
 	}
 
@@ -78,6 +87,8 @@ public class CashierAgent extends Agent {
 //	return false
 	
 	protected boolean pickAndExecuteAnAction() {
+		takeMessages(); // Bring in everything received since the last pass
+		
 		for (PayCustomer cp: customerPayments) { /*Part 1 Normative*/
 			for (Bill b: billsToPay) { // If a bill has been given to the cashier from the waiter, check to see if there is a matching customer payment
 				if (b.agent instanceof CustomerAgent) { // Then the agent contained within the bill is a customer -- Check to see if customer name matches a customer in a payment
@@ -103,9 +114,16 @@ public class CashierAgent extends Agent {
 	}
 
 	// Actions:
+	private void takeMessages() { // Move mailbox contents onto the scheduler's lists
+		customerBillBox.drainTo(billsToPay);
+		paymentBox.drainTo(customerPayments);
+		marketBillBox.drainTo(marketBills);
+	}
+
 	/*Part 1 Normative*/
 	private void checkCustomerPayment(PayCustomer cp, Bill bill) { 
 	// Check to see if cps bill matches a bill in the billsToPay dataBase, and then parse information 
+		Journal.log(this, "pay", ((CustomerAgent) cp.cBill.agent).getName(), -1, cp.cBill.choice, cp.payment);
 		if (cp.payment == cp.cBill.totalCost) {
 			print(((CustomerAgent) cp.cBill.agent).getName() + "'s payment is correct: " + df.format(cp.payment));
 			totalMoney += cp.payment; // Increment the money earned for the restaurant
@@ -133,6 +151,7 @@ public class CashierAgent extends Agent {
 	private void payMarketBill(Bill bill) { // Pay the bill sent from a market by using the Agent reference in bill
 		if (bill.agent instanceof MarketAgent) { // Just to be sure...but ONLY marketAgent bills should be sent to this list
 			totalMoney -= bill.totalCost;
+			Journal.log(this, "paybill", ((MarketAgent) bill.agent).getName(), -1, null, bill.totalCost);
 			print("Bill paid to market: " + ((MarketAgent) bill.agent).getName() + ".  Cost: " + df.format(bill.totalCost) + ".  Totalmoney = " + df.format(totalMoney));
 			((MarketAgent) bill.agent).msgHereIsCashierPayment(bill.totalCost, bill.choice);
 			marketBills.remove(bill);
@@ -140,6 +159,77 @@ public class CashierAgent extends Agent {
 		}
 	}
 
+	//Checkpoint:
+	// Saves the till, the customers' bills and payments not yet matched up, and the market bills still to pay
+	public void save(DataOutput out) throws IOException {
+		out.writeDouble(totalMoney);
+		out.writeInt(billsToPay.size());
+		for (Bill b: billsToPay) {
+			writeCustomerBill(out, b);
+		}
+		out.writeInt(customerPayments.size());
+		for (PayCustomer p: customerPayments) {
+			out.writeDouble(p.payment);
+			writeCustomerBill(out, p.cBill);
+		}
+		out.writeInt(marketBills.size());
+		for (Bill b: marketBills) {
+			out.writeDouble(b.totalCost);
+			out.writeUTF(b.choice);
+			out.writeUTF(((MarketAgent) b.agent).getName());
+		}
+	}
+
+	public void restore(DataInput in, Checkpoint cp) throws IOException {
+		totalMoney = in.readDouble();
+		int n = in.readInt();
+		for (int i = 0; i < n; i++) {
+			Bill b = readCustomerBill(in, cp);
+			if (b != null) {
+				billsToPay.add(b);
+			}
+		}
+		n = in.readInt();
+		for (int i = 0; i < n; i++) {
+			double payment = in.readDouble();
+			Bill b = readCustomerBill(in, cp);
+			if (b != null) {
+				customerPayments.add(new PayCustomer(payment, b));
+			}
+		}
+		n = in.readInt();
+		for (int i = 0; i < n; i++) {
+			double cost = in.readDouble();
+			String id = in.readUTF();
+			String market = in.readUTF();
+			MarketAgent m = cp.find(market, MarketAgent.class);
+			if (m == null) { 
+				print("Checkpoint: bill " + id + " from " + market + " dropped, that market is not here any more");
+				continue;
+			}
+			marketBills.add(new Bill(cost, id, m));
+		}
+		stateChanged();
+	}
+
+	private void writeCustomerBill(DataOutput out, Bill b) throws IOException {
+		out.writeDouble(b.totalCost);
+		out.writeUTF(b.choice);
+		out.writeUTF(((CustomerAgent) b.agent).getName());
+	}
+
+	private Bill readCustomerBill(DataInput in, Checkpoint cp) throws IOException {
+		double cost = in.readDouble();
+		String choice = in.readUTF();
+		String customer = in.readUTF();
+		CustomerAgent c = cp.find(customer, CustomerAgent.class);
+		if (c == null) {
+			print("Checkpoint: " + customer + "'s bill for " + choice + " dropped, that customer is not here any more");
+			return null;
+		}
+		return new Bill(cost, choice, c);
+	}
+
 	//Other Methods:
 	public String getName() {
 		return name;
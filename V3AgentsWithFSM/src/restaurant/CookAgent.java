@@ -1,6 +1,13 @@
 package restaurant;
 
 import agent.Agent;
+import agent.AgentLog;
+import agent.Checkpoint;
+import agent.Clock;
+import agent.Journal;
+import agent.Mailbox;
+import agent.StateBuckets;
+import java.io.*;
 import java.util.*;
 
 import restaurant.layoutGUI.*;
@@ -12,19 +19,25 @@ import java.awt.Color;
  *  and simulates cooking them.
  *  Interacts with waiters only.
  */
-public class CookAgent extends Agent {
+public class CookAgent extends Agent implements Checkpoint.Saved {
 
-    //List of all the orders
-    private List<Order> orders = new ArrayList<Order>();
+    //All the orders, by status
+    public enum Status {pending, waiting, cooking, done}; // order status; waiting = out of stock, shipment on its way
+    private StateBuckets<Status, Order> orders = new StateBuckets<Status, Order>(Status.class);
+    private List<Order> newOrders = new ArrayList<Order>(); // drained from orderBox
     private Map<String,FoodData> inventory = new HashMap<String,FoodData>();
-    public enum Status {pending, cooking, done}; // order status
+    // Inventory items by whether they need ordering, kept up by checkStock();
+    // refused = low, but no market could supply it, so it waits for the
+    // cook's next pass before trying them again
+    private enum Stock {ok, low, ordered, refused};
+    private StateBuckets<Stock, String> stock = new StateBuckets<Stock, String>(Stock.class);
 
     //Name of the cook
     private String name;
 
-    //Timer for simulation
-    Timer timer = new Timer();
-    Restaurant restaurant; //Gui layout
+    //Time source for the simulation
+    Clock clock = Clock.get();
+    Layout restaurant; //Gui layout
     
     // Constants
     int FOOD_AMOUNT = 5;
@@ -38,8 +51,8 @@ public class CookAgent extends Agent {
     /** Constructor for CookAgent class
      * @param name name of the cook
      */
-    public CookAgent(String name, Restaurant restaurant) {
-	super();
+    public CookAgent(String name, Layout restaurant) {
+	super(Priority.CRITICAL); //everyone waits on the cook for food
 
 	this.name = name;
 	this.restaurant = restaurant;
@@ -54,6 +67,8 @@ public class CookAgent extends Agent {
     itemOrdered.put("Chicken", false);
     itemOrdered.put("Pizza", false);
     itemOrdered.put("Salad", false);
+    for (String k: inventory.keySet())
+	checkStock(k);
 	
     }
     /** Private class to store information about food.
@@ -83,7 +98,7 @@ public class CookAgent extends Agent {
 	public String choice;
 	public Status status;
 	public Food food; //a gui variable
-	public boolean waitingForShipment = false; // This will be used keep an order on standby until a shipment arrives if it has already been ordered
+	public long readyAt; //when it will be cooked, once cooking starts
 
 	/** Constructor for Order class 
 	 * @param waiter waiter that this order belongs to
@@ -94,7 +109,6 @@ public class CookAgent extends Agent {
 	    this.waiter = waiter;
 	    this.choice = choice;
 	    this.tableNum = tableNum;
-	    this.status = Status.pending;
 	}
 
 	/** Represents the object as a string */
@@ -121,6 +135,36 @@ public class CookAgent extends Agent {
     int nextMarket = 0; // Used to selected which market to order from
     List<ETA> arrivalTimes = new ArrayList<ETA>(); // Receipts for deliveries with tracking information
 
+    // Messages post into these from the sender's thread; the scheduler
+    // drains them into orders, deliveries and arrivalTimes above, but
+    // never past the MAX_ limits below.  What it leaves behind waits in
+    // the mailbox, and once that is full too:
+    //  - a waiter handing in an order waits until the cook catches up,
+    //  - deliveries are parked on disk, they are food we have paid for,
+    //  - the oldest tracking information is thrown away, it is only a guess anyway.
+    // Sizes and policies can be changed with -Dagent.mailbox.cook.orders.capacity=N etc.
+    int MAX_ORDERS = 50;
+    int MAX_DELIVERIES = 20;
+    int MAX_TRACKING = 20;
+    private Mailbox<Order> orderBox = new Mailbox<Order>("cook.orders", MAX_ORDERS, Mailbox.Overflow.BLOCK);
+    private Mailbox<Map<String, Integer>> deliveryBox = new Mailbox<Map<String, Integer>>("cook.deliveries", MAX_DELIVERIES, Mailbox.Overflow.SPILL);
+    private Mailbox<ETA> trackingBox = new Mailbox<ETA>("cook.tracking", MAX_TRACKING, Mailbox.Overflow.DROP_OLDEST);
+    // Items a market could not supply, and amounts set from the gui; few
+    // and far between, so unbounded
+    private Mailbox<String> refusalBox = new Mailbox<String>();
+    private Mailbox<StockCount> countBox = new Mailbox<StockCount>();
+    private List<String> refusals = new ArrayList<String>(); // drained from refusalBox
+    private List<StockCount> counts = new ArrayList<StockCount>(); // drained from countBox
+
+    private class StockCount {
+	String item;
+	int amount;
+	StockCount(String item, int amount) {
+	    this.item = item;
+	    this.amount = amount;
+	}
+    }
+
     /*Part 2 Non-Normative*/
     int REASONABLE_WAIT = 8000; // The cook will be willing to wait 5000 milliseconds for an order to arrive, else he/she will tell the customer to change an order
     
@@ -133,36 +177,29 @@ public class CookAgent extends Agent {
      * @param choice type of food to be cooked
      */
     public void msgHereIsAnOrder(WaiterAgent waiter, int tableNum, String choice){
-	orders.add(new Order(waiter, tableNum, choice));
+	orderBox.post(new Order(waiter, tableNum, choice));
 	stateChanged();
     }
     
     /*Part 2 Normative*/
     public void msgHereIsFoodDelivery(Map<String, Integer> items) {
-    	deliveries.add(items);
+    	deliveryBox.post(items);
     	stateChanged();
     }
 
     public void msgSorryWeCannotFulfillOrder(String item) {
-    	nextMarket++;
-    	if (nextMarket == markets.size()) {// Reset to 0 if == markets.size()
-    		nextMarket = 0;
-    		print("No markets can fulfill my order for: " + item + ".  I will try again next time I am awake");
-    	}
-    	else {
-    		print("Market " + markets.get(nextMarket - 1).getName() + " could not fulfill my order for " + item  + ", attempting to order from market " + markets.get(nextMarket).getName());
-    		stateChanged(); // Will not indefinitely run the scheduler
-    	}
-    	itemOrdered.put(item, false);    	
+    	refusalBox.post(item);
+    	stateChanged();
     }
 
     public void msgHereIsYourTrackingInformation(long orderTime, int deliveryTime, Map<String, Integer> items) {
-    	arrivalTimes.add(new ETA(orderTime, deliveryTime, items));
+    	trackingBox.post(new ETA(orderTime, deliveryTime, items));
     	stateChanged();
     }
 
     /** Scheduler.  Determine what action is called for, and do it. */
     protected boolean pickAndExecuteAnAction() {
+	takeMessages();
 	
 //   /*Part 2 Normative*/
 //   if ($ d in deliveries) then
@@ -173,19 +210,16 @@ public class CookAgent extends Agent {
     	return true;
     }
     	
+	Order o;
 	//If there exists an order o whose status is done, place o.
-	for(Order o:orders){
-	    if(o.status == Status.done && o.waitingForShipment == false){
-		placeOrder(o);
-		return true;
-	    }
+	if((o = orders.first(Status.done)) != null){
+	    placeOrder(o);
+	    return true;
 	}
 	//If there exists an order o whose status is pending, cook o.
-	for(Order o:orders){
-	    if(o.status == Status.pending){
-		cookOrder(o);
-		return true;
-	    }
+	if((o = orders.first(Status.pending)) != null){
+	    cookOrder(o);
+	    return true;
 	}
 	
 //	/*Part 2 Normative*/
@@ -194,15 +228,11 @@ public class CookAgent extends Agent {
 //		// Implementation detail = getting V choice and num
 //		return true;
 
-	// Get the keys of the inventory and turn it into an array	
-	Set<String> keys = inventory.keySet(); // Iterate through the map
-	for (String k: keys) {
-		if (inventory.get(k).amount <= inventory.get(k).threshold) { // If the amount of something in the inventory is < threshold, order that item type
-			if (itemOrdered.get(k) == false && markets.size() > 0) { // The order cannot already be ordered, and markets must exist for this operation to occur
-				orderFromMarket(k);
-				return true;
-			}			
-		}
+	// Items at or below their threshold that are not already on order sit in stock's low bucket
+	String k = stock.first(Stock.low);
+	if (k != null && markets.size() > 0) { // markets must exist for this operation to occur
+		orderFromMarket(k);
+		return true;
 	}
 
 	//we have tried all our rules (in this case only one) and found
@@ -214,16 +244,57 @@ public class CookAgent extends Agent {
 
     // *** ACTIONS ***
     
+    /** Moves everything the mailboxes have received onto the lists
+     * the scheduler rules look at. */
+    private void takeMessages() {
+	orderBox.drainTo(newOrders, MAX_ORDERS - orders.size());
+	for (Order o: newOrders)
+	    setStatus(o, Status.pending);
+	newOrders.clear();
+	deliveryBox.drainTo(deliveries, MAX_DELIVERIES - deliveries.size());
+	trackingBox.drainTo(arrivalTimes, MAX_TRACKING - arrivalTimes.size());
+	// Awake again: try the markets once more for what none had last time
+	for (String k: stock.items(Stock.refused))
+	    checkStock(k);
+	countBox.drainTo(counts);
+	for (StockCount c: counts) {
+	    inventory.get(c.item).amount = c.amount;
+	    checkStock(c.item);
+	}
+	counts.clear();
+	refusalBox.drainTo(refusals);
+	for (String item: refusals)
+	    marketRefused(item);
+	refusals.clear();
+    }
+
+    /** The market last ordered from could not supply item: on to the
+     * next, or, once they have all said no, wait until woken again. */
+    private void marketRefused(String item) {
+    	nextMarket++;
+    	itemOrdered.put(item, false);
+    	checkStock(item);
+    	if (nextMarket >= markets.size()) {// Reset to 0 if == markets.size()
+    		nextMarket = 0;
+    		print("No markets can fulfill my order for: " + item + ".  I will try again next time I am awake");
+    		if (stock.getState(item) == Stock.low)
+    		    stock.setState(item, Stock.refused); // Will not indefinitely run the scheduler
+    	}
+    	else {
+    		print("Market " + markets.get(nextMarket - 1).getName() + " could not fulfill my order for " + item  + ", attempting to order from market " + markets.get(nextMarket).getName());
+    	}
+    }
+
     /** Starts a timer for the order that needs to be cooked. 
      * @param order
      */
     private void cookOrder(Order order){
-    	if (inventory.get(order.choice).amount <= 0 && order.waitingForShipment == false) {
+    	if (inventory.get(order.choice).amount <= 0) {
     		boolean removeOrder = true; // flag to remove the order
     		long timeForDelivery = 0;
     		for (ETA eta: arrivalTimes) {
     			if (eta.items.get(order.choice) != null) { // If an order for this item actually exists
-    				timeForDelivery = eta.deliveryTime + (eta.orderTime - System.currentTimeMillis());
+    				timeForDelivery = eta.deliveryTime + (eta.orderTime - clock.currentTimeMillis());
     				//print(eta.deliveryTime + " " + eta.orderTime + " " + System.currentTimeMillis()); // Debug for the algorithm
     				if (timeForDelivery > REASONABLE_WAIT) { 
     					// If an item of this choice is is NOT coming soon (if time ordered - currentTime > deliveryTime - REASONABLE_WAIT)
@@ -238,18 +309,18 @@ public class CookAgent extends Agent {
     		if (removeOrder == true) { // If no delivery is coming soon for the proper ingredients
     			print("Out of item: " + order.choice + ".  Telling " + order.waiter + " to get a different order.");
     			order.waiter.msgOutOfThisItem(order.choice, order.tableNum);
-    			orders.remove(order);  			
+    			orders.remove(order);
     		}
     	    else { // Wait to cook the order until it arrives
     	    	print("Currently out of stock of: " + order.choice + " for " + order.tableNum + ", but shipment will arrive in " +  (timeForDelivery) + " milliseconds.");
     	    	print("Will cook it when shipment arrives.");
-    	    	order.waitingForShipment = true;
+    	    	setStatus(order, Status.waiting); // kept off the pending rule until a shipment arrives
     	    }
     	}
     	
 	    else if (inventory.get(order.choice).amount > 0) { // Do not cook an order if there is NOT any of that item currently in the inventory 
 	    	DoCooking(order);
-	    	order.status = Status.cooking;
+	    	setStatus(order, Status.cooking);
 	    }
     }
 
@@ -269,13 +340,14 @@ public class CookAgent extends Agent {
     	markets.get(nextMarket).msgNeedFoodDelivered(items);
     	
     	itemOrdered.put(item, true);
+    	checkStock(item);
     	//System.out.println("Item: " + item + " : " + itemOrdered.get(item) );
     }
 
     private void addFoodToInventory(Map<String, Integer> items) { // Fetch a delivery & add contents to inventory
     	// Iterate through inventory and add items to cook
     	for (ETA aT: arrivalTimes) {
-    		if (aT.items == items) {
+    		if (aT.items.equals(items)) { // a delivery that was spilled to disk comes back as a copy
     			arrivalTimes.remove(aT);
     			break;
     		}
@@ -285,9 +357,10 @@ public class CookAgent extends Agent {
 		for (String s: setKeys) {
 			inventory.get(s).amount += items.get(s); // Add the items from the order into the inventory
 			itemOrdered.put(s, false); // Set this ordered value to false so that the item can be ordered again if it runs out
-			// Check through orders arrayList and make all waitForShipment values to false so that the items can actually be cooked
-			for (Order o: orders) {
-				o.waitingForShipment = false;	
+			checkStock(s);
+			// Put every order waiting for a shipment back to pending so that the items can actually be cooked
+			for (Order o: orders.items(Status.waiting)) {
+				setStatus(o, Status.pending);
 			}
 		}   
     	
@@ -296,6 +369,142 @@ public class CookAgent extends Agent {
 
 
 
+    /** Moves an order to a new status, keeping the orders buckets in step */
+    private void setStatus(Order order, Status status) {
+	order.status = status;
+	orders.setState(order, status);
+    }
+
+    /** Files an inventory item under low if it is at or below its
+     * threshold and not already on order.  Call whenever its amount or
+     * itemOrdered entry changes. */
+    private void checkStock(String item) {
+	FoodData f = inventory.get(item);
+	if (itemOrdered.get(item))
+	    stock.setState(item, Stock.ordered);
+	else if (f.amount <= f.threshold)
+	    stock.setState(item, Stock.low);
+	else
+	    stock.setState(item, Stock.ok);
+    }
+
+
+    // *** CHECKPOINT ***
+
+    /** Saves the kitchen: the orders, stock, what is on order and where,
+     *  and the orders, deliveries and tracking information still in the
+     *  mailboxes, as takeMessages() only takes so many. */
+    public void save(DataOutput out) throws IOException {
+	List<Order> all = new ArrayList<Order>();
+	for (Status s: Status.values())
+	    all.addAll(orders.items(s)); // longest in each status first
+	writeOrders(out, all);
+	List<Order> posted = new ArrayList<Order>();
+	orderBox.copyTo(posted);
+	writeOrders(out, posted);
+	Map<String, Integer> amounts = new HashMap<String, Integer>();
+	for (FoodData f: inventory.values())
+	    amounts.put(f.type, f.amount);
+	Checkpoint.writeCounts(out, amounts);
+	out.writeInt(itemOrdered.size());
+	for (Map.Entry<String, Boolean> e: itemOrdered.entrySet()) {
+	    out.writeUTF(e.getKey());
+	    out.writeBoolean(e.getValue());
+	}
+	out.writeInt(nextMarket);
+	List<ETA> tracking = new ArrayList<ETA>(arrivalTimes);
+	trackingBox.copyTo(tracking);
+	out.writeInt(tracking.size());
+	for (ETA eta: tracking) {
+	    out.writeLong(eta.orderTime);
+	    out.writeInt(eta.deliveryTime);
+	    Checkpoint.writeCounts(out, eta.items);
+	}
+	List<Map<String, Integer>> shipments = new ArrayList<Map<String, Integer>>(deliveries);
+	deliveryBox.copyTo(shipments);
+	out.writeInt(shipments.size());
+	for (Map<String, Integer> d: shipments)
+	    Checkpoint.writeCounts(out, d);
+    }
+
+    private void writeOrders(DataOutput out, List<Order> list) throws IOException {
+	out.writeInt(list.size());
+	for (Order o: list) {
+	    out.writeUTF(o.waiter.getName());
+	    out.writeInt(o.tableNum);
+	    out.writeUTF(o.choice);
+	    out.writeByte(o.status == null ? -1 : o.status.ordinal());
+	    out.writeLong(o.readyAt);
+	}
+    }
+
+    private List<Order> readOrders(DataInput in, Checkpoint cp) throws IOException {
+	List<Order> list = new ArrayList<Order>();
+	int n = in.readInt();
+	for (int i = 0; i < n; i++) {
+	    String w = in.readUTF();
+	    int tableNum = in.readInt();
+	    String choice = in.readUTF();
+	    int status = in.readByte();
+	    long readyAt = in.readLong();
+	    WaiterAgent waiter = cp.find(w, WaiterAgent.class);
+	    if (waiter == null) {
+		print("Checkpoint: " + choice + " for " + w + " dropped, that waiter is not here any more");
+		continue;
+	    }
+	    Order o = new Order(waiter, tableNum, choice);
+	    o.status = status < 0 ? null : Status.values()[status];
+	    o.readyAt = readyAt;
+	    list.add(o);
+	}
+	return list;
+    }
+
+    /** Orders come back in their status; ones that were cooking go back
+     *  on the grill for the rest of their time.  The rest goes back into
+     *  the lists, and what was left in the mailboxes back into those. */
+    public void restore(DataInput in, Checkpoint cp) throws IOException {
+	for (Order o: readOrders(in, cp)) {
+	    setStatus(o, o.status);
+	    if (o.status == Status.cooking || o.status == Status.done) {
+		o.food = new Food(o.choice.substring(0,2),new Color(0,255,255), restaurant);
+		o.food.cookFood(); //DoPlacement() moves a done one to the counter
+	    }
+	    if (o.status == Status.cooking)
+		schedule(new CookTask(o), Math.max(0, o.readyAt - clock.currentTimeMillis()));
+	}
+	for (Order o: readOrders(in, cp))
+	    orderBox.post(o);
+	for (Map.Entry<String, Integer> e: Checkpoint.readCounts(in).entrySet())
+	    inventory.get(e.getKey()).amount = e.getValue();
+	int n = in.readInt();
+	for (int i = 0; i < n; i++) {
+	    String item = in.readUTF();
+	    itemOrdered.put(item, in.readBoolean());
+	}
+	nextMarket = in.readInt();
+	if (nextMarket >= markets.size())
+	    nextMarket = 0;
+	n = in.readInt();
+	for (int i = 0; i < n; i++) {
+	    long orderTime = in.readLong();
+	    int deliveryTime = in.readInt();
+	    ETA eta = new ETA(orderTime, deliveryTime, Checkpoint.readCounts(in));
+	    if (arrivalTimes.size() < MAX_TRACKING) arrivalTimes.add(eta);
+	    else trackingBox.post(eta);
+	}
+	n = in.readInt();
+	for (int i = 0; i < n; i++) {
+	    Map<String, Integer> d = Checkpoint.readCounts(in);
+	    if (deliveries.size() < MAX_DELIVERIES) deliveries.add(d);
+	    else deliveryBox.post(d);
+	}
+	for (String k: inventory.keySet())
+	    checkStock(k);
+	stateChanged();
+    }
+
+
     // *** EXTRA -- all the simulation routines***
 
     /** Returns the name of the cook */
@@ -306,12 +515,17 @@ public class CookAgent extends Agent {
     private void DoCooking(final Order order){
     // Decrement the inventory foodData amount for this specific item by 1
     inventory.get(order.choice).amount -= 1;
+    checkStock(order.choice);
     	
-	print("Cooking:" + order + " for table:" + (order.tableNum+1));
+	log(AgentLog.Level.INFO, "Cooking:%s for waiter %s for table:%d",
+	    order.choice, order.waiter.getName(), order.tableNum+1);
+	Journal.log(this, "cook", order.waiter.getName(), order.tableNum, order.choice, 0);
 	//put it on the grill. gui stuff
 	order.food = new Food(order.choice.substring(0,2),new Color(0,255,255), restaurant);
 	order.food.cookFood();
-	timer.schedule(new CookTask(order), (int)(inventory.get(order.choice).cookTime*1000));
+	int cookTime = (int)(inventory.get(order.choice).cookTime*1000);
+	order.readyAt = clock.currentTimeMillis() + cookTime;
+	schedule(new CookTask(order), cookTime);
 	/*
 	timer.schedule(new TimerTask(){
 	    public void run(){//this routine is like a message reception    
@@ -323,20 +537,21 @@ public class CookAgent extends Agent {
     }
     
     public void DoPlacement(Order order){
-	print("Order finished: " + order + " for table:" + (order.tableNum+1));
+	log(AgentLog.Level.INFO, "Order finished: %s for waiter %s for table:%d",
+	    order.choice, order.waiter.getName(), order.tableNum+1);
 	order.food.placeOnCounter();
     }
     
     // Temporary Addition to the code just to see if my implementation will work - Lab 2 - might be permanent...
-	private class CookTask extends TimerTask {
-	// This would get all of the TimerTask functionality
+	private class CookTask implements Runnable {
+	// Scheduled when cooking starts; runs once the cook time is up
 		final Order cookOrder; // Need a reference to the order, or else this will not work
 		public CookTask(final Order order) {
 			cookOrder = order;
 		}
 	
-		public void run() { // This method will be called by the timer thread
-			cookOrder.status = Status.done;
+		public void run() { // Runs on the cook's scheduler, not the timer thread
+			setStatus(cookOrder, Status.done);
 			stateChanged();
 		} // Since this class will be declared INSIDE CookAgent, the data from CookAgent is accessible from this class
 	}
@@ -354,7 +569,7 @@ public class CookAgent extends Agent {
 	}
 	
 	public void setInventoryItemNumber(String choice, int num) { // Set the amount that an item will have
-		inventory.get(choice).amount = num;
+		countBox.post(new StockCount(choice, num)); // applied by the scheduler, which owns the inventory
 		stateChanged(); // This is necessary so that the cook can check the state of the inventory and order items if necessary after that occurs
 	}
 	
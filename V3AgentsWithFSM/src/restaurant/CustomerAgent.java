@@ -3,6 +3,10 @@ package restaurant;
 import restaurant.gui.RestaurantGui;
 import restaurant.layoutGUI.*;
 import agent.Agent;
+import agent.AgentLog;
+import agent.Checkpoint;
+import agent.Clock;
+import java.io.*;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -13,7 +17,7 @@ import java.awt.Color;
  * Randomly chooses a menu item and simulates eating 
  * when the food arrives. 
  * Interacts with a waiter only */
-public class CustomerAgent extends Agent {
+public class CustomerAgent extends Agent implements Checkpoint.Saved {
     private String name;
     private int hungerLevel = 5;  // Determines length of meal
     private RestaurantGui gui;
@@ -21,9 +25,8 @@ public class CustomerAgent extends Agent {
     // ** Agent connections **
     private HostAgent host;
     private WaiterAgent waiter;
-    Restaurant restaurant;
+    Layout restaurant;
     private Menu menu; // Will allow the customer to order and pay for food
-    Timer timer = new Timer();
     GuiCustomer guiCustomer; //for gui
    // ** Agent state **
     private boolean isHungry = false; //hack for gui
@@ -32,7 +35,7 @@ public class CustomerAgent extends Agent {
 	//{NO_ACTION,NEED_SEATED,NEED_DECIDE,NEED_ORDER,NEED_EAT,NEED_LEAVE};
     private AgentState state = AgentState.DoingNothing;//The start state
     public enum AgentEvent 
-	    {gotHungry, tablesAreFull /*Part 4.1 NN*/, beingSeated, decidedChoice, waiterToTakeOrder, foodDelivered, doneEating, donePaying /*New to v4.1*/};
+	    {gotHungry, tablesAreFull /*Part 4.1 NN*/, turnedAway, beingSeated, decidedChoice, waiterToTakeOrder, foodDelivered, doneEating, donePaying /*New to v4.1*/};
     List<AgentEvent> events = new ArrayList<AgentEvent>();
     
     /*New to v4.1*/
@@ -56,13 +59,22 @@ public class CustomerAgent extends Agent {
     /*Part 4.2 Non-Normative*/
     private boolean willOnlyPayFully = true;  // Will be set-able in the GUI or in some other fashion
 
+    private CustomerPool pool; // Set if this customer came from a pool; it goes back there once it leaves
+    // Bumped each time the customer gets hungry.  A waiter keeps it with
+    // the seating, so messages from this visit don't find an older one
+    // of the same agent, pooled or not.
+    private volatile int visit = 0;
+    // When the timer for the customer's state goes off (see wake()), or 0
+    // if none is going.  Saved, so a restored customer can start it again.
+    private long timerAt = 0;
+
     
     /** Constructor for CustomerAgent class 
      * @param name name of the customer
      * @param gui reference to the gui so the customer can send it messages
      */
-    public CustomerAgent(String name, RestaurantGui gui, Restaurant restaurant) {
-	super();
+    public CustomerAgent(String name, RestaurantGui gui, Layout restaurant) {
+	super(Priority.BACKGROUND); //one of many, and only ever waiting on others
 	this.gui = gui;
 	this.name = name;
 	this.restaurant = restaurant;
@@ -75,8 +87,8 @@ public class CustomerAgent extends Agent {
 	orderState.put("Salad", true);	
     }
     
-    public CustomerAgent(String name, Restaurant restaurant) {
-	super();
+    public CustomerAgent(String name, Layout restaurant) {
+	super(Priority.BACKGROUND); //one of many, and only ever waiting on others
 	this.gui = null;
 	this.name = name;
 	this.restaurant = restaurant;
@@ -92,10 +104,12 @@ public class CustomerAgent extends Agent {
     // *** MESSAGES ***
     /** Sent from GUI to set the customer as hungry */
     public void setHungry() {
+	visit++;
 	events.add(AgentEvent.gotHungry);
 	isHungry = true;
 	print("I'm hungry");
 	stateChanged();
+	if (getLifecycle() == Lifecycle.PARKED) startThread(); //back from home, see leaveRestaurant()
     }
     /** Waiter sends this message so the customer knows to sit down 
      * @param waiter the waiter that sent the message
@@ -103,7 +117,7 @@ public class CustomerAgent extends Agent {
     public void msgFollowMeToTable(WaiterAgent waiter, Menu menu) {
 	this.menu = menu;
 	this.waiter = waiter;
-	print("Received msgFollowMeToTable from" + waiter);
+	log(AgentLog.Level.INFO, "Received msgFollowMeToTable fromwaiter %s", waiter.getName());
 	events.add(AgentEvent.beingSeated);
 	stateChanged();
     }
@@ -161,6 +175,12 @@ public class CustomerAgent extends Agent {
     	stateChanged();
     }
 
+    /** From the host when even the line at the door is full */
+    public void msgRestaurantIsFull() {
+    	events.add(AgentEvent.turnedAway);
+    	stateChanged();
+    }
+
     
     
     /** Scheduler.  Determine what action is called for, and do it. */
@@ -198,6 +218,11 @@ public class CustomerAgent extends Agent {
 		state = AgentState.SeatedWithMenu;
 		return true;
 	    }
+	    if (event == AgentEvent.turnedAway)	{
+		leaveRestaurant();
+		state = AgentState.DoingNothing;
+		return true;
+	    }
 	}
 	if (state == AgentState.SeatedWithMenu) {
 	    if (event == AgentEvent.decidedChoice)	{
@@ -279,11 +304,7 @@ public class CustomerAgent extends Agent {
     /** Starts a timer to simulate the customer thinking about the menu */
     private void makeMenuChoice(){
 	print("Deciding menu choice...(3000 milliseconds)");
-	timer.schedule(new TimerTask() {
-	    public void run() {  
-		msgDecided();	    
-	    }},
-	    3000);//how long to wait before running task
+	startTimer(3000); //msgDecided() when it goes off
 	stateChanged();
     }
     private void callWaiter(){
@@ -309,20 +330,13 @@ public class CustomerAgent extends Agent {
     	}
     	
     	if (canAffordAnItem == false && willOnlyPayFully == true) { // Then the customer will leave the restaurant 
-    		timer.schedule(new TimerTask(){
-    		    public void run(){		    
-    	    		print("Cannot afford anything in the restaurant.  Preparing to Leave.");
-    	    		state = AgentState.Paying;
-    	    		events.add(AgentEvent.donePaying);
-    	    		stateChanged();
-    		    }
-    		}, 1500);
+    		startTimer(1500); // leaveWithoutOrdering() when it goes off
     		return;
     	}
     	
     	while (true) { // Choice loop
     		int choiceNum = 0;
-    		choiceNum = (int)(Math.random()*4);
+    		choiceNum = random(4); // recorded, so a trace replays the same choices
     		choice = menu.choices[choiceNum];
     		if (menu.unavailableItems[choiceNum] == true || (cannotAfford.get(choice) == true && willOnlyPayFully == true) || orderState.get(choice) == false) {
     			continue; 
@@ -335,19 +349,22 @@ public class CustomerAgent extends Agent {
     			break; // Item is orderable, break
     		}
     	}
-	print("Ordering the " + choice);
+	log(AgentLog.Level.INFO, "Ordering the %s", choice);
 	waiter.msgHereIsMyChoice(this, choice);
 	stateChanged();
     }
 
     /** Starts a timer to simulate eating */
     private void eatFood() {
-	print("Eating for " + hungerLevel*1000 + " milliseconds.");
-	timer.schedule(new TimerTask() {
-	    public void run() {
-		msgDoneEating();    
-	    }},
-	    getHungerLevel() * 1000);//how long to wait before running task
+	log(AgentLog.Level.INFO, "Eating for %d milliseconds.", hungerLevel*1000);
+	startTimer(getHungerLevel() * 1000); //msgDoneEating() when it goes off
+	stateChanged();
+    }
+
+    private void leaveWithoutOrdering() {
+	print("Cannot afford anything in the restaurant.  Preparing to Leave.");
+	state = AgentState.Paying;
+	events.add(AgentEvent.donePaying);
 	stateChanged();
     }
     
@@ -361,10 +378,13 @@ public class CustomerAgent extends Agent {
 	}
 	isHungry = false;
 	stateChanged();
-	gui.setCustomerEnabled(this); //Message to gui to enable hunger button
+	if (gui != null) gui.setCustomerEnabled(this); //Message to gui to enable hunger button
     
+	if (pool != null) release(); //done for good, the pool hands us out again as someone new
+	//A gui customer stays on the gui's list, but needs no thread until the hunger button is pushed again
+	else if (gui != null) park();
 	//hack to keep customer getting hungry. Only for non-gui customers
-	if (gui==null) becomeHungryInAWhile();//set a timer to make us hungry.
+	else becomeHungryInAWhile();//set a timer to make us hungry.
     }
     
     
@@ -393,7 +413,7 @@ public class CustomerAgent extends Agent {
 	}
 
 	private double subtractFromWallet (double num) { // Will return how much was subtracted from wallet
-		print("Subtracted " + num + " from my wallet");
+		log(AgentLog.Level.INFO, "Subtracted %s from my wallet", num);
 		wallet -= num; 
 		double val = 0;
 		if (wallet < 0) { val  = wallet + num; wallet = 0; return val; }
@@ -404,15 +424,150 @@ public class CustomerAgent extends Agent {
     /** This starts a timer so the customer will become hungry again.
      * This is a hack that is used when the GUI is not being used */
     private void becomeHungryInAWhile() {
-	timer.schedule(new TimerTask() {
-	    public void run() {  
-		setHungry();		    
+	startTimer(15000); //setHungry() when it goes off
+    }
+
+    /** Starts the customer's timer.  The customer has at most one going,
+     * and which one follows from its state, so wake() can tell what to
+     * do when it goes off, here or in a restored run. */
+    private void startTimer(long millis) {
+	timerAt = Clock.get().currentTimeMillis() + millis;
+	schedule(new Runnable() {
+	    public void run() {
+		timerAt = 0;
+		wake();
 	    }},
-	    15000);//how long to wait before running task
+	    millis);//how long to wait before running task
+    }
+
+    private void wake() {
+	if (state == AgentState.SeatedWithMenu) msgDecided();
+	else if (state == AgentState.WaitingForFood) leaveWithoutOrdering();
+	else if (state == AgentState.Eating) msgDoneEating();
+	else if (state == AgentState.DoingNothing) setHungry();
+    }
+
+    // *** CHECKPOINT ***
+
+    /** Saves where the customer has got to: its state and the events it
+     *  has still to act on, its waiter, menu and bill, its timer, money
+     *  and likes. */
+    public void save(DataOutput out) throws IOException {
+	out.writeByte(state.ordinal());
+	out.writeInt(events.size());
+	for (AgentEvent e: events)
+	    out.writeByte(e.ordinal());
+	out.writeBoolean(isHungry);
+	out.writeInt(visit);
+	out.writeLong(timerAt);
+	out.writeUTF(waiter == null ? "" : waiter.getName());
+	out.writeBoolean(menu != null);
+	if (menu != null)
+	    for (boolean b: menu.unavailableItems)
+		out.writeBoolean(b);
+	out.writeBoolean(bill != null);
+	if (bill != null) {
+	    out.writeDouble(bill.totalCost);
+	    out.writeUTF(bill.choice);
+	}
+	out.writeInt(hungerLevel);
+	out.writeDouble(wallet);
+	out.writeDouble(amountOwed);
+	out.writeBoolean(willingToWait);
+	out.writeBoolean(willOnlyPayFully);
+	out.writeInt(waitListSize);
+	out.writeBoolean(restaurantFull);
+	out.writeBoolean(messaged);
+	out.writeInt(orderState.size());
+	for (Map.Entry<String, Boolean> e: orderState.entrySet()) {
+	    out.writeUTF(e.getKey());
+	    out.writeBoolean(e.getValue());
+	}
+    }
+
+    /** Picks up where the customer left off.  One waiting for a table
+     *  goes back into the queue; the waiter puts one who has been seated
+     *  back at its table. */
+    public void restore(DataInput in, Checkpoint cp) throws IOException {
+	state = AgentState.values()[in.readByte()];
+	events.clear();
+	int n = in.readInt();
+	for (int i = 0; i < n; i++)
+	    events.add(AgentEvent.values()[in.readByte()]);
+	isHungry = in.readBoolean();
+	visit = in.readInt();
+	timerAt = in.readLong();
+	String w = in.readUTF();
+	waiter = w.length() == 0 ? null : cp.find(w, WaiterAgent.class);
+	if (waiter == null && w.length() > 0)
+	    print("Checkpoint: my waiter " + w + " is not here any more");
+	menu = null;
+	if (in.readBoolean()) {
+	    menu = new Menu();
+	    for (int i = 0; i < menu.unavailableItems.length; i++)
+		menu.unavailableItems[i] = in.readBoolean();
+	}
+	bill = null;
+	if (in.readBoolean()) {
+	    double cost = in.readDouble();
+	    bill = new Bill(cost, in.readUTF(), this);
+	}
+	hungerLevel = in.readInt();
+	wallet = in.readDouble();
+	amountOwed = in.readDouble();
+	willingToWait = in.readBoolean();
+	willOnlyPayFully = in.readBoolean();
+	waitListSize = in.readInt();
+	restaurantFull = in.readBoolean();
+	messaged = in.readBoolean();
+	n = in.readInt();
+	for (int i = 0; i < n; i++) {
+	    String item = in.readUTF();
+	    orderState.put(item, in.readBoolean());
+	}
+	if ((state == AgentState.WaitingInRestaurant || state == AgentState.WaitingTablesAreFull)
+	    && !events.contains(AgentEvent.beingSeated))
+	    guiCustomer.appearInWaitingQueue();
+	if (timerAt != 0)
+	    startTimer(Math.max(0, timerAt - Clock.get().currentTimeMillis()));
+	stateChanged();
     }
 
     // *** EXTRA ***
 
+    /** Called by the agent once it has been released and its last pass is over */
+    protected void released() {
+	if (pool != null) pool.put(this);
+    }
+
+    void setPool(CustomerPool pool) {
+	this.pool = pool;
+    }
+
+    /** Makes a released customer into a new one, for CustomerPool.
+     * Everything but the host, cashier and gui goes back to how the constructor left it.
+     * @param name name of the new customer */
+    void reset(String name) {
+	this.name = name;
+	guiCustomer.setName(name.substring(0, gui == null ? 1 : 2));
+	hungerLevel = 5;
+	waiter = null;
+	menu = null;
+	bill = null;
+	isHungry = false;
+	state = AgentState.DoingNothing;
+	events.clear();
+	timerAt = 0;
+	wallet = 25.00;
+	amountOwed = 0.00;
+	for (String k: orderState.keySet()) orderState.put(k, true);
+	willingToWait = true;
+	waitListSize = 0;
+	restaurantFull = false;
+	messaged = false;
+	willOnlyPayFully = true;
+    }
+
     /** establish connection to host agent. 
      * @param host reference to the host */
     public void setHost(HostAgent host) {
@@ -425,6 +580,11 @@ public class CustomerAgent extends Agent {
 	return name;
     }
 
+    /** @return which of the customer's visits this is, for WaiterAgent */
+    int getVisit() {
+	return visit;
+    }
+
     /** @return true if the customer is hungry, false otherwise.
      ** Customer is hungry from time he is created (or button is
      ** pushed, until he eats and leaves.*/
@@ -0,0 +1,70 @@
+package restaurant;
+
+import java.util.*;
+import restaurant.gui.RestaurantGui;
+import restaurant.layoutGUI.*;
+
+/** Hands out CustomerAgents and takes them back once they have left,
+ *  so a restaurant that sees customer after customer keeps only as many
+ *  agents (and threads and gui customers) as it has people in it at once.
+ *  A customer from acquire() releases itself when it leaves the restaurant
+ *  and comes back here when its last scheduler pass is over.  Nobody else
+ *  may keep a reference to it after that: it will be someone new. */
+public class CustomerPool {
+    private final Layout restaurant;
+    private final RestaurantGui gui; //null for customers without a gui
+    private final HostAgent host;
+    private final CashierAgent cashier;
+
+    private final Deque<CustomerAgent> free = new ArrayDeque<CustomerAgent>();
+    private int created = 0;
+    private long handedOut = 0;
+
+    public CustomerPool(Layout restaurant, RestaurantGui gui, HostAgent host, CashierAgent cashier) {
+	this.restaurant = restaurant;
+	this.gui = gui;
+	this.host = host;
+	this.cashier = cashier;
+    }
+
+    /** @return a started customer with the given name, ready for setHungry() */
+    public CustomerAgent acquire(String name) {
+	CustomerAgent c;
+	synchronized (this) {
+	    c = free.poll();
+	    handedOut++;
+	    if (c == null) created++;
+	}
+	if (c == null) {
+	    c = gui == null ? new CustomerAgent(name, restaurant)
+			    : new CustomerAgent(name, gui, restaurant);
+	    c.setHost(host);
+	    c.setCashier(cashier);
+	    c.setPool(this);
+	} else {
+	    c.reset(name);
+	}
+	c.startThread();
+	return c;
+    }
+
+    /** A released customer comes back */
+    synchronized void put(CustomerAgent c) {
+	free.push(c);
+    }
+
+    /** @return number of CustomerAgents ever made */
+    public synchronized int getCreated() {
+	return created;
+    }
+
+    /** @return number of customers handed out, new or reused */
+    public synchronized long getHandedOut() {
+	return handedOut;
+    }
+
+    /** @return number of customers waiting to be handed out again */
+    public synchronized int getFree() {
+	return free.size();
+    }
+}
@@ -0,0 +1,339 @@
+package restaurant;
+
+import agent.*;
+import astar.*;
+import restaurant.layoutGUI.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Runs the restaurant without Swing, on a HeadlessLayout with the same
+ *  floor plan as RestaurantPanel.  Customers come back hungry on their
+ *  own, so the restaurant stays busy for as long as it runs.  With
+ *  -arrive, new guests keep coming too; each eats once and leaves, and
+ *  a CustomerPool recycles their agents.
+ *
+ *  java restaurant.HeadlessRestaurant [options]
+ *    -customers n   number of customers (default 20)
+ *    -arrive ms     a new guest every ms of (simulated) time
+ *    -waiters n     number of waiters (default 3)
+ *    -markets n     number of markets (default 2)
+ *    -minutes n     how long to run (default 10)
+ *    -sim           simulated time: run as fast as the agents allow
+ *    -anim ms       animation delay per step (default 0)
+ *    -record        keep every layout change and print the count
+ *    -quiet         only log warnings and errors
+ *    -trace file    record the run's message traffic into file
+ *    -replay file   run the traffic recorded in file again
+ *    -watchdog ms   report any agent stuck in one pass for ms (real time)
+ *    -serveMarkets port       only run the markets, for a restaurant
+ *                             started with -marketsAt to connect to
+ *    -marketsAt host:port     use the markets of another JVM
+ *    -groups        run the cook with the markets, and each waiter with a
+ *                   share of the customers, on one scheduler loop each
+ *    -heuristic h   waiters' A* estimate: octile (default), euclidean,
+ *                   chebyshev or manhattan; see astar.Heuristic
+ *    -noRouteCache  search every waiter trip instead of reusing the
+ *                   paths in astar.RouteCache
+ *    -journal dir   log every seat, order, cook, serve, pay and ship into
+ *                   a Journal in dir; read it with agent.JournalReader
+ *    -checkpoint minutes file save the restaurant to file that far into the run
+ *    -restore file            start from a saved restaurant, e.g. a busy
+ *                             Friday night, instead of an empty one
+ *  -trace and -replay need -sim to repeat a run exactly, and don't
+ *  follow -groups: a group takes its members' turns on one thread,
+ *  which the trace can't tell apart, so such a replay diverges.  The markets'
+ *  JVM and the restaurant's both need real time, so no -sim there.
+ *  -serveMarkets takes connections from this machine only; start it
+ *  with -Dagent.transport.bind=address to let other hosts in.
+ *  -checkpoint and -restore need -sim, and -checkpoint -anim 0; restore
+ *  with the same numbers of customers, waiters and markets.  Guests
+ *  from -arrive are not saved, so their tables come back free.
+ */
+public class HeadlessRestaurant {
+    static int gridX = 20;
+    static int gridY = 15;
+
+    Semaphore[][] grid = new Semaphore[gridX+1][gridY+1];
+    Table[] tables = new Table[gridX * gridY];
+    HeadlessLayout layout = new HeadlessLayout(gridX, gridY, grid);
+    int nTables = 4;
+
+    HostAgent host = new HostAgent("Prof. W.", nTables);
+    CookAgent cook = new CookAgent("W. Puck", layout);
+    CashierAgent cashier = new CashierAgent("Mr. Moneybags");
+    List<WaiterAgent> waiters = new ArrayList<WaiterAgent>();
+    List<CustomerAgent> customers = new ArrayList<CustomerAgent>();
+    List<MarketAgent> markets = new ArrayList<MarketAgent>();
+    CustomerPool pool = new CustomerPool(layout, null, host, cashier);
+    int guests = 0;
+    static Heuristic heuristic; //for the waiters' A*, if not the default
+    static boolean routeCache = true;
+
+    HeadlessRestaurant() throws InterruptedException {
+	for (int i=0; i<gridX+1 ; i++)
+	    for (int j = 0; j<gridY+1; j++)
+		grid[i][j]=new Semaphore(1,true);
+	//same floor as RestaurantPanel
+	for (int i=0; i<gridY+1; i++) grid[0][0+i].acquire();
+	for (int i=1; i<gridX+1; i++) grid[0+i][0].acquire();
+	layout.addWaitArea(2, 2, 13);
+	for (int i=0; i<13; i++) grid[2][2+i].acquire();
+	layout.addCounter(17, 2, 13);
+	for (int i=0; i<13; i++) grid[17][2+i].acquire();
+	layout.addGrill(19, 3, 10);
+	for (int i=0; i<10; i++) grid[19][3+i].acquire();
+	int[][] corners = {{5, 3}, {5, 8}, {10, 3}, {10, 8}};
+	for (int t=0; t<nTables; t++) {
+	    int x = corners[t][0], y = corners[t][1];
+	    tables[t] = new Table("T" + (t+1), x, y, 3);
+	    layout.addTable("T" + (t+1), x, y, 3);
+	    for (int i=0; i<3; i++)
+		for (int j=0; j<3; j++)
+		    grid[x+i][y+j].acquire();
+	}
+    }
+
+    void addWaiter(String name) {
+	AStarTraversal aStar = new AStarTraversal(grid);
+	if (heuristic != null) aStar.setHeuristic(heuristic);
+	aStar.setCaching(routeCache);
+	WaiterAgent w = new WaiterAgent(name, aStar, layout, tables);
+	w.setHost(host);
+	w.setCook(cook);
+	w.setCashier(cashier);
+	host.setWaiter(w);
+	waiters.add(w);
+    }
+
+    void addMarket(String name) {
+	MarketAgent m = new MarketAgent(name);
+	m.setCook(cook);
+	m.setCashier(cashier);
+	cook.addMarket(m);
+	markets.add(m);
+    }
+
+    void addCustomer(String name) {
+	CustomerAgent c = new CustomerAgent(name, layout);
+	c.setHost(host);
+	c.setCashier(cashier);
+	customers.add(c);
+    }
+
+    //Another guest in millis, and so on for as long as the run lasts
+    void arriveEvery(final long millis) {
+	Clock.get().schedule(new Runnable() {
+	    public void run() {
+		Trace.outside(new Runnable() {
+		    public void run() {
+			pool.acquire("Guest" + (++guests)).setHungry();
+		    }
+		});
+		arriveEvery(millis);
+	    }
+	}, millis);
+    }
+
+    //Agents that message each other the most share a scheduler loop.
+    //Waiters take whichever customer the host gives them, so a waiter's
+    //group only catches some of its customers
+    void group() {
+	AgentGroup kitchen = new AgentGroup("kitchen");
+	kitchen.add(cook);
+	for (MarketAgent m : markets) kitchen.add(m);
+	List<AgentGroup> floor = new ArrayList<AgentGroup>();
+	for (WaiterAgent w : waiters) {
+	    AgentGroup g = new AgentGroup(w.getName() + "'s tables");
+	    g.add(w);
+	    floor.add(g);
+	}
+	for (int i = 0; i < customers.size(); i++)
+	    floor.get(i % floor.size()).add(customers.get(i));
+    }
+
+    //The agents a checkpoint keeps; -arrive guests are left out.  The
+    //host comes before the waiters, who free the tables of anyone missing
+    List<Agent> saved() {
+	List<Agent> l = new ArrayList<Agent>();
+	l.add(host);
+	l.addAll(waiters);
+	l.add(cook);
+	l.add(cashier);
+	l.addAll(markets);
+	l.addAll(customers);
+	return l;
+    }
+
+    void start(final boolean restored) {
+	//Start-up messages take a turn like an agent's, for Trace
+	Trace.outside(new Runnable() {
+	    public void run() {
+		startAll(restored);
+	    }
+	});
+    }
+
+    private void startAll(boolean restored) {
+	host.startThread();
+	cook.startThread();
+	cashier.startThread();
+	for (MarketAgent m : markets) m.startThread();
+	for (WaiterAgent w : waiters) w.startThread();
+	for (CustomerAgent c : customers) {
+	    c.startThread();
+	    if (!restored) c.setHungry(); //else they know what they were doing
+	}
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+	int nCustomers = 20, nWaiters = 3, nMarkets = 2;
+	long minutes = 10, anim = 0, arrive = 0;
+	boolean sim = false, record = false, groups = false;
+	int servePort = 0;
+	String marketsAt = null;
+	File checkpoint = null, restore = null;
+	long checkpointAt = 0;
+	File journal = null;
+	for (int i = 0; i < args.length; i++) {
+	    String a = args[i];
+	    if (a.equals("-customers")) nCustomers = Integer.parseInt(args[++i]);
+	    else if (a.equals("-waiters")) nWaiters = Integer.parseInt(args[++i]);
+	    else if (a.equals("-markets")) nMarkets = Integer.parseInt(args[++i]);
+	    else if (a.equals("-minutes")) minutes = Long.parseLong(args[++i]);
+	    else if (a.equals("-arrive")) arrive = Long.parseLong(args[++i]);
+	    else if (a.equals("-anim")) anim = Long.parseLong(args[++i]);
+	    else if (a.equals("-sim")) sim = true;
+	    else if (a.equals("-record")) record = true;
+	    else if (a.equals("-quiet")) AgentLog.setLevel(AgentLog.Level.WARN);
+	    else if (a.equals("-trace")) Trace.record(new File(args[++i]));
+	    else if (a.equals("-replay")) Trace.replay(new File(args[++i]));
+	    else if (a.equals("-serveMarkets")) servePort = Integer.parseInt(args[++i]);
+	    else if (a.equals("-marketsAt")) marketsAt = args[++i];
+	    else if (a.equals("-checkpoint")) {
+		checkpointAt = Long.parseLong(args[++i]) * 60 * 1000;
+		checkpoint = new File(args[++i]);
+	    }
+	    else if (a.equals("-restore")) restore = new File(args[++i]);
+	    else if (a.equals("-journal")) journal = new File(args[++i]);
+	    else if (a.equals("-groups")) groups = true;
+	    else if (a.equals("-noRouteCache")) routeCache = false;
+	    else if (a.equals("-heuristic")) {
+		heuristic = AStarTraversal.heuristic(args[++i]);
+		if (heuristic == null) {
+		    System.err.println("Unknown heuristic " + args[i]);
+		    System.exit(2);
+		}
+	    }
+	    else if (a.equals("-watchdog")) {
+		Watchdog.setEnabled(true);
+		Watchdog.setStallMillis(Long.parseLong(args[++i]));
+	    }
+	    else {
+		System.err.println("Unknown option " + a);
+		System.exit(2);
+	    }
+	}
+	if ((servePort > 0 || marketsAt != null) && sim) {
+	    System.err.println("-serveMarkets and -marketsAt need real time, not -sim");
+	    System.exit(2);
+	}
+	if ((checkpoint != null || restore != null) && !sim) {
+	    System.err.println("-checkpoint and -restore need -sim");
+	    System.exit(2);
+	}
+	if (servePort > 0) {
+	    Transport t = MarketLink.serve(servePort, nMarkets);
+	    System.out.println("Serving " + nMarkets + " markets on port " + t.getPort());
+	    Thread.sleep(minutes * 60 * 1000);
+	    AgentLog.flush();
+	    System.out.println("Markets sent " + t.getSent() + " messages in " + t.getFrames()
+			       + " frames, " + t.getBytes() + " bytes; received " + t.getReceived());
+	    System.exit(0);
+	}
+	//The clock has to be in place before any agent is created
+	SimulatedClock simClock = null;
+	Checkpoint saved = null;
+	if (restore != null) saved = Checkpoint.read(restore);
+	long startTime = saved != null ? saved.getTime() : 0;
+	if (sim) {
+	    simClock = new SimulatedClock(startTime);
+	    Clock.set(simClock);
+	}
+
+	HeadlessRestaurant r = new HeadlessRestaurant();
+	r.layout.setAnimDelay(anim);
+	r.layout.setRecording(record);
+	for (int i = 1; i <= nWaiters; i++) r.addWaiter("Waiter" + i);
+	Transport link = null;
+	if (marketsAt != null) {
+	    int colon = marketsAt.lastIndexOf(':');
+	    link = MarketLink.connect(marketsAt.substring(0, colon),
+				      Integer.parseInt(marketsAt.substring(colon + 1)),
+				      nMarkets, r.cook, r.cashier);
+	} else {
+	    for (int i = 1; i <= nMarkets; i++) r.addMarket("Market" + i);
+	}
+	for (int i = 1; i <= nCustomers; i++) r.addCustomer("Customer" + i);
+	if (saved != null)
+	    System.out.println("Restored " + saved.restore(r.saved()) + " agents from " + restore
+			       + ", " + startTime / 60000 + " minutes in");
+
+	if (groups) r.group();
+	if (journal != null) Journal.open(journal);
+
+	long realStart = System.currentTimeMillis();
+	r.start(saved != null);
+	if (arrive > 0) r.arriveEvery(arrive);
+	if (checkpoint != null) Checkpoint.saveAt(checkpoint, checkpointAt, r.saved());
+	long runFor = minutes * 60 * 1000;
+	//A simulated run stops at exactly runFor, with every agent idle, so
+	//the numbers below come out the same on a replay
+	if (simClock != null)
+	    simClock.runUntil(startTime + runFor);
+	else
+	    Thread.sleep(runFor);
+	long real = System.currentTimeMillis() - realStart;
+
+	AgentLog.flush();
+	Trace.close();
+	//A simulated run stops early if nothing is left to happen
+	double ran = sim ? (simClock.currentTimeMillis() - startTime) / 60000.0 : minutes;
+	System.out.println(String.format("Ran %.1f minutes of %s time in %d ms",
+					 ran, sim ? "simulated" : "real", real));
+	System.out.println("Layout changes: " + r.layout.getChangeCount()
+			   + (record ? ", recorded: " + r.layout.getEvents().size() : ""));
+	if (arrive > 0)
+	    System.out.println("Guests: " + r.pool.getHandedOut() + " arrived, "
+			       + r.pool.getCreated() + " CustomerAgents made, " + r.pool.getFree() + " free");
+	if (Trace.getMode() != Trace.Mode.OFF)
+	    System.out.println("Trace " + Trace.getMode().toString().toLowerCase() + "ed " + Trace.getEvents() + " events"
+			       + (Trace.hasDiverged() ? ", diverged" : ""));
+	if (link != null)
+	    System.out.println("Restaurant sent " + link.getSent() + " messages to the markets in "
+			       + link.getFrames() + " frames, " + link.getBytes() + " bytes; received " + link.getReceived());
+	if (Journal.isEnabled()) {
+	    System.out.println("Journal: " + Journal.getCount() + " events in " + Journal.getSegments()
+			       + " segments of " + journal);
+	    Journal.close();
+	}
+	long searches = 0, expanded = 0;
+	for (WaiterAgent w : r.waiters) {
+	    searches += w.aStar.getSearches();
+	    expanded += w.aStar.getTotalExpanded();
+	}
+	if (searches > 0)
+	    System.out.println(String.format("A* (%s): %d searches, %.1f cells expanded per search",
+					     r.waiters.get(0).aStar.getHeuristic(), searches,
+					     (double)expanded / searches));
+	RouteCache routes = RouteCache.of(r.grid);
+	if (routes.getHits() + routes.getMisses() > 0)
+	    System.out.println("Route cache: " + routes.getHits() + " hits, " + routes.getMisses()
+			       + " misses, " + routes.size() + " routes");
+	if (Watchdog.isEnabled())
+	    System.out.println("Watchdog: " + Watchdog.getStallCount() + " stalled passes");
+	if (MetricsRegistry.isEnabled())
+	    MetricsRegistry.dump(System.out);
+	System.exit(0);
+    }
+}
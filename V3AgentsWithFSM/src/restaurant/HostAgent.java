@@ -1,6 +1,11 @@
 package restaurant;
 
 import agent.Agent;
+import agent.AgentLog;
+import agent.Checkpoint;
+import agent.Journal;
+import agent.Mailbox;
+import java.io.*;
 import java.util.*;
 
 
@@ -10,7 +15,7 @@ import java.util.*;
  *  keeps a list of waiting customers.
  *  Interacts with customers and waiters.
  */
-public class HostAgent extends Agent {
+public class HostAgent extends Agent implements Checkpoint.Saved {
 
     /** Private class storing all the information for each table,
      * including table number and state. */
@@ -42,6 +47,14 @@ public class HostAgent extends Agent {
     //List of all the customers that need a table
     private List<CustomerAgent> waitList =
 		Collections.synchronizedList(new ArrayList<CustomerAgent>());
+    //Customers who just came in.  The scheduler moves them onto the
+    //waitList, up to MAX_WAITING at a time; the rest wait at the door,
+    //and once the door is full too newcomers are sent away.
+    //Change with -Dagent.mailbox.host.arrivals.capacity=N
+    int MAX_WAITING = 20;
+    private List<CustomerAgent> newCustomers = new ArrayList<CustomerAgent>(); // drained from arrivals
+    private Mailbox<CustomerAgent> arrivals =
+		new Mailbox<CustomerAgent>("host.arrivals", MAX_WAITING, Mailbox.Overflow.REJECT);
 
     //List of all waiter that exist.
     private List<MyWaiter> waiters =
@@ -76,7 +89,7 @@ public class HostAgent extends Agent {
     /** Constructor for HostAgent class 
      * @param name name of the host */
     public HostAgent(String name, int ntables) {
-	super();
+	super(Priority.CRITICAL); //everyone waits on the host to be seated
 	this.nTables = ntables;
 	tables = new Table[nTables];
 
@@ -84,6 +97,12 @@ public class HostAgent extends Agent {
 	    tables[i] = new Table(i);
 	}
 	this.name = name;
+	arrivals.setRejectHandler(new Mailbox.RejectHandler<CustomerAgent>() {
+	    public void rejected(CustomerAgent c) {
+		print(c.getName() + ", sorry, we have no room for you.  Please come back later.");
+		c.msgRestaurantIsFull();
+	    }
+	});
     }
 
     // *** MESSAGES ***
@@ -91,24 +110,8 @@ public class HostAgent extends Agent {
     /** Customer sends this message to be added to the wait list 
      * @param customer customer that wants to be added */
     public void msgIWantToEat(CustomerAgent customer){
-    	boolean tableFree = false; // If there are NO free tables, then this variable will NOT be changed in the following loop
-    	int tablesOccupied = 0; // Will keep track of how many tables are occupied, and how many seats are left
-    	for (int i = 0; i < tables.length; i++) {
-    		if (tables[i].occupied == false) {
-    			tableFree = true;
-    			tablesOccupied++;
-    			break;
-    		}
-    	}
-    	if (tableFree == true && waitList.size() <= 4 - tablesOccupied) { // Add customer to waitlist, as seen regularly
-    		waitList.add(customer);
-    	}
-    	else { // Add this customer to a potential customer list, and ask if she/he wants to wait
-    		customer.setRestaurantFull(true); // Will be used to begin restaurant full non-normative scenario
-    		waitList.add(customer);
-    		
-    	}
-		stateChanged();
+	arrivals.post(customer); // sends the customer away if there is no room
+	stateChanged();
     }
 
     /** Waiter sends this message after the customer has left the table 
@@ -147,6 +150,7 @@ public class HostAgent extends Agent {
 
     /** Scheduler.  Determine what action is called for, and do it. */
     protected boolean pickAndExecuteAnAction() {
+	takeArrivals();
 	
    	//print(Integer.toString(waitList.size()));
 
@@ -158,7 +162,7 @@ public class HostAgent extends Agent {
 		    nextWaiter = (nextWaiter+1)%waiters.size();
 		}
 	    }
-	    print("picking waiter number:"+nextWaiter);
+	    log(AgentLog.Level.INFO, "picking waiter number:%d", nextWaiter);
 	    //Then runs through the tables and finds the first unoccupied 
 	    //table and tells the waiter to sit the first customer at that table
 	    for(int i=0; i < nTables; i++){
@@ -222,14 +226,42 @@ public class HostAgent extends Agent {
     
     // *** ACTIONS ***
     
+    /** Moves customers who have come in onto the waitList, as long as
+     * it has room. */
+    private void takeArrivals() {
+	arrivals.drainTo(newCustomers, MAX_WAITING - waitList.size());
+	for (CustomerAgent customer: newCustomers) {
+	    boolean tableFree = false; // If there are NO free tables, then this variable will NOT be changed in the following loop
+	    int tablesOccupied = 0; // Will keep track of how many tables are occupied, and how many seats are left
+	    for (int i = 0; i < tables.length; i++) {
+	    	if (tables[i].occupied == false) {
+	    		tableFree = true;
+	    		tablesOccupied++;
+	    		break;
+	    	}
+	    }
+	    if (tableFree == true && waitList.size() <= 4 - tablesOccupied) { // Add customer to waitlist, as seen regularly
+	    	waitList.add(customer);
+	    }
+	    else { // Add this customer to a potential customer list, and ask if she/he wants to wait
+	    	customer.setRestaurantFull(true); // Will be used to begin restaurant full non-normative scenario
+	    	waitList.add(customer);
+	    	
+	    }
+	}
+	newCustomers.clear();
+    }
+
     /** Assigns a customer to a specified waiter and 
      * tells that waiter which table to sit them at.
      * @param waiter
      * @param customer
      * @param tableNum */
     private void tellWaiterToSitCustomerAtTable(MyWaiter waiter, CustomerAgent customer, int tableNum){
-	print("Telling " + waiter.wtr + " to sit " + customer +" at table "+(tableNum+1));
+	log(AgentLog.Level.INFO, "Telling waiter %s to sit customer %s at table %d",
+	    waiter.wtr.getName(), customer.getName(), tableNum+1);
 	waiter.wtr.msgSitCustomerAtTable(customer, tableNum);
+	Journal.log(this, "seat", customer.getName(), tableNum, null, 0);
 	tables[tableNum].occupied = true;
 	waitList.remove(customer);
 	nextWaiter = (nextWaiter+1)%waiters.size();
@@ -277,6 +309,68 @@ public class HostAgent extends Agent {
     }
 
 
+    // *** CHECKPOINT ***
+
+    /** Saves which tables are taken, the wait list, the customers still
+     *  at the door (in arrivals) and the waiters asking for a break. */
+    public void save(DataOutput out) throws IOException {
+	out.writeInt(nTables);
+	for (Table t: tables)
+	    out.writeBoolean(t.occupied);
+	out.writeInt(nextWaiter);
+	synchronized(waitList){
+	    out.writeInt(waitList.size());
+	    for (CustomerAgent c: waitList)
+		out.writeUTF(c.getName());
+	}
+	List<CustomerAgent> atDoor = new ArrayList<CustomerAgent>();
+	arrivals.copyTo(atDoor);
+	out.writeInt(atDoor.size());
+	for (CustomerAgent c: atDoor)
+	    out.writeUTF(c.getName());
+	out.writeInt(waitersWhoWantToBreak.size());
+	for (WaiterAgent w: waitersWhoWantToBreak)
+	    out.writeUTF(w.getName());
+    }
+
+    public void restore(DataInput in, Checkpoint cp) throws IOException {
+	int n = in.readInt();
+	for (int i = 0; i < n; i++) {
+	    boolean occupied = in.readBoolean();
+	    if (i < nTables) tables[i].occupied = occupied;
+	}
+	nextWaiter = in.readInt();
+	if (nextWaiter >= waiters.size()) nextWaiter = 0;
+	for (String name: readNames(in)) {
+	    CustomerAgent c = cp.find(name, CustomerAgent.class);
+	    if (c == null)
+		print("Checkpoint: " + name + " was waiting but is not here any more");
+	    else
+		waitList.add(c);
+	}
+	for (String name: readNames(in)) {
+	    CustomerAgent c = cp.find(name, CustomerAgent.class);
+	    if (c == null)
+		print("Checkpoint: " + name + " was at the door but is not here any more");
+	    else
+		arrivals.post(c);
+	}
+	for (String name: readNames(in)) {
+	    WaiterAgent w = cp.find(name, WaiterAgent.class);
+	    if (w != null) waitersWhoWantToBreak.add(w);
+	}
+	stateChanged();
+    }
+
+    private static List<String> readNames(DataInput in) throws IOException {
+	int n = in.readInt();
+	List<String> names = new ArrayList<String>();
+	for (int i = 0; i < n; i++)
+	    names.add(in.readUTF());
+	return names;
+    }
+
+
     // *** EXTRA ***
 
     /** Returns the name of the host 
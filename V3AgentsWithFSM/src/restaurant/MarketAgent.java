@@ -1,25 +1,34 @@
 package restaurant;
 
 import agent.Agent;
+import agent.Checkpoint;
+import agent.Clock;
+import agent.Journal;
+import agent.Mailbox;
+import agent.StateBuckets;
 
+import java.io.*;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.*;
 
 import restaurant.layoutGUI.*;
 import java.awt.Color;
 
-public class MarketAgent extends Agent {
+public class MarketAgent extends Agent implements Checkpoint.Saved {
 	//Name: MarketAgent
 	//Description:  This agent will deliver food to the cook, accepting payments from the cashier
 
 	//Data: 
 	/*Part 2 Normative*/
-	enum orderState {unprocessed, processing, pending, packaging, shipped, delivered}; //status of the order, used below
+	enum orderState {unprocessed, processing, pending, paid, packaging, shipped, delivered}; //status of the order, used below
 	private class Order { // Will holds the cooks food orders
 		public String id; // order id
 		public Map<String, Integer> items; // Items ordered
 		public orderState state = orderState.unprocessed; // Set the state to unprocessed upon creation (because that is the state is needs to be in)
+		public Payment payment; // The cashier's payment, once it has come in
+		public long deliverAt; // Clock time a shipped order arrives
 		
 		public Order (String id, Map<String, Integer> items) {
 			this.id = id;
@@ -41,20 +50,20 @@ public class MarketAgent extends Agent {
 	private CookAgent cook; 
 	private CashierAgent cashier;
 
-	private List<Order> orders = new ArrayList<Order>(); // List of all the cooks orders
-	private List<Payment> cashierPayments = new ArrayList<Payment>(); // Payments from the cashier.  bill.choice will the id of an order instead of the item choice itself
+	private StateBuckets<orderState, Order> orders = new StateBuckets<orderState, Order>(orderState.class); // All of the cooks orders, by state
+	private Map<String, Order> ordersById = new ConcurrentHashMap<String, Order>(); // Same orders, to match payments and keep ids unique
+	private Mailbox<Payment> paymentBox = new Mailbox<Payment>(); // Payments from the cashier.  bill.choice will the id of an order instead of the item choice itself
+	private List<Payment> cashierPayments = new ArrayList<Payment>(); // drained from paymentBox
 
 	private volatile double totalMoney = 0.00; // Money that the market has, this value may not be implemented unless it is needed in v4.2
 	private int timeForDelivery = 4000; // Shipping time used to estimate arrival times in milliseconds
 
-	private Timer timer = new Timer(); // Used to simulate shipping times for orders
+	private Clock clock = Clock.get(); // Used to simulate shipping times for orders
 
 	//-----//
 	private Map<String, Integer> inventory = new HashMap<String, Integer>(); // Total amount of each food item
 	private Map<String, Double> foodPrices = new HashMap<String, Double>(); // Will help calculate bills
 	
-	Random rand = new Random(); // Used for generating random order IDs
-	
 	// Other important variables
 	private String name; // Name of the market
 	int STARTING_NUM = 100; // This will hold how much of each item a market will start with.
@@ -89,23 +98,18 @@ public class MarketAgent extends Agent {
 		
 		String orderID; // ID for the order
 		
-		while (true) {	
-			orderID = Integer.toString(rand.nextInt(1000000));
-			
-			for (Order o: orders) { // Check orders to make sure that a duplicate order number does not exist
-				if (orderID.equals(o.id)) {
-					continue;
-				}
-			}
-			break; // All order IDs == unique
-		}
+		do {	
+			orderID = Integer.toString(random(1000000));
+		} while (ordersById.containsKey(orderID)); // Check orders to make sure that a duplicate order number does not exist
 		
-		orders.add(new Order(orderID, choices));
+		Order o = new Order(orderID, choices);
+		ordersById.put(orderID, o);
+		setState(o, orderState.unprocessed);
 		stateChanged();
 	}
 
 	public void msgHereIsCashierPayment(double money, String oID) { // Get payment from cashier
-		cashierPayments.add(new Payment(money, oID));
+		paymentBox.post(new Payment(money, oID));
 		stateChanged();
 	}
 
@@ -117,46 +121,64 @@ public class MarketAgent extends Agent {
 //			processFoodOrder(o);
 //	if ($ o in orders s.t. o.state == orderState.pending && $ cP in cashierPayments s.t. cP.id == o.id) then
 //		shipFoodOrder(o, cP);	
+//	(payments are matched to their order by id as they come in, which makes o paid)
 //	if ($ o s.t. o.state == orderState.delivered) then
 //		deliverFoodOrder(o);
 //
 //	return false;
 	
 	protected boolean pickAndExecuteAnAction() {
-		for (Order o: orders) { // Loop through all of the orders
-			if (o.state == orderState.unprocessed) { // The food order needs to be processed, and a bill sent out
-				processFoodOrder(o);
-				return true;
-			}
-			
-			if (o.state == orderState.pending) { // Order will be checked to incoming customer payments if it is pending
-				for (Payment cP: cashierPayments) { // Check to a cashierPayment
-					if (cP.id.equals(o.id) ) {
-						shipFoodOrder(o, cP);
-						return true;
-					}
-				}
-			}
-			
-			if (o.state == orderState.delivered) { // Order needs to be removed from the list once it has been delivered
-				deliverFoodOrder(o);
-				return true;
-			}
+		takePayments();
+		
+		Order o;
+		if ((o = orders.first(orderState.unprocessed)) != null) { // The food order needs to be processed, and a bill sent out
+			processFoodOrder(o);
+			return true;
+		}
+		
+		if ((o = orders.first(orderState.paid)) != null) { // The cashier has paid for this order, so ship it
+			shipFoodOrder(o, o.payment);
+			return true;
+		}
+		
+		if ((o = orders.first(orderState.delivered)) != null) { // Order needs to be removed from the list once it has been delivered
+			deliverFoodOrder(o);
+			return true;
 		}
 		
 		return false;
 	}
 
 	//Actions:
+	private void takePayments() { // Match each new payment to its order
+		paymentBox.drainTo(cashierPayments);
+		for (Payment p: cashierPayments) {
+			Order o = ordersById.get(p.id);
+			if (o == null) {
+				print("Payment for unknown order " + p.id + " ignored");
+				continue;
+			}
+			o.payment = p;
+			if (o.state == orderState.pending) { // Else it is still being processed; doProcessFoodOrder will see the payment
+				setState(o, orderState.paid);
+			}
+		}
+		cashierPayments.clear();
+	}
+
 	/*Part 2 (Non-)Normative*/
 	private void processFoodOrder(final Order o) { // Check to see if an order is fillable
 		print("Processing Order: " + o.id + " " +  o.items);
-		o.state = orderState.processing; // Set the order state to processing, so that nothing weird happens with the scheduler
-		timer.schedule(new TimerTask() {
+		setState(o, orderState.processing); // Set the order state to processing, so that nothing weird happens with the scheduler
+		schedule(processTimer(o), 2000); // Simulate a delay for processing the order
+	}
+
+	private Runnable processTimer(final Order o) {
+		return new Runnable() {
 			public void run() {				
-				doProcessFoodOrder(o); // Simulate a delay for processing the order
+				doProcessFoodOrder(o);
 			}			
-		}, 2000);
+		};
 	}
 	
 	private void doProcessFoodOrder (Order o) {
@@ -167,11 +189,11 @@ public class MarketAgent extends Agent {
 				print("Order Cannot be Fulfilled -- Order Cancelled: " + o.id + " " +  o.items);
 				cook.msgSorryWeCannotFulfillOrder(s);
 			}
-			orders.remove(o);
+			removeOrder(o);
 		}
 		else {
 			cashier.msgHereIsBill(new Bill(d, o.id, this));
-			o.state = orderState.pending;
+			setState(o, o.payment != null ? orderState.paid : orderState.pending);
 			print("Order Successfully Fulfilled: " + o.id + " " +  o.items + ".  Bill sent to " + cashier.getName());
 		}
 	}
@@ -179,42 +201,110 @@ public class MarketAgent extends Agent {
 	private void shipFoodOrder(final Order o, final Payment p) { // Send the order for shipping
 		totalMoney += p.money;
 		print("Packaging food order: " + o.id + " " +  o.items + ".  Total Money = " + df.format(totalMoney));
-		o.state = orderState.packaging; // Set the order state to packaging, so that nothing weird happens with the scheduler
-		timer.schedule(new TimerTask() {
+		setState(o, orderState.packaging); // Set the order state to packaging, so that nothing weird happens with the scheduler
+		schedule(packageTimer(o), 1500); // Simulate time for packaging the order
+	}
+
+	private Runnable packageTimer(final Order o) {
+		return new Runnable() {
 			public void run() {
-				doSendOrder(o); // Simulate time for packaging the order
-				cashierPayments.remove(p);
+				doSendOrder(o);
 				stateChanged();
 			}
-			
-		}, 1500);
+		};
 	}
 
 	private void doSendOrder(final Order o) { // Set up shipping
 		int randomTime = 0;
 		if (randomizer == true) { // Then make a random time
-			randomTime = timeForDelivery * (rand.nextInt(9) + 1); // Will hold a random number, depending on what randomizer is set to
+			randomTime = timeForDelivery * (random(9) + 1); // Will hold a random number, depending on what randomizer is set to
 		}
 		else { // Then make a NOT random time
 			randomTime = timeForDelivery * 2; // Will hold a NOT random number, depending on what randomizer is set to
 		}
 		
-		timer.schedule(new TimerTask() {
-		public void run() {
-			print("Delivering food order: " + o.id + " " +  o.items);
-			o.state = orderState.delivered;
-			stateChanged();
+		o.deliverAt = clock.currentTimeMillis() + randomTime;
+		scheduleDelivery(o, randomTime); // Will make the time anywhere from 4000 to 40000 ms wait
+		setState(o, orderState.shipped);
+		for (Map.Entry<String, Integer> e: o.items.entrySet()) {
+			Journal.log(this, "ship", cook.getName(), -1, e.getKey(), e.getValue());
 		}
-	}, randomTime); // Will make the time anywhere from 4000 to 40000 ms wait
-		o.state = orderState.shipped;
 		print("Shipped food order: " + o.id + " " +  o.items + ".  Estimated time for delivery (in milliseconds): " + randomTime);
-		cook.msgHereIsYourTrackingInformation(System.currentTimeMillis(), randomTime, o.items);
+		cook.msgHereIsYourTrackingInformation(clock.currentTimeMillis(), randomTime, o.items);
+	}
+
+	private void scheduleDelivery(final Order o, long delay) {
+		schedule(new Runnable() {
+			public void run() {
+				print("Delivering food order: " + o.id + " " +  o.items);
+				setState(o, orderState.delivered);
+				stateChanged();
+			}
+		}, delay);
 	}
 
 	private void deliverFoodOrder(Order o) {  // Deliver the order to the cook
 		print("Order Delivered: " + o.id + " " +  o.items);
 		cook.msgHereIsFoodDelivery(o.items);
+		for (Map.Entry<String, Integer> e: o.items.entrySet()) {
+			Journal.log(this, "deliver", cook.getName(), -1, e.getKey(), e.getValue());
+		}
+		removeOrder(o);
+	}
+
+	private void setState(Order o, orderState s) { // Every change to an order's state goes through here, to keep the buckets in step
+		o.state = s;
+		orders.setState(o, s);
+	}
+
+	private void removeOrder(Order o) {
 		orders.remove(o);
+		ordersById.remove(o.id);
+	}
+
+	//Checkpoint:
+	public void save(DataOutput out) throws IOException {
+		out.writeDouble(totalMoney);
+		Checkpoint.writeCounts(out, inventory);
+		out.writeInt(ordersById.size());
+		for (Order o: ordersById.values()) {
+			out.writeUTF(o.id);
+			out.writeByte(o.state.ordinal());
+			Checkpoint.writeCounts(out, o.items);
+			out.writeBoolean(o.payment != null);
+			if (o.payment != null) {
+				out.writeDouble(o.payment.money);
+			}
+			out.writeLong(o.deliverAt);
+		}
+	}
+
+	public void restore(DataInput in, Checkpoint cp) throws IOException {
+		totalMoney = in.readDouble();
+		inventory = Checkpoint.readCounts(in);
+		int n = in.readInt();
+		for (int i = 0; i < n; i++) {
+			Order o = new Order(in.readUTF(), null);
+			orderState s = orderState.values()[in.readByte()];
+			o.items = Checkpoint.readCounts(in);
+			if (in.readBoolean()) {
+				o.payment = new Payment(in.readDouble(), o.id);
+			}
+			o.deliverAt = in.readLong();
+			ordersById.put(o.id, o);
+			setState(o, s);
+			// The timers went with the old run; start them again from where the order got to
+			if (s == orderState.processing) {
+				schedule(processTimer(o), 2000);
+			}
+			else if (s == orderState.packaging) {
+				schedule(packageTimer(o), 1500);
+			}
+			else if (s == orderState.shipped) {
+				scheduleDelivery(o, Math.max(0, o.deliverAt - clock.currentTimeMillis()));
+			}
+		}
+		stateChanged();
 	}
 
 	//Other Methods:
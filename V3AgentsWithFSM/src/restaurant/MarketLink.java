@@ -0,0 +1,126 @@
+package restaurant;
+
+import agent.Agent;
+import agent.Transport;
+import java.io.*;
+import java.util.*;
+
+/** Runs the markets in a JVM of their own and links them to the
+ *  restaurant's cook and cashier with an agent.Transport.  The markets'
+ *  JVM serve()s; the restaurant's JVM connect()s and gets stand-ins for
+ *  the markets to hand to its cook.  Each side talks to stand-ins for
+ *  the other side's agents, which just pass their messages on.
+ *  Both sides have to use the wall clock.
+ */
+public class MarketLink {
+    //The restaurant's agents, as the markets know them
+    static final String COOK = "W. Puck";
+    static final String CASHIER = "Mr. Moneybags";
+
+    static {
+	//A bill carries the market that sent it; over the wire, by name
+	Transport.register(Bill.class, new Transport.Codec<Bill>() {
+	    public Object[] fields(Bill b) {
+		return new Object[] {b.totalCost, b.choice, b.agent};
+	    }
+
+	    public Bill make(Object[] f) {
+		return new Bill((Double) f[0], (String) f[1], (Agent) f[2]);
+	    }
+	});
+    }
+
+    private final Transport transport;
+
+    private MarketLink(Transport transport) {
+	this.transport = transport;
+    }
+
+    /** Markets' side: start nMarkets markets and wait for the
+     *  restaurant on port.
+     *  @return the transport, to close() when done */
+    public static Transport serve(int port, int nMarkets) throws IOException {
+	Transport t = new Transport("markets");
+	MarketLink link = new MarketLink(t);
+	CookAgent cook = link.new RemoteCook(COOK);
+	CashierAgent cashier = link.new RemoteCashier(CASHIER);
+	t.alias(COOK, cook);
+	t.alias(CASHIER, cashier);
+	for (int i = 1; i <= nMarkets; i++) {
+	    MarketAgent m = new MarketAgent("Market" + i);
+	    m.setCook(cook);
+	    m.setCashier(cashier);
+	    t.export(m);
+	    m.startThread();
+	}
+	t.listen(port);
+	return t;
+    }
+
+    /** Restaurant's side: connect to the markets at host:port and give
+     *  cook a stand-in for each of them.  Call before the cook starts.
+     *  @return the transport, to close() when done */
+    public static Transport connect(String host, int port, int nMarkets,
+				    CookAgent cook, CashierAgent cashier)
+	    throws IOException, InterruptedException {
+	Transport t = new Transport("restaurant");
+	MarketLink link = new MarketLink(t);
+	t.export(cook);
+	t.export(cashier);
+	t.connect(host, port);
+	for (int i = 1; i <= nMarkets; i++) {
+	    String name = "Market" + i;
+	    if (!t.await(name, 10000))
+		throw new IOException("no " + name + " at " + host + ":" + port);
+	    MarketAgent m = link.new RemoteMarket(name);
+	    t.alias(name, m);
+	    cook.addMarket(m);
+	}
+	return t;
+    }
+
+    /** A market in the other JVM.  Never started. */
+    class RemoteMarket extends MarketAgent {
+	RemoteMarket(String name) {
+	    super(name);
+	}
+
+	public void msgNeedFoodDelivered(Map<String, Integer> choices) {
+	    transport.send(getName(), "msgNeedFoodDelivered", choices);
+	}
+
+	public void msgHereIsCashierPayment(double money, String oID) {
+	    transport.send(getName(), "msgHereIsCashierPayment", money, oID);
+	}
+    }
+
+    /** The cook in the other JVM.  Never started. */
+    class RemoteCook extends CookAgent {
+	RemoteCook(String name) {
+	    super(name, null);
+	}
+
+	public void msgHereIsFoodDelivery(Map<String, Integer> items) {
+	    transport.send(getName(), "msgHereIsFoodDelivery", items);
+	}
+
+	public void msgSorryWeCannotFulfillOrder(String item) {
+	    transport.send(getName(), "msgSorryWeCannotFulfillOrder", item);
+	}
+
+	public void msgHereIsYourTrackingInformation(long orderTime, int deliveryTime, Map<String, Integer> items) {
+	    transport.send(getName(), "msgHereIsYourTrackingInformation", orderTime, deliveryTime, items);
+	}
+    }
+
+    /** The cashier in the other JVM.  Never started. */
+    class RemoteCashier extends CashierAgent {
+	RemoteCashier(String name) {
+	    super(name);
+	}
+
+	public void msgHereIsBill(Bill bill) {
+	    transport.send(getName(), "msgHereIsBill", bill);
+	}
+    }
+}
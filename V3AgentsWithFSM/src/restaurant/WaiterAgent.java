@@ -3,17 +3,23 @@ import java.awt.Color;
 import restaurant.gui.RestaurantGui;
 import restaurant.layoutGUI.*;
 import agent.Agent;
-import java.util.Timer;
-import java.util.TimerTask;
+import agent.AgentLog;
+import agent.Checkpoint;
+import agent.Clock;
+import agent.Journal;
+import agent.Mailbox;
+import agent.StateBuckets;
 import astar.*;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /** Restaurant Waiter Agent.
  * Sits customers at assigned tables and takes their orders.
  * Takes the orders to the cook and then returns them 
  * when the food is done.  Cleans up the tables after the customers leave.
  * Interacts with customers, host, and cook */
-public class WaiterAgent extends Agent {
+public class WaiterAgent extends Agent implements Checkpoint.Saved {
 
    //State variables for Waiter
     private boolean onBreak = false;
@@ -23,7 +29,7 @@ public class WaiterAgent extends Agent {
     public enum CustomerState 
 	{NEED_SEATED,READY_TO_ORDER,ORDER_PENDING,ORDER_READY,IS_DONE,NO_ACTION};
 
-    Timer timer = new Timer();
+    Clock clock = Clock.get(); // simulation time
 
     /** Private class to hold information for each customer.
      * Contains a reference to the customer, his choice, 
@@ -31,15 +37,25 @@ public class WaiterAgent extends Agent {
     private class MyCustomer {
 	public CustomerState state;
 	public CustomerAgent cmr;
+	//cmr's visit when seated: its messages are for this entry only if
+	//it is still on that visit
+	public int visit;
+	public volatile boolean gone; //has left; set by takeMessages()
+	//cmr's name when seated. A pooled agent goes on as someone else
+	//once it has left, so read the name here, not from cmr.
+	public String name;
 	public String choice;
 	public int tableNum;
 	public Food food; //gui thing
+	public long clearAt; //when the table will be clear, once clearing starts
 
 	/** Constructor for MyCustomer class.
 	 * @param cmr reference to customer
 	 * @param num assigned table number */
 	public MyCustomer(CustomerAgent cmr, int num){
 	    this.cmr = cmr;
+	    visit = cmr.getVisit();
+	    name = cmr.getName();
 	    tableNum = num;
 	    state = CustomerState.NO_ACTION;
 	}
@@ -48,15 +64,19 @@ public class WaiterAgent extends Agent {
     //Name of waiter
     private String name;
 
-    //All the customers that this waiter is serving
-    private List<MyCustomer> customers = new ArrayList<MyCustomer>();
+    //All the customers that this waiter is serving.  The messages look
+    //through it on the sender's thread while the scheduler removes them
+    private List<MyCustomer> customers = new CopyOnWriteArrayList<MyCustomer>();
+    //The same customers by state, so each scheduler rule is one lookup
+    private StateBuckets<CustomerState, MyCustomer> byState =
+	new StateBuckets<CustomerState, MyCustomer>(CustomerState.class);
 
     private HostAgent host;
     private CookAgent cook;
 
     //Animation Variables
     AStarTraversal aStar;
-    Restaurant restaurant; //the gui layout
+    Layout restaurant; //the gui layout
     GuiWaiter guiWaiter; 
     Position currentPosition; 
     Position originalPosition;
@@ -66,7 +86,13 @@ public class WaiterAgent extends Agent {
     CashierAgent cashier;
 
     /*Part 2 Non-Normative*/
-    List<Integer> customerToChangeOrder = new ArrayList<Integer>(); // Holds tablenum of customer of change order
+    List<MyCustomer> customerToChangeOrder = new ArrayList<MyCustomer>(); // Holds customers who have to change their order; scheduler only
+    // Customers who have left, and tables whose order the cook can't
+    // make, posted by the messages; takeMessages() applies them
+    private Mailbox<MyCustomer> leftBox = new Mailbox<MyCustomer>();
+    private Mailbox<Integer> outOfItemBox = new Mailbox<Integer>();
+    private List<MyCustomer> left = new ArrayList<MyCustomer>(); // drained from leftBox
+    private List<Integer> outOfItem = new ArrayList<Integer>(); // drained from outOfItemBox
 
     /*Part 3 (Non-)Normative*/
     private boolean breakButtonPressed = false; // Set this to false to start, or else everything gets blow up
@@ -79,7 +105,7 @@ public class WaiterAgent extends Agent {
      * @param name name of waiter
      * @param gui reference to the gui */
     public WaiterAgent(String name, AStarTraversal aStar,
-		       Restaurant restaurant, Table[] tables) {
+		       Layout restaurant, Table[] tables) {
 	super();
 
 	this.name = name;
@@ -89,7 +115,7 @@ public class WaiterAgent extends Agent {
 	this.restaurant = restaurant;//the layout for astar
 	guiWaiter = new GuiWaiter(name.substring(0,2), new Color(255, 0, 0), restaurant);
 	currentPosition = new Position(guiWaiter.getX(), guiWaiter.getY());
-        currentPosition.moveInto(aStar.getGrid());
+        aStar.moveInto(currentPosition);
 	originalPosition = currentPosition;//save this for moving into
 	this.tables = tables;
     } 
@@ -101,8 +127,8 @@ public class WaiterAgent extends Agent {
      * @param tableNum identification number for table */
     public void msgSitCustomerAtTable(CustomerAgent customer, int tableNum){
 	MyCustomer c = new MyCustomer(customer, tableNum);
-	c.state = CustomerState.NEED_SEATED;
 	customers.add(c);
+	setState(c, CustomerState.NEED_SEATED);
 	stateChanged();
     }
 
@@ -111,28 +137,24 @@ public class WaiterAgent extends Agent {
      */
     public void msgImReadyToOrder(CustomerAgent customer){
 	//print("received msgImReadyToOrder from:"+customer);
-	for(int i=0; i < customers.size(); i++){
-	    //if(customers.get(i).cmr.equals(customer)){
-	    if (customers.get(i).cmr == customer){
-		customers.get(i).state = CustomerState.READY_TO_ORDER;
-		stateChanged();
-		return;
-	    }
+	MyCustomer c = find(customer);
+	if (c != null){
+	    setState(c, CustomerState.READY_TO_ORDER);
+	    stateChanged();
+	    return;
 	}
-	System.out.println("msgImReadyToOrder in WaiterAgent, didn't find him?");
+	System.out.println("msgImReadyToOrder in WaiterAgent, didn't find them?");
     }
 
     /** Customer sends this when they have decided what they want to eat 
      * @param customer customer who has decided their choice
      * @param choice the food item that the customer chose */
     public void msgHereIsMyChoice(CustomerAgent customer, String choice){
-	for(MyCustomer c:customers){
-	    if(c.cmr.equals(customer)){
-		c.choice = choice;
-		c.state = CustomerState.ORDER_PENDING;
-		stateChanged();
-		return;
-	    }
+	MyCustomer c = find(customer);
+	if (c != null){
+	    c.choice = choice;
+	    setState(c, CustomerState.ORDER_PENDING);
+	    stateChanged();
 	}
     }
 
@@ -141,9 +163,9 @@ public class WaiterAgent extends Agent {
      * @param f is the guiFood object */
     public void msgOrderIsReady(int tableNum, Food f){
 	for(MyCustomer c:customers){
-	    if(c.tableNum == tableNum){
-		c.state = CustomerState.ORDER_READY;
+	    if(c.tableNum == tableNum && !c.gone){
 		c.food = f; //so that later we can remove it from the table.
+		setState(c, CustomerState.ORDER_READY);
 		stateChanged();
 		return;
 	    }
@@ -153,15 +175,24 @@ public class WaiterAgent extends Agent {
     /** Customer sends this when they are done eating.
      * @param customer customer who is leaving the restaurant. */
     public void msgDoneEatingAndLeaving(CustomerAgent customer){
-	for(MyCustomer c:customers){
-	    if(c.cmr.equals(customer)){
-		c.state = CustomerState.IS_DONE;
-		stateChanged();
-		return;
-	    }
+	//Found now, while this is still the visit we seated: a pooled
+	//customer is handed out again as soon as it has left
+	MyCustomer c = find(customer);
+	if (c != null){
+	    leftBox.post(c);
+	    stateChanged();
 	}
     }
 
+    //The entry for customer's current visit, or null. The same agent may
+    //have an older entry still, waiting for its table to be cleared.
+    private MyCustomer find(CustomerAgent customer){
+	int visit = customer.getVisit();
+	for (MyCustomer c: customers)
+	    if (c.cmr == customer && c.visit == visit) return c;
+	return null;
+    }
+
     /** Sent from GUI to control breaks 
      * @param state true when the waiter should go on break and 
      *              false when the waiter should go off break
@@ -173,13 +204,8 @@ public class WaiterAgent extends Agent {
 
     /*Part 2 Non-Normative*/
     public void msgOutOfThisItem(String choice, int table) { // Tell customer to reorder
-    	for (MyCustomer c: customers) {
-    		if (c.tableNum == table && !customerToChangeOrder.contains(table)) {
-    			customerToChangeOrder.add(table);
-        		stateChanged();
-        		break;
-    		}
-    	}
+    	outOfItemBox.post(table);
+    	stateChanged();
     }
 
     /*Part 3 (Non-)Normative*/
@@ -210,6 +236,7 @@ public class WaiterAgent extends Agent {
     /** Scheduler.  Determine what action is called for, and do it. */
     protected boolean pickAndExecuteAnAction() {
 	//print("in waiter scheduler");
+	takeMessages();
 
 //      /*Part 3 (Non-)Normative*/
 //      if (breakButtonPressed == true) then 
@@ -245,23 +272,19 @@ public class WaiterAgent extends Agent {
     } 
     	
     	
-	//Runs through the customers for each rule, so 
+	//Each rule takes the customer that has been in its state longest, so
 	//the waiter doesn't serve only one customer at a time
 	if(!customers.isEmpty()){
-	    //System.out.println("in scheduler, customers not empty:");
+	    MyCustomer c;
 	    //Gives food to customer if the order is ready
-	    for(MyCustomer c:customers){
-		if(c.state == CustomerState.ORDER_READY) {
-		    giveFoodToCustomer(c);
-		    return true;
-		}
+	    if((c = byState.first(CustomerState.ORDER_READY)) != null){
+		giveFoodToCustomer(c);
+		return true;
 	    }
 	    //Clears the table if the customer has left
-	    for(MyCustomer c:customers){
-		if(c.state == CustomerState.IS_DONE) {
-		    clearTable(c);
-		    return true;
-		}
+	    if((c = byState.first(CustomerState.IS_DONE)) != null){
+		clearTable(c);
+		return true;
 	    }
 	    
 //	    /*Part 2 Non-Normative*/
@@ -269,40 +292,29 @@ public class WaiterAgent extends Agent {
 //	    	tellCustomerToChangeOrder(cust);
 //	    	return true;
 
-	    // Queue up a customer who is going to change an order
-	    for(Integer tNum: customerToChangeOrder) {
-		    for(MyCustomer c: customers){
-					if(c.tableNum == tNum) { // A customer has requested a change of order, tell this customer to change the order
-						tellCustomerToChangeOrder(c);
-						return true;
-					}
-			    }
+	    // A customer has requested a change of order, tell this customer to change the order
+	    if(!customerToChangeOrder.isEmpty()){
+		tellCustomerToChangeOrder(customerToChangeOrder.get(0));
+		return true;
 	    }
 
 	    //Seats the customer if they need it
-	    for(MyCustomer c:customers){
-		if(c.state == CustomerState.NEED_SEATED){
-		    seatCustomer(c);
-		    return true;
-		}
+	    if((c = byState.first(CustomerState.NEED_SEATED)) != null){
+		seatCustomer(c);
+		return true;
 	    }
 
 	    //Gives all pending orders to the cook
-	    for(MyCustomer c:customers){
-		if(c.state == CustomerState.ORDER_PENDING){
-		    giveOrderToCook(c);
-		    return true;
-		}
+	    if((c = byState.first(CustomerState.ORDER_PENDING)) != null){
+		giveOrderToCook(c);
+		return true;
 	    }
 
 	    //Takes new orders for customers that are ready
-	    for(MyCustomer c:customers){
-		//print("testing for ready to order"+c.state);
-		if(c.state == CustomerState.READY_TO_ORDER) {
-		    takeOrder(c);
-		    return true;
-		}
-	    }	   
+	    if((c = byState.first(CustomerState.READY_TO_ORDER)) != null){
+		takeOrder(c);
+		return true;
+	    }
 	    
 	}
 	
@@ -318,13 +330,35 @@ public class WaiterAgent extends Agent {
     }
 
     // *** ACTIONS ***
+
+    /** Applies what leftBox and outOfItemBox have received, before any
+     * rule looks at the customers. */
+    private void takeMessages() {
+	leftBox.drainTo(left);
+	for (MyCustomer c: left) {
+	    c.gone = true;
+	    customerToChangeOrder.remove(c); //too late to ask them
+	    setState(c, CustomerState.IS_DONE);
+	}
+	left.clear();
+	outOfItemBox.drainTo(outOfItem);
+	for (int table: outOfItem) {
+	    for (MyCustomer c: customers) {
+		if (c.tableNum == table && !c.gone && !customerToChangeOrder.contains(c)) {
+		    customerToChangeOrder.add(c);
+		    break;
+		}
+	    }
+	}
+	outOfItem.clear();
+    }
     
 
     /** Seats the customer at a specific table 
      * @param customer customer that needs seated */
     private void seatCustomer(MyCustomer customer) {
 	DoSeatCustomer(customer); //animation	
-	customer.state = CustomerState.NO_ACTION;
+	setState(customer, CustomerState.NO_ACTION);
 	customer.cmr.msgFollowMeToTable(this, new Menu());
 	stateChanged();
     }
@@ -332,7 +366,7 @@ public class WaiterAgent extends Agent {
      * @param customer customer that is ready to order */
     private void takeOrder(MyCustomer customer) {
 	DoTakeOrder(customer); //animation
-	customer.state = CustomerState.NO_ACTION;
+	setState(customer, CustomerState.NO_ACTION);
 	customer.cmr.msgWhatWouldYouLike();
 	stateChanged();
     }
@@ -344,11 +378,12 @@ public class WaiterAgent extends Agent {
 	//order to give him an order. We assume some sort of electronic
 	//method implemented as our message to the cook. So there is no
 	//animation analog, and hence no DoXXX routine is needed.
-	print("Giving " + customer.cmr + "'s choice of " + customer.choice + " to cook");
+	log(AgentLog.Level.INFO, "Giving customer %s's choice of %s to cook", customer.cmr.getName(), customer.choice);
 
 
-	customer.state = CustomerState.NO_ACTION;
+	setState(customer, CustomerState.NO_ACTION);
 	cook.msgHereIsAnOrder(this, customer.tableNum, customer.choice);
+	Journal.log(this, "order", customer.cmr.getName(), customer.tableNum, customer.choice, 0);
 	stateChanged();
 	
 	//Here's a little animation hack. We put the first two
@@ -364,7 +399,7 @@ public class WaiterAgent extends Agent {
      * @param customer customer whose food is ready */
     private void giveFoodToCustomer(MyCustomer customer) {
 	DoGiveFoodToCustomer(customer);//Animation
-	customer.state = CustomerState.NO_ACTION;
+	setState(customer, CustomerState.NO_ACTION);
 	
 	// Generate a price for the food from the menu
 	Menu m = new Menu();
@@ -378,8 +413,9 @@ public class WaiterAgent extends Agent {
 	// Send the messages to the customer and waiter 
 	customer.cmr.msgHereIsYourFood(new Bill(price, customer.choice, customer.cmr) /*New to v4.1*/);
 	cashier.msgHereIsCustomerOrder(new Bill(price, customer.choice, customer.cmr) /*New to v4.1*/);
+	Journal.log(this, "serve", customer.cmr.getName(), customer.tableNum, customer.choice, price);
 	
-	print("Bills sent for " + customer.cmr.getName());
+	log(AgentLog.Level.INFO, "Bills sent for %s", customer.cmr.getName());
 	
 	stateChanged();
     }
@@ -387,7 +423,7 @@ public class WaiterAgent extends Agent {
      * @param customer customer whose table needs cleared */
     private void clearTable(MyCustomer customer) {
 	DoClearingTable(customer);
-	customer.state = CustomerState.NO_ACTION;
+	setState(customer, CustomerState.NO_ACTION);
 	stateChanged();
     }
     
@@ -397,14 +433,8 @@ public class WaiterAgent extends Agent {
     private void tellCustomerToChangeOrder(MyCustomer cust) {
     	print(cust.cmr + " --  Sorry but the order cannot be placed.  Is there something else that you want?");
     	cust.cmr.msgPleaseReorder(new Menu(cust.choice));
-    	// Remove the index from the customerToChangeOrder List
-    	for (int i = 0; i < customerToChangeOrder.size(); i++) {
-    		if (customerToChangeOrder.get(i) == cust.tableNum) { // To prevent concurrent modification exception
-    			customerToChangeOrder.remove(i);
-    			break;
-    		}
-    	}
-    	cust.state = CustomerState.NO_ACTION;
+    	customerToChangeOrder.remove(cust);
+    	setState(cust, CustomerState.NO_ACTION);
     	stateChanged();
     }
     
@@ -435,7 +465,7 @@ public class WaiterAgent extends Agent {
 
     // Animation Actions
     void DoSeatCustomer (MyCustomer customer){
-	print("Seating " + customer.cmr + " at table " + (customer.tableNum+1));
+	log(AgentLog.Level.INFO, "Seating customer %s at table %d", customer.cmr.getName(), customer.tableNum+1);
 	//move to customer first.
 	GuiCustomer guiCustomer = customer.cmr.getGuiCustomer();
 	guiMoveFromCurrentPostionTo(new Position(guiCustomer.getX()+1,guiCustomer.getY()));
@@ -446,13 +476,13 @@ public class WaiterAgent extends Agent {
 	guiWaiter.seatCustomer(tables[customer.tableNum]);
     }
     void DoTakeOrder(MyCustomer customer){
-	print("Taking " + customer.cmr +"'s order.");
+	log(AgentLog.Level.INFO, "Taking customer %s's order.", customer.cmr.getName());
 	Position tablePos = new Position(tables[customer.tableNum].getX()-1,
 					 tables[customer.tableNum].getY()+1);
 	guiMoveFromCurrentPostionTo(tablePos);
     }
     void DoGiveFoodToCustomer(MyCustomer customer){
-	print("Giving finished order of " + customer.choice +" to " + customer.cmr);
+	log(AgentLog.Level.INFO, "Giving finished order of %s to customer %s", customer.choice, customer.cmr.getName());
 	Position inFrontOfGrill = new Position(customer.food.getX()-1,customer.food.getY());
 	guiMoveFromCurrentPostionTo(inFrontOfGrill);//in front of grill
 	guiWaiter.pickUpFood(customer.food);
@@ -462,36 +492,72 @@ public class WaiterAgent extends Agent {
 	guiWaiter.serveFood(tables[customer.tableNum]);
     }
     void DoClearingTable(final MyCustomer customer){
-	print("Clearing table " + (customer.tableNum+1) + " (1500 milliseconds)");
-	timer.schedule(new TimerTask(){
+	log(AgentLog.Level.INFO, "Clearing table %d (1500 milliseconds)", customer.tableNum+1);
+	clearIn(customer, 1500);
+    }
+    //Also called by restore(), with what was left of the time
+    private void clearIn(final MyCustomer customer, long millis){
+	customer.clearAt = clock.currentTimeMillis() + millis;
+	schedule(new Runnable(){
 	    public void run(){		    
 		endCustomer(customer);
 	    }
-	}, 1500);
+	}, millis);
     }
     /** Function called at the end of the clear table timer
      * to officially remove the customer from the waiter's list.
      * @param customer customer who needs removed from list */
     private void endCustomer(MyCustomer customer){ 
-	print("Table " + (customer.tableNum+1) + " is cleared!");
+	log(AgentLog.Level.INFO, "Table %d is cleared!", customer.tableNum+1);
 	if (customer.food != null) { // If the customer actually HAS food!
 		customer.food.remove(); //remove the food from table animation
 	}
+	//logged first, so the table's next guest is seated after it
+	Journal.log(this, "clear", customer.name, customer.tableNum, null, 0);
 	host.msgTableIsFree(customer.tableNum);
 	customers.remove(customer);
+	byState.remove(customer);
+	customerToChangeOrder.remove(customer);
 	stateChanged();
     }
+    /** Moves a customer to a new state, keeping byState in step.
+     * Every change to MyCustomer.state goes through here. */
+    private void setState(MyCustomer customer, CustomerState state){
+	customer.state = state;
+	byState.setState(customer, state);
+    }
     private void DoMoveToOriginalPosition(){
-	print("Nothing to do. Moving to original position="+originalPosition);
+	log(AgentLog.Level.INFO, "Nothing to do. Moving to original position=%s", originalPosition);
 	guiMoveFromCurrentPostionTo(originalPosition);
     }
 
     //this is just a subroutine for waiter moves. It's not an "Action"
     //itself, it is called by Actions.
     void guiMoveFromCurrentPostionTo(Position to){
+	guiMoveFromCurrentPostionTo(to, false);
+    }
+
+    //around: plan around whoever is in the way now, rather than take
+    //the usual route
+    private void guiMoveFromCurrentPostionTo(Position to, boolean around){
 	//System.out.println("[Gaut] " + guiWaiter.getName() + " moving from " + currentPosition.toString() + " to " + to.toString());
 
-	AStarNode aStarNode = (AStarNode)aStar.generalSearch(currentPosition, to);
+	AStarNode aStarNode = findPath(to, around);
+	//No way there at the moment (someone is standing on it, say).
+	//Wait a second and look again, n times, then stay where we are:
+	//the cell may be a wall, e.g. next to a customer who found the
+	//wait area full.
+	int searches = 1;
+	while (aStarNode == null && searches < 3) {
+	    try { clock.sleep(1000); }
+	    catch (Exception e){}
+	    aStarNode = findPath(to, around);
+	    searches ++;
+	}
+	if (aStarNode == null) {
+	    print("No way from " + currentPosition + " to " + to + ", staying put");
+	    return;
+	}
 	List<Position> path = aStarNode.getPath();
 	Boolean firstStep   = true;
 	Boolean gotPermit   = true;
@@ -505,30 +571,31 @@ public class WaiterAgent extends Agent {
 
 	    //Try and get lock for the next step.
 	    int attempts    = 1;
-	    gotPermit       = new Position(tmpPath.getX(), tmpPath.getY()).moveInto(aStar.getGrid());
+	    gotPermit       = aStar.moveInto(tmpPath);
 
 	    //Did not get lock. Lets make n attempts.
 	    while (!gotPermit && attempts < 3) {
 		//System.out.println("[Gaut] " + guiWaiter.getName() + " got NO permit for " + tmpPath.toString() + " on attempt " + attempts);
 
 		//Wait for 1sec and try again to get lock.
-		try { Thread.sleep(1000); }
+		try { clock.sleep(1000); }
 		catch (Exception e){}
 
-		gotPermit   = new Position(tmpPath.getX(), tmpPath.getY()).moveInto(aStar.getGrid());
+		gotPermit   = aStar.moveInto(tmpPath);
 		attempts ++;
 	    }
 
-	    //Did not get lock after trying n attempts. So recalculating path.            
+	    //Did not get lock after trying n attempts. So recalculating path,
+	    //around whoever is blocking this one.
 	    if (!gotPermit) {
 		//System.out.println("[Gaut] " + guiWaiter.getName() + " No Luck even after " + attempts + " attempts! Lets recalculate");
-		guiMoveFromCurrentPostionTo(to);
+		guiMoveFromCurrentPostionTo(to, true);
 		break;
 	    }
 
 	    //Got the required lock. Lets move.
 	    //System.out.println("[Gaut] " + guiWaiter.getName() + " got permit for " + tmpPath.toString());
-	    currentPosition.release(aStar.getGrid());
+	    aStar.release(currentPosition);
 	    currentPosition = new Position(tmpPath.getX(), tmpPath.getY ());
 	    guiWaiter.move(currentPosition.getX(), currentPosition.getY());
 	}
@@ -568,6 +635,92 @@ public class WaiterAgent extends Agent {
 	*/
     }
 
+    private AStarNode findPath(Position to, boolean around){
+	return (AStarNode)(around ? aStar.searchNow(currentPosition, to)
+			   : aStar.generalSearch(currentPosition, to));
+    }
+
+    // *** CHECKPOINT ***
+
+    /** Saves the customers, each with its state, order, table and
+     *  whether its food is there, and the break.  A waiter with nothing
+     *  to do walks back to its place, so that is where a restored one
+     *  starts. */
+    public void save(DataOutput out) throws IOException {
+	out.writeBoolean(onBreak);
+	out.writeBoolean(breakButtonPressed);
+	out.writeByte(allowBreak.ordinal());
+	out.writeInt(customers.size());
+	for (MyCustomer c: customers) {
+	    out.writeUTF(c.name);
+	    out.writeInt(c.visit);
+	    out.writeByte(c.state.ordinal());
+	    out.writeBoolean(c.gone);
+	    out.writeBoolean(c.choice != null);
+	    if (c.choice != null) out.writeUTF(c.choice);
+	    out.writeInt(c.tableNum);
+	    out.writeBoolean(c.food != null);
+	    out.writeLong(c.clearAt);
+	    out.writeBoolean(customerToChangeOrder.contains(c));
+	}
+    }
+
+    /** Puts the customers back, at their tables with their food or
+     *  order, and starts clearing the tables that were being cleared.
+     *  The host has to be restored first: a customer who is not here any
+     *  more has its table freed. */
+    public void restore(DataInput in, Checkpoint cp) throws IOException {
+	onBreak = in.readBoolean();
+	breakButtonPressed = in.readBoolean();
+	allowBreak = willHostAllowBreak.values()[in.readByte()];
+	int n = in.readInt();
+	for (int i = 0; i < n; i++) {
+	    String cname = in.readUTF();
+	    int visit = in.readInt();
+	    CustomerState state = CustomerState.values()[in.readByte()];
+	    boolean gone = in.readBoolean();
+	    String choice = in.readBoolean() ? in.readUTF() : null;
+	    int tableNum = in.readInt();
+	    boolean hasFood = in.readBoolean();
+	    long clearAt = in.readLong();
+	    boolean changeOrder = in.readBoolean();
+	    CustomerAgent cmr = cp.find(cname, CustomerAgent.class);
+	    if (cmr == null) {
+		print("Checkpoint: " + cname + " is not here any more; table " + (tableNum+1) + " is free");
+		host.msgTableIsFree(tableNum);
+		continue;
+	    }
+	    MyCustomer c = new MyCustomer(cmr, tableNum);
+	    c.visit = visit; //cmr may not have been restored yet
+	    c.name = cname;
+	    c.gone = gone;
+	    c.choice = choice;
+	    customers.add(c);
+	    setState(c, state);
+	    if (changeOrder) customerToChangeOrder.add(c);
+	    //The layout: customer, then the order or the food on the table
+	    Table table = tables[tableNum];
+	    if (!gone && state != CustomerState.NEED_SEATED)
+		cmr.getGuiCustomer().sitAt(table);
+	    if (hasFood) {
+		c.food = new Food(choice.substring(0,2), new Color(0,255,255), restaurant);
+		if (state == CustomerState.ORDER_READY) {
+		    c.food.cookFood(); //still on the counter
+		    c.food.placeOnCounter();
+		}
+		else c.food.placeOnTable(table);
+	    }
+	    else if (choice != null && state != CustomerState.ORDER_PENDING) {
+		table.takeOrder(choice.substring(0,2)+"?");
+		restaurant.placeFood(table.foodX(), table.foodY(),
+				     new Color(255, 255, 255), choice.substring(0,2)+"?");
+	    }
+	    if (clearAt != 0)
+		clearIn(c, Math.max(0, clearAt - clock.currentTimeMillis()));
+	}
+	stateChanged();
+    }
+
     // *** EXTRA ***
 
     /** @return name of waiter */
@@ -237,6 +237,8 @@ public class RestaurantPanel extends JPanel {
 			restaurant.addTable("T" + (nTables+1), x, y, size);
 			nTables++;
 			host.addTable();
+			//the waiters' usual routes may go through it
+			RouteCache.invalidate(grid);
 		}
 		catch (Exception e)
 		{
@@ -6,10 +6,10 @@ public class Food
 {
     private int x, y;
     private Color color;
-    private Restaurant restaurant;
+    private Layout restaurant;
     private String name;
     
-    public Food(String name, Color color, Restaurant restaurant)
+    public Food(String name, Color color, Layout restaurant)
     {
         this.name       =   name;
         this.color      =   color;
@@ -47,6 +47,13 @@ public class Food
         this.placeFood();
     }
     
+    //Straight onto the table, for a restored restaurant
+    public void placeOnTable(Table table)
+    {
+        this.move(table.foodX(), table.foodY());
+        this.placeFood();
+    }
+    
     protected void placeFood()
     {
         restaurant.placeFood(x, y, color, name);
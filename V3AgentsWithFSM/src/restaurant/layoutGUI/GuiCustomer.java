@@ -1,15 +1,16 @@
 package restaurant.layoutGUI;
 
 import java.awt.*;
+import agent.Clock;
 
 public class GuiCustomer
 {
     private int x, y;
     private Color color;
-    private Restaurant restaurant;
+    private Layout restaurant;
     private String name;
     
-    public GuiCustomer(String name, Color color, Restaurant restaurant)
+    public GuiCustomer(String name, Color color, Layout restaurant)
     {
         this.name       =   name;
         this.color      =   color;
@@ -30,21 +31,33 @@ public class GuiCustomer
     {
         return name;
     }
+
+    public void setName(String name)
+    {
+        this.name       =   name;
+    }
     
     public void appearInWaitingQueue()
     {
 		try  {
-			restaurant.lock.acquire();
+			Clock.get().acquire(restaurant.getLock());
 			this.y  =   restaurant.getWaitY();
 			this.x  =   restaurant.getWaitX();
 			this.placeCustomer();	
-			restaurant.lock.release();
+			restaurant.getLock().release();
 		}
 		catch (InterruptedException e) {
 			e.printStackTrace();
 		}
     }
     
+    //Straight into the seat, for a restored restaurant
+    public void sitAt(Table table)
+    {
+        this.move(table.seatX(), table.seatY());
+        this.placeCustomer();
+    }
+    
     protected void placeCustomer()
     {
         restaurant.placeCustomer(x, y, color, name);
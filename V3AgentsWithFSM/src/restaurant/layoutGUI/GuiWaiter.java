@@ -6,13 +6,13 @@ public class GuiWaiter
 {
     private int x, y;
     private Color color;
-    private Restaurant restaurant;
+    private Layout restaurant;
     private GuiCustomer customer;
     private Food food;
     private boolean customerPresent, foodPresent;
     private String name;
     
-    public GuiWaiter(String name, Color color, Restaurant restaurant)
+    public GuiWaiter(String name, Color color, Layout restaurant)
     {
 		this.name       =   name;
 		System.out.println("GuiWaiter name="+name);
@@ -0,0 +1,283 @@
+package restaurant.layoutGUI;
+
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import agent.Clock;
+
+/** Layout without a window.  Keeps the same cell contents Restaurant
+ *  shows, so agents are handed the same spots, but draws nothing and
+ *  only sleeps if given an animation delay (the default is none).
+ *  With recording on, every change is kept as a line of text so a run
+ *  can be checked afterwards. */
+public class HeadlessLayout implements Layout
+{
+    private static final String EMPTY = "_____";
+
+    private long animDelay = 0;
+    private final String[][] cells;
+    private final int xPos, yPos;
+    private int grilX, grilY, grilSize, cntrX, cntrY, cntrSize, waitX, waitY, waitSize, waiterX, waiterY;
+    private boolean grilFull, cntrFull, waitFull;
+    private final int waiterNum[][];
+    private int waiterCnt;
+    private final Semaphore[][] grid;
+    private final Semaphore lock = new Semaphore(1, true);
+
+    private int tune_waiter_pos_X = 3, tune_waiter_pos_Y = 1; //same as Restaurant
+
+    private boolean recording = false;
+    private final List<String> events = new ArrayList<String>();
+    private long changes = 0;
+
+    public HeadlessLayout(int x, int y, Semaphore[][] grid)
+    {
+        this.xPos   =   x;
+        this.yPos   =   y;
+        this.grid   =   grid;
+        cells       =   new String[x][y];
+        for (int i = 0; i < x; i++)
+            Arrays.fill(cells[i], EMPTY);
+        waiterNum   =   new int[x*y][2];
+    }
+
+    public void setAnimDelay(long animDelay)
+    {
+        this.animDelay  =   animDelay;
+    }
+
+    /** Keep a line of text for every change from now on */
+    public synchronized void setRecording(boolean recording)
+    {
+        this.recording  =   recording;
+    }
+
+    /** @return the changes recorded so far, oldest first */
+    public synchronized List<String> getEvents()
+    {
+        return new ArrayList<String>(events);
+    }
+
+    /** @return number of changes made to the floor, recorded or not */
+    public synchronized long getChangeCount()
+    {
+        return changes;
+    }
+
+    public synchronized void addTable(String tableNum, int x, int y, int size)
+    {
+        cells[x-1][y-1] =   tableNum;
+        record("addTable " + tableNum + " " + x + "," + y + " " + size);
+    }
+
+    public synchronized void removeTable(String tableNum, int x, int y, int size)
+    {
+        cells[x-1][y-1] =   EMPTY;
+        record("removeTable " + tableNum + " " + x + "," + y);
+    }
+
+    public synchronized void addWaitArea(int x, int y, int size)
+    {
+        waitX = x; waitY = y; waitSize = size;
+    }
+
+    public synchronized void addCounter(int x, int y, int size)
+    {
+        cntrX = x; cntrY = y; cntrSize = size;
+    }
+
+    public synchronized void addGrill(int x, int y, int size)
+    {
+        grilX = x; grilY = y; grilSize = size;
+    }
+
+    public synchronized int getGrilX()
+    {
+        return grilFull ? firstFreeX() : grilX;
+    }
+
+    public synchronized int getGrilY()
+    {
+        int y = freeIn(grilX, grilY, grilSize);
+        grilFull = (y == -1);
+        return grilFull ? firstFreeY() : y;
+    }
+
+    public synchronized int getCntrX()
+    {
+        return cntrFull ? firstFreeX() : cntrX;
+    }
+
+    public synchronized int getCntrY()
+    {
+        int y = freeIn(cntrX, cntrY, cntrSize);
+        cntrFull = (y == -1);
+        return cntrFull ? firstFreeY() : y;
+    }
+
+    public synchronized int getWaitX()
+    {
+        return waitFull ? firstFreeX() : waitX;
+    }
+
+    public synchronized int getWaitY()
+    {
+        int y = freeIn(waitX, waitY, waitSize);
+        waitFull = (y == -1);
+        return waitFull ? firstFreeY() : y;
+    }
+
+    public synchronized int getWaiterX()
+    {
+        //Same search as Restaurant, including its row/column order
+        for (int i = tune_waiter_pos_Y; i <= yPos; i++)
+        {
+            for (int j = tune_waiter_pos_X; j <= xPos; j++)
+            {
+                if (cells[i-1][j-1].equals(EMPTY) && grid[j][i].tryAcquire())
+                {
+                    grid[j][i].release();
+                    boolean occupied = false;
+                    for (int k = 0; k < waiterCnt; k++)
+                    {
+                        if (waiterNum[k][0] == j && waiterNum[k][1] == i)
+                            occupied = true;
+                    }
+                    if (!occupied)
+                    {
+                        waiterX = j;
+                        waiterY = i;
+                        waiterNum[waiterCnt][0] = j;
+                        waiterNum[waiterCnt][1] = i;
+                        waiterCnt++;
+                        return waiterX;
+                    }
+                }
+            }
+        }
+        return waiterX;
+    }
+
+    public synchronized int getWaiterY()
+    {
+        return waiterY;
+    }
+
+    public void placeWaiter(int x, int y, Color color, String name)
+    {
+        set(x, y, shorten(name, 2), "placeWaiter");
+    }
+
+    public void moveWaiter(int oldx, int oldy, int newx, int newy, Color color, String name)
+    {
+        move(oldx, oldy, newx, newy, shorten(name, 2), "moveWaiter");
+        pause();
+    }
+
+    public void moveWaiterCustomer(int oldx, int oldy, int newx, int newy, Color color, String waiterName, String customerName)
+    {
+        move(oldx, oldy, newx, newy, shorten(waiterName, 2) + shorten(customerName, 2), "moveWaiterCustomer");
+        pause();
+    }
+
+    public void moveWaiterFood(int oldx, int oldy, int newx, int newy, Color color, String waiterName, String foodName)
+    {
+        move(oldx, oldy, newx, newy, shorten(waiterName, 2) + shorten(foodName, 3), "moveWaiterFood");
+        pause();
+    }
+
+    public void placeCustomer(int x, int y, Color color, String name)
+    {
+        set(x, y, shorten(name, 2), "placeCustomer");
+        pause();
+    }
+
+    public void removeCustomer(int x, int y)
+    {
+        set(x, y, EMPTY, "removeCustomer");
+        pause();
+    }
+
+    public void placeFood(int x, int y, Color color, String name)
+    {
+        set(x, y, name, "placeFood");
+        pause();
+    }
+
+    public void removeFood(int x, int y)
+    {
+        set(x, y, EMPTY, "removeFood");
+        pause();
+    }
+
+    public Semaphore getLock()
+    {
+        return lock;
+    }
+
+    private synchronized void set(int x, int y, String text, String what)
+    {
+        cells[x-1][y-1] =   text;
+        record(what + " " + text + " " + x + "," + y);
+    }
+
+    private synchronized void move(int oldx, int oldy, int newx, int newy, String text, String what)
+    {
+        cells[oldx-1][oldy-1]   =   EMPTY;
+        cells[newx-1][newy-1]   =   text;
+        record(what + " " + text + " " + oldx + "," + oldy + "->" + newx + "," + newy);
+    }
+
+    private void record(String event)
+    {
+        changes++;
+        if (recording)
+            events.add(Clock.get().currentTimeMillis() + " " + event);
+    }
+
+    private void pause()
+    {
+        if (animDelay <= 0)
+            return;
+        try
+        {
+            Clock.get().sleep(animDelay);
+        }
+        catch(Exception e) {}
+    }
+
+    //First free spot in the column of an area, or -1 if it is full
+    private int freeIn(int x, int y, int size)
+    {
+        for (int i = y; i < y + size; i++)
+        {
+            if (cells[x-1][i-1].equals(EMPTY))
+                return i;
+        }
+        return -1;
+    }
+
+    private int firstFreeX()
+    {
+        for (int i = 1; i <= xPos; i++)
+            for (int j = 1; j <= yPos; j++)
+                if (cells[i-1][j-1].equals(EMPTY))
+                    return i;
+        return -1;
+    }
+
+    private int firstFreeY()
+    {
+        for (int i = 1; i <= xPos; i++)
+            for (int j = 1; j <= yPos; j++)
+                if (cells[i-1][j-1].equals(EMPTY))
+                    return j;
+        return -1;
+    }
+
+    private static String shorten(String name, int len)
+    {
+        return name.length() > len ? name.substring(0, len) : name;
+    }
+}
@@ -0,0 +1,44 @@
+package restaurant.layoutGUI;
+
+import java.awt.*;
+import java.util.concurrent.*;
+
+/** The restaurant floor as the agents and their gui objects see it.
+ *  Restaurant draws it in a window; HeadlessLayout only keeps track of
+ *  it, for runs without Swing.  Coordinates are 1-based, like the
+ *  semaphore grid. */
+public interface Layout
+{
+    public void setAnimDelay(long animDelay);
+
+    //Setting up the floor
+    public void addTable(String tableNum, int x, int y, int size);
+    public void removeTable(String tableNum, int x, int y, int size);
+    public void addWaitArea(int x, int y, int size);
+    public void addCounter(int x, int y, int size);
+    public void addGrill(int x, int y, int size);
+
+    //Free spots.  Ask for Y before X: getting Y finds the spot.
+    public int getGrilX();
+    public int getGrilY();
+    public int getCntrX();
+    public int getCntrY();
+    public int getWaitX();
+    public int getWaitY();
+    //Here X finds the spot and Y returns it
+    public int getWaiterX();
+    public int getWaiterY();
+
+    //Animation; each call takes the animation delay
+    public void placeWaiter(int x, int y, Color color, String name);
+    public void moveWaiter(int oldx, int oldy, int newx, int newy, Color color, String name);
+    public void moveWaiterCustomer(int oldx, int oldy, int newx, int newy, Color color, String waiterName, String customerName);
+    public void moveWaiterFood(int oldx, int oldy, int newx, int newy, Color color, String waiterName, String foodName);
+    public void placeCustomer(int x, int y, Color color, String name);
+    public void removeCustomer(int x, int y);
+    public void placeFood(int x, int y, Color color, String name);
+    public void removeFood(int x, int y);
+
+    /** Held by a customer while it finds a place in the waiting area */
+    public Semaphore getLock();
+}
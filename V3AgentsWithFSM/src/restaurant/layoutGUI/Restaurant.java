@@ -5,11 +5,13 @@ import java.awt.event.*;
 import javax.swing.*;
 import restaurant.layoutGUI.*;
 import java.util.concurrent.*; 
+import agent.Clock;
+import astar.RouteCache;
 
 import java.awt.event.MouseListener;
 import java.awt.event.MouseEvent;
 
-public class Restaurant extends JFrame implements MouseListener
+public class Restaurant extends JFrame implements Layout, MouseListener
 {   
     private long animDelay;
     private JLabel[][] buttons;
@@ -138,7 +140,7 @@ public class Restaurant extends JFrame implements MouseListener
         this.setVisible(true);
     }
     
-    protected int getGrilX()
+    public int getGrilX()
     {
         if (!grilFull)
         {
@@ -160,7 +162,7 @@ public class Restaurant extends JFrame implements MouseListener
         return -1;
     }
     
-    protected int getGrilY()
+    public int getGrilY()
     {
         grilFull    =   false;
         for(int i = grilY; i < grilY + grilSize; i++)
@@ -184,7 +186,7 @@ public class Restaurant extends JFrame implements MouseListener
         return -1;
     }
     
-    protected int getCntrX()
+    public int getCntrX()
     {
         if (!cntrFull)
         {
@@ -206,7 +208,7 @@ public class Restaurant extends JFrame implements MouseListener
         return -1;
     }
     
-    protected int getCntrY()
+    public int getCntrY()
     {
         cntrFull    =   false;
         for(int i = cntrY; i < cntrY + cntrSize; i++)
@@ -230,7 +232,7 @@ public class Restaurant extends JFrame implements MouseListener
         return -1;
     }
 
-    protected int getWaitX()
+    public int getWaitX()
     {
         if (!waitFull)
         {
@@ -252,7 +254,7 @@ public class Restaurant extends JFrame implements MouseListener
         return -1;
     }
     
-    protected int getWaitY()
+    public int getWaitY()
     {
         waitFull    =   false;
         for(int i = waitY; i < waitY + waitSize; i++)
@@ -276,7 +278,7 @@ public class Restaurant extends JFrame implements MouseListener
         return -1;
     }
     
-    protected int getWaiterX()
+    public int getWaiterX()
     {
         for(int i = tune_waiter_pos_Y; i <= yPos; i++)
         {
@@ -308,12 +310,12 @@ public class Restaurant extends JFrame implements MouseListener
         return waiterX;
     }
     
-    protected int getWaiterY()
+    public int getWaiterY()
     {
         return waiterY;
     }
     
-    protected void placeWaiter(int x, int y, Color color, String name)
+    public void placeWaiter(int x, int y, Color color, String name)
     {
         if (name.length() > 2)
             name = name.substring(0, 2);
@@ -321,7 +323,7 @@ public class Restaurant extends JFrame implements MouseListener
         buttons[x-1][y-1].setText(name);
     }
     
-    protected void moveWaiter(int oldx, int oldy, int newx, int newy, Color color, String name)
+    public void moveWaiter(int oldx, int oldy, int newx, int newy, Color color, String name)
     {
         if (name.length() > 2)
             name = name.substring(0, 2);
@@ -331,12 +333,12 @@ public class Restaurant extends JFrame implements MouseListener
         buttons[newx-1][newy-1].setText(name);
         try
         {
-            Thread.sleep(animDelay);
+            Clock.get().sleep(animDelay);
         }
         catch(Exception e) {}
     }
   
-    protected void moveWaiterCustomer(int oldx, int oldy, int newx, int newy, Color color, String waiterName, String customerName)
+    public void moveWaiterCustomer(int oldx, int oldy, int newx, int newy, Color color, String waiterName, String customerName)
     {
         if (waiterName.length() > 2)
             waiterName = waiterName.substring(0, 2);
@@ -348,12 +350,12 @@ public class Restaurant extends JFrame implements MouseListener
         buttons[newx-1][newy-1].setText(waiterName + customerName);
         try
         {
-            Thread.sleep(animDelay);
+            Clock.get().sleep(animDelay);
         }
         catch(Exception e) {}
     }
     
-    protected void moveWaiterFood(int oldx, int oldy, int newx, int newy, Color color, String waiterName, String foodName)
+    public void moveWaiterFood(int oldx, int oldy, int newx, int newy, Color color, String waiterName, String foodName)
     {
         if (waiterName.length() > 2)
             waiterName = waiterName.substring(0, 2);
@@ -365,12 +367,12 @@ public class Restaurant extends JFrame implements MouseListener
         buttons[newx-1][newy-1].setText(waiterName + foodName);
         try
         {
-            Thread.sleep(animDelay);
+            Clock.get().sleep(animDelay);
         }
         catch(Exception e) {}
     }
 
-    protected void placeCustomer(int x, int y, Color color, String name)
+    public void placeCustomer(int x, int y, Color color, String name)
     {
         if (name.length() > 2)
             name = name.substring(0, 2);
@@ -378,18 +380,18 @@ public class Restaurant extends JFrame implements MouseListener
         buttons[x-1][y-1].setText(name);
         try
         {
-            Thread.sleep(animDelay);
+            Clock.get().sleep(animDelay);
         }
         catch(Exception e) {}
     }
     
-    protected void removeCustomer(int x, int y)
+    public void removeCustomer(int x, int y)
     {
         buttons[x-1][y-1].setForeground(new Color(0, 0, 0));
         buttons[x-1][y-1].setText(defaultText);
         try
         {
-            Thread.sleep(animDelay);
+            Clock.get().sleep(animDelay);
         }
         catch(Exception e) {}
     }
@@ -400,22 +402,27 @@ public class Restaurant extends JFrame implements MouseListener
         buttons[x-1][y-1].setText(name);
         try
         {
-            Thread.sleep(animDelay);
+            Clock.get().sleep(animDelay);
         }
         catch(Exception e) {}
     }
     
-    protected void removeFood(int x, int y)
+    public void removeFood(int x, int y)
     {
         buttons[x-1][y-1].setForeground(buttons[x-1][y-1].getBackground());
         buttons[x-1][y-1].setText(defaultText);
         try
         {
-            Thread.sleep(animDelay);
+            Clock.get().sleep(animDelay);
         }
         catch(Exception e) {}
     }   
     
+    public Semaphore getLock()
+    {
+        return lock;
+    }
+
     public void mousePressed(MouseEvent e) {
 	   int tmpX = e.getY()/defSize + tune_mouse_X;
        int tmpY = e.getX()/defSize + tune_mouse_Y;
@@ -483,6 +490,8 @@ public class Restaurant extends JFrame implements MouseListener
 				for(int i = 0; i < tableSel.getSize(); i++)
 					for(int j = 0; j < tableSel.getSize(); j++)
 						grid[newX + i][newY + j].tryAcquire();
+				//the waiters' usual routes change with the table
+				RouteCache.invalidate(grid);
 			}
        }
     }